@@ -0,0 +1,219 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openintents.oisafebackup.dropbox.UploadBackup;
+import org.openintents.oisafebackup.schedule.FileChangeCheck;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.android.AndroidAuthSession;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Watches the OI Safe backup file of every vault and uploads it once it has
+ * stopped changing for a while. OI Safe writes the backup in several steps,
+ * so every write pushes the upload back until the file has been quiet for
+ * QUIET_PERIOD.
+ */
+public class AutoBackupService extends Service {
+	private static final String TAG = "AutoBackupService";
+	private static final boolean debug = true;
+
+	/** Milliseconds without writes after which the backup counts as done */
+	public static final long QUIET_PERIOD = 5000;
+
+	private static final int EVENTS = FileObserver.MODIFY
+			| FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+			| FileObserver.CREATE;
+
+	private final Handler mHandler = new Handler();
+	private List<Vault> mVaults;
+	private final List<Watch> mWatches = new ArrayList<Watch>();
+
+	/**
+	 * Start or stop watching, depending on the setting and on whether we are
+	 * linked to Dropbox.
+	 */
+	public static void update(Context context) {
+		update(context, MainActivity.buildSession(context).isLinked());
+	}
+
+	/**
+	 * update(Context) on a background thread, for the UI thread: building
+	 * the session reads the stored keys from disk.
+	 */
+	public static void updateInBackground(Context context) {
+		final Context appContext = context.getApplicationContext();
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				update(appContext);
+			}
+		});
+	}
+
+	/**
+	 * Like update(Context), for callers that know whether we are linked and
+	 * needn't build a session to find out.
+	 */
+	public static void update(Context context, boolean linked) {
+		Intent intent = new Intent(context, AutoBackupService.class);
+		if (SettingsActivity.isAutoBackup(context) && linked) {
+			context.startService(intent);
+		} else {
+			context.stopService(intent);
+		}
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		List<Vault> vaults = Vault.getAll(this);
+		if (!vaults.equals(mVaults)) {
+			watch(vaults);
+		}
+		return START_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		for (Watch watch : mWatches) {
+			watch.stop();
+			UploadBackup upload = watch.mUpload;
+			if (upload != null
+					&& upload.getStatus() != AsyncTask.Status.FINISHED) {
+				// Turned off or unlinked while uploading
+				upload.cancel();
+			}
+		}
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	private void watch(List<Vault> vaults) {
+		for (Watch watch : mWatches) {
+			watch.stop();
+		}
+		mWatches.clear();
+		mVaults = vaults;
+		for (Vault vault : vaults) {
+			Watch watch = new Watch(vault);
+			watch.start();
+			mWatches.add(watch);
+		}
+	}
+
+	/**
+	 * Watches the file of one vault and uploads it once it is stable.
+	 */
+	private class Watch implements Runnable {
+		final Vault mVault;
+		private FileObserver mObserver;
+		private volatile boolean mStopped;
+		UploadBackup mUpload;
+
+		Watch(Vault vault) {
+			mVault = vault;
+		}
+
+		void start() {
+			File file = mVault.local;
+			final String name = file.getName();
+			if (debug) {
+				Log.d(TAG, "watching " + file);
+			}
+			// The directory is watched, as OI Safe may replace the file itself
+			mObserver = new FileObserver(file.getParent(), EVENTS) {
+				@Override
+				public void onEvent(int event, String path) {
+					if (name.equals(path)) {
+						changed();
+					}
+				}
+			};
+			mObserver.startWatching();
+		}
+
+		void stop() {
+			mStopped = true;
+			mHandler.removeCallbacks(this);
+			mObserver.stopWatching();
+		}
+
+		/**
+		 * Called on the observer's thread for every write, and after an
+		 * upload the file changed under.
+		 */
+		void changed() {
+			if (mStopped) {
+				return;
+			}
+			mHandler.removeCallbacks(this);
+			mHandler.postDelayed(this, QUIET_PERIOD);
+		}
+
+		public void run() {
+			upload(this);
+		}
+	}
+
+	private void upload(final Watch watch) {
+		final File file = watch.mVault.local;
+		if (!file.exists()) {
+			return;
+		}
+		AndroidAuthSession session = MainActivity.buildSession(this);
+		if (!session.isLinked()) {
+			stopSelf();
+			return;
+		}
+		if (debug) {
+			Log.d(TAG, file + " is stable, uploading");
+		}
+		// Nothing happens if an upload of it is waiting already, unchanged
+		// files are skipped by the fingerprint index
+		UploadBackup upload = MainActivity.startUpload(this,
+				MainActivity.createTransport(new DropboxAPI<AndroidAuthSession>(
+						session)), watch.mVault, false);
+		if (upload != null) {
+			watch.mUpload = upload;
+			// A write the observer missed while uploading would otherwise
+			// wait for the next change
+			upload.setOnFinished(new FileChangeCheck(file, new Runnable() {
+				public void run() {
+					if (debug) {
+						Log.d(TAG, file + " changed while uploading");
+					}
+					watch.changed();
+				}
+			}));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import org.openintents.oisafebackup.metrics.Metrics;
+import org.openintents.oisafebackup.transport.StandInTransport;
+
+import android.app.Activity;
+import android.content.pm.ApplicationInfo;
+import android.os.Bundle;
+import android.os.Environment;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Shows how uploads, checks and restores went since the app started:
+ * latencies, bytes, throughput, retries and errors. The report can be saved
+ * as a text file, e.g. to attach to a bug report.
+ * <p/>
+ * Debug builds can switch to a stand-in server kept in memory, with the
+ * latency and bandwidth of a slow mobile network, to try transfers,
+ * progress and cancel without touching Dropbox.
+ */
+public class DiagnosticsActivity extends Activity {
+	private static final String TAG = "DiagnosticsActivity";
+	private static final boolean debug = true;
+
+	private static final String EXPORT_PREFIX = "oisafebackup-metrics-";
+	private static final String EXPORT_SUFFIX = ".txt";
+
+	private static final long STAND_IN_LATENCY = 300;
+	private static final long STAND_IN_BANDWIDTH = 64 * 1024;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.activity_diagnostics);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		showReport();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		getMenuInflater().inflate(R.menu.activity_diagnostics, menu);
+		MenuItem standIn = menu.findItem(R.id.menu_stand_in);
+		standIn.setVisible((getApplicationInfo().flags
+				& ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+		standIn.setChecked(MainActivity.hasTransportOverride());
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case R.id.menu_export:
+			export();
+			return true;
+		case R.id.menu_reset:
+			Metrics.reset();
+			showReport();
+			return true;
+		case R.id.menu_stand_in:
+			item.setChecked(!item.isChecked());
+			MainActivity.setTransportOverride(item.isChecked() ? standIn()
+					: null);
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
+	private static StandInTransport standIn() {
+		StandInTransport transport = new StandInTransport();
+		transport.setLatency(STAND_IN_LATENCY);
+		transport.setBandwidth(STAND_IN_BANDWIDTH);
+		return transport;
+	}
+
+	private void showReport() {
+		TextView report = (TextView) findViewById(R.id.diagnosticsReport);
+		report.setText(Metrics.report());
+	}
+
+	/**
+	 * Save the report next to the backup on external storage.
+	 */
+	private void export() {
+		String name = EXPORT_PREFIX
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+						.format(new Date()) + EXPORT_SUFFIX;
+		File file = new File(Environment.getExternalStorageDirectory(), name);
+		String message;
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			out.write(Metrics.report().getBytes("UTF-8"));
+			out.close();
+			out = null;
+			message = getString(R.string.diagnosticsExported, file.getPath());
+			if (debug) {
+				Log.d(TAG, "exported to " + file);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't export to " + file, e);
+			message = e.getLocalizedMessage();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+	}
+}
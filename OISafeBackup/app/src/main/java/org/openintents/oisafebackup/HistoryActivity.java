@@ -0,0 +1,166 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openintents.oisafebackup.history.RetentionPolicy;
+import org.openintents.oisafebackup.history.SnapshotStore;
+import org.openintents.oisafebackup.history.VersionHistory;
+import org.openintents.oisafebackup.history.VersionIndex.Version;
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.TransportException;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.android.AndroidAuthSession;
+
+import android.app.ListActivity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemLongClickListener;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.Toast;
+
+/**
+ * Lists the versions of the backup kept on Dropbox and restores the one that
+ * is tapped. Only the version index is read, however many versions there are.
+ * Versions with a snapshot on the device are rebuilt from it, and are all
+ * that is listed when Dropbox can't be reached. A long tap previews a
+ * version instead.
+ */
+public class HistoryActivity extends ListActivity {
+	private static final String TAG = "HistoryActivity";
+	private static final boolean debug = true;
+
+	private BackupTransport mTransport;
+	private List<Version> mVersions;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		mTransport = MainActivity.createTransport(new DropboxAPI<AndroidAuthSession>(
+				MainActivity.buildSession(this)));
+		getListView().setOnItemLongClickListener(new OnItemLongClickListener() {
+			public boolean onItemLongClick(AdapterView<?> parent, View view,
+					int position, long id) {
+				Version version = mVersions.get(position);
+				if (version.path == null) {
+					// Only on the device, nothing to stream
+					return false;
+				}
+				MainActivity.startPreview(HistoryActivity.this, mTransport,
+						Vault.getDefault(HistoryActivity.this), version.path);
+				return true;
+			}
+		});
+		new LoadHistory().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+
+	@Override
+	protected void onListItemClick(ListView l, View v, int position, long id) {
+		Version version = mVersions.get(position);
+		if (debug) {
+			Log.d(TAG, "restoring " + version);
+		}
+		MainActivity.startRestore(this, mTransport, Vault.getDefault(this),
+				version.path, version.hash, true);
+	}
+
+	private class LoadHistory extends AsyncTask<Void, Void, List<Version>> {
+		private String mErrorMsg;
+		// Content hashes of the versions that have a snapshot
+		private final Set<String> mLocal = new HashSet<String>();
+		private boolean mOffline;
+
+		@Override
+		protected List<Version> doInBackground(Void... params) {
+			Vault vault = Vault.getDefault(HistoryActivity.this);
+			List<SnapshotStore.Snapshot> snapshots = MainActivity
+					.getSnapshotStore(HistoryActivity.this).list(
+							vault.remotePath);
+			for (SnapshotStore.Snapshot snapshot : snapshots) {
+				mLocal.add(snapshot.hash);
+			}
+			try {
+				return new VersionHistory(mTransport,
+						MainActivity.DROPBOX_BACKUP_PATH_DEFAULT_VALUE,
+						new RetentionPolicy()).list();
+			} catch (TransportException e) {
+				mErrorMsg = e.getUserError();
+				if (mErrorMsg == null) {
+					mErrorMsg = e.getMessage();
+				}
+			} catch (IOException e) {
+				mErrorMsg = e.getLocalizedMessage();
+			}
+			if (snapshots.isEmpty()) {
+				return null;
+			}
+			// Only on the device, restored by their hash
+			mOffline = true;
+			List<Version> versions = new ArrayList<Version>();
+			for (SnapshotStore.Snapshot snapshot : snapshots) {
+				versions.add(new Version(snapshot.timestamp, snapshot.bytes,
+						snapshot.hash, null, null));
+			}
+			return versions;
+		}
+
+		@Override
+		protected void onPostExecute(List<Version> versions) {
+			if (isFinishing()) {
+				return;
+			}
+			if (versions == null) {
+				Toast.makeText(HistoryActivity.this, mErrorMsg,
+						Toast.LENGTH_LONG).show();
+				return;
+			}
+			if (mOffline) {
+				Toast.makeText(HistoryActivity.this,
+						getString(R.string.historyOffline), Toast.LENGTH_LONG)
+						.show();
+			} else if (versions.isEmpty()) {
+				Toast.makeText(HistoryActivity.this,
+						getString(R.string.historyEmpty), Toast.LENGTH_LONG)
+						.show();
+			}
+			mVersions = versions;
+			DateFormat format = DateFormat.getDateTimeInstance();
+			String[] items = new String[versions.size()];
+			for (int i = 0; i < items.length; i++) {
+				Version version = versions.get(i);
+				int item = version.hash != null && mLocal.contains(version.hash)
+						? R.string.historyItemLocal : R.string.historyItem;
+				items[i] = String.format(getString(item),
+						format.format(new Date(version.timestamp)),
+						version.bytes);
+			}
+			setListAdapter(new ArrayAdapter<String>(HistoryActivity.this,
+					android.R.layout.simple_list_item_1, items));
+		}
+	}
+}
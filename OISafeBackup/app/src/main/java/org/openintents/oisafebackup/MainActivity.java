@@ -16,24 +16,39 @@
 package org.openintents.oisafebackup;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
-import java.util.List;
 
 import org.openintents.intents.CryptoIntents;
 import org.openintents.oisafebackup.dropbox.CheckForBackups;
+import org.openintents.oisafebackup.dropbox.DropboxConnections;
+import org.openintents.oisafebackup.dropbox.DropboxTransport;
 import org.openintents.oisafebackup.dropbox.GetBackup;
 import org.openintents.oisafebackup.dropbox.KeySecret;
+import org.openintents.oisafebackup.dropbox.SyncVault;
 import org.openintents.oisafebackup.dropbox.UploadBackup;
+import org.openintents.oisafebackup.history.SnapshotStore;
+import org.openintents.oisafebackup.schedule.OperationScheduler;
+import org.openintents.oisafebackup.sync.ChunkManifest;
+import org.openintents.oisafebackup.sync.DeltaSync;
+import org.openintents.oisafebackup.sync.FingerprintIndex;
+import org.openintents.oisafebackup.sync.MetadataCache;
+import org.openintents.oisafebackup.sync.RecordJournal;
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.RemoteEntry;
 
 import com.dropbox.client2.DropboxAPI;
-import com.dropbox.client2.DropboxAPI.Entry;
 import com.dropbox.client2.android.AndroidAuthSession;
 import com.dropbox.client2.session.AccessTokenPair;
 import com.dropbox.client2.session.AppKeyPair;
 
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
@@ -41,10 +56,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.util.Log;
 import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
@@ -60,12 +76,27 @@ public class MainActivity extends Activity {
 
 	// In the class declaration section:
 	private DropboxAPI<AndroidAuthSession> mDBApi;
+	private BackupTransport mTransport;
+
+	// Replaces the Dropbox transport, for trying things out without a network
+	private static volatile BackupTransport sTransportOverride;
+
+	// Outlives the activity, so a rotation doesn't start a second transfer
+	private static final OperationScheduler sScheduler = new OperationScheduler();
+	private static final String OPERATION_UPLOAD = "upload";
+	private static final String OPERATION_RESTORE = "restore";
+	private static final String OPERATION_CHECK = "check";
+	private static final String OPERATION_PREVIEW = "preview";
+	private static final String OPERATION_SYNC = "sync";
 
 	final static public String ACCOUNT_PREFS_NAME = "prefs";
 	final static public String DB_ACCESS_KEY_NAME = "ACCESS_KEY";
 	final static public String DB_ACCESS_SECRET_NAME = "ACCESS_SECRET";
 	final static public String DB_REV_NAME = "Dropbox_Rev";
 	final static public String DB_MODIFIED_NAME = "Dropbox_Modified";
+	final static public String DB_MANIFEST_NAME = "Dropbox_Manifest";
+	final static public String DB_BACKUP_PATH_NAME = "Backup_Path";
+	final static public String DB_BACKUP_PATH_TIME_NAME = "Backup_Path_Time";
 	
 	final static public String DB_APP_NAME = "OI%20Safe%20Backup";
 
@@ -81,6 +112,16 @@ public class MainActivity extends Activity {
     private TextView mLocalRev;
 
     private static final int REQUEST_CODE_GET_BACKUP_NAME = 1;
+
+	static final String OI_SAFE_PACKAGE = "org.openintents.safe";
+	// How long the backup path from OI Safe is trusted, in milliseconds
+	private static final long BACKUP_PATH_MAX_AGE = 24 * 60 * 60 * 1000L;
+	private static final long NO_LOCAL_BACKUP = -1;
+
+	// Cleared by PackageReceiver
+	private static volatile Boolean sOISafeInstalled;
+	// When onCreate() started, until the screen is complete
+	private long mStartTime;
 	
 	private boolean tryingToGetBackupPath = false;
 	private String backupPath;
@@ -93,13 +134,15 @@ public class MainActivity extends Activity {
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
+		mStartTime = SystemClock.uptimeMillis();
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
 
         prefs = getSharedPreferences(ACCOUNT_PREFS_NAME, Context.MODE_PRIVATE);
 
-        AndroidAuthSession session = buildSession();
+        AndroidAuthSession session = buildSession(this);
 		mDBApi = new DropboxAPI<AndroidAuthSession>(session);
+		mTransport = createTransport(mDBApi);
 
 		mConnect = (Button) findViewById(R.id.connect);
 		mLocalBackupStatus = (TextView) findViewById(R.id.localBackupStatus);
@@ -153,7 +196,7 @@ public class MainActivity extends Activity {
                 checkForLocalBackup();
             }
         });
-		backupPath=PREFERENCE_BACKUP_PATH_DEFAULT_VALUE;
+		backupPath=getBackupPath(this);
 
     }
 
@@ -180,23 +223,75 @@ public class MainActivity extends Activity {
 				Log.i(TAG, "Error authenticating", e);
 			}
 		}
+		// Diagnostics may have switched to or from the stand-in
+		mTransport = createTransport(mDBApi);
 		setLoggedIn(mDBApi.getSession().isLinked());
+		if (mLoggedIn && sTransportOverride == null) {
+			// Handshake while the user looks at the screen, not on the first tap
+			DropboxConnections.preconnect(mDBApi.getSession());
+		}
 		checkOISafeInstalled();
+		// Reading the cache and starting the service both touch the disk
+		new ResumeCheck(mLoggedIn, getDropboxCheckPath()).executeOnExecutor(
+				AsyncTask.THREAD_POOL_EXECUTOR);
+		if (mStartTime != 0) {
+			Log.i(TAG, "startup: resumed after "
+					+ (SystemClock.uptimeMillis() - mStartTime) + " ms");
+		}
 	}
 
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		// Inflate the menu; this adds items to the action bar if it is present.
-//		getMenuInflater().inflate(R.menu.activity_main, menu);
+		getMenuInflater().inflate(R.menu.activity_main, menu);
 		return true;
 	}
 
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case R.id.menu_settings:
+			startActivity(new Intent(this, SettingsActivity.class));
+			return true;
+		case R.id.menu_sync:
+			startSync(this, mTransport);
+			return true;
+		case R.id.menu_preview:
+			startPreview(this, mTransport, Vault.getDefault(this),
+					DROPBOX_BACKUP_PATH_DEFAULT_VALUE);
+			return true;
+		case R.id.menu_history:
+			startActivity(new Intent(this, HistoryActivity.class));
+			return true;
+		case R.id.menu_diagnostics:
+			startActivity(new Intent(this, DiagnosticsActivity.class));
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
 	private void logOut() {
 		// Remove credentials from the session
 		mDBApi.getSession().unlink();
 
 		// Clear our stored keys
 		clearKeys();
+		// What we uploaded belongs to the old account. Forgetting it
+		// deletes several files, so not on the UI thread.
+		final Context context = getApplicationContext();
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				FingerprintIndex.get(
+						new File(context.getFilesDir(),
+								FingerprintIndex.FILE_NAME)).clear();
+				for (Vault vault : Vault.getAll(context)) {
+					vault.getRecordState(context).clear();
+				}
+				getMetadataCache(context).clear();
+				getSnapshotStore(context).clear();
+				AutoBackupService.update(context, false);
+			}
+		});
 		// Change UI state to display logged out version
 		setLoggedIn(false);
 	}
@@ -213,6 +308,8 @@ public class MainActivity extends Activity {
 		} else {
 			mConnect.setText(getString(R.string.connect));
 			mDropboxConnected.setVisibility(View.GONE);
+			// No local backup to look at, the screen is complete
+			startupDone();
 		}
 	}
 
@@ -221,9 +318,11 @@ public class MainActivity extends Activity {
 		error.show();
 	}
 
-	private void loadAuth(AndroidAuthSession session) {
-		String key = prefs.getString(DB_ACCESS_KEY_NAME, null);
-		String secret = prefs.getString(DB_ACCESS_SECRET_NAME, null);
+	private static void loadAuth(Context context, AndroidAuthSession session) {
+		SharedPreferences accountPrefs = context.getSharedPreferences(
+				ACCOUNT_PREFS_NAME, Context.MODE_PRIVATE);
+		String key = accountPrefs.getString(DB_ACCESS_KEY_NAME, null);
+		String secret = accountPrefs.getString(DB_ACCESS_SECRET_NAME, null);
 		if (key == null || secret == null || key.length() == 0 || secret.length() == 0) return;
 		
 		if (key.equals("oauth2:")) {
@@ -262,32 +361,114 @@ public class MainActivity extends Activity {
 		edit.apply();
 	}
 
-	private AndroidAuthSession buildSession() {
+	/**
+	 * @return a session with the stored credentials, linked if we have any
+	 */
+	static AndroidAuthSession buildSession(Context context) {
 		AppKeyPair appKeyPair = new AppKeyPair(KeySecret.APP_KEY,
 				KeySecret.APP_SECRET);
 
-		AndroidAuthSession session = new AndroidAuthSession(appKeyPair);
-		loadAuth(session);
+		// Every session shares one pool of connections
+		AndroidAuthSession session = DropboxConnections.newSession(appKeyPair);
+		loadAuth(context, session);
 		return session;
 	}
 
+	static BackupTransport createTransport(DropboxAPI<?> api) {
+		if (sTransportOverride != null) {
+			return sTransportOverride;
+		}
+		return new DropboxTransport(api);
+	}
+
 	private void checkForLocalBackup() {
-		File restoreFile = new File(backupPath);
+		// External storage can be slow, look at the file in the background
+		new LocalBackupCheck().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+				backupPath);
+	}
+
+	private void showLocalBackup(String path, long lastModified) {
         String msg;
         String modifiedTime="";
         String rev="";
-		if (!restoreFile.exists()) {
-            msg = String.format(getString(R.string.nolocalbackup),backupPath);
+		if (lastModified == NO_LOCAL_BACKUP) {
+            msg = String.format(getString(R.string.nolocalbackup),path);
 			mSendToDropbox.setEnabled(false);
 		} else {
-            msg = String.format(getString(R.string.localBackupExists),backupPath);
+            msg = String.format(getString(R.string.localBackupExists),path);
             mSendToDropbox.setEnabled(true);
-            modifiedTime= new Date(restoreFile.lastModified()).toString();
+            modifiedTime= new Date(lastModified).toString();
             rev = prefs.getString(DB_REV_NAME, "");
         }
         mLocalModified.setText(modifiedTime);
 		mLocalBackupStatus.setText(msg);
         mLocalRev.setText(rev);
+		startupDone();
+	}
+
+	/**
+	 * Log how long the screen took to become complete, once per onCreate().
+	 */
+	private void startupDone() {
+		if (mStartTime != 0) {
+			Log.i(TAG, "startup: interactive after "
+					+ (SystemClock.uptimeMillis() - mStartTime) + " ms");
+			mStartTime = 0;
+		}
+	}
+
+	/**
+	 * Finds out whether the local backup exists and when it was written.
+	 */
+	private class LocalBackupCheck extends AsyncTask<String, Void, Long> {
+		private String mPath;
+
+		@Override
+		protected Long doInBackground(String... params) {
+			mPath = params[0];
+			File restoreFile = new File(mPath);
+			if (!restoreFile.exists()) {
+				return NO_LOCAL_BACKUP;
+			}
+			return restoreFile.lastModified();
+		}
+
+		@Override
+		protected void onPostExecute(Long lastModified) {
+			if (!isFinishing()) {
+				showLocalBackup(mPath, lastModified);
+			}
+		}
+	}
+
+	/**
+	 * Starts or stops the auto backup and shows the last known state of the
+	 * backup if we know one, without blocking onResume().
+	 */
+	private class ResumeCheck extends AsyncTask<Void, Void, Boolean> {
+		private final boolean mLinked;
+		private final String mCheckPath;
+
+		ResumeCheck(boolean linked, String checkPath) {
+			mLinked = linked;
+			mCheckPath = checkPath;
+		}
+
+		@Override
+		protected Boolean doInBackground(Void... params) {
+			AutoBackupService.update(MainActivity.this, mLinked);
+			// Loads the cache file the first time, later checks use memory
+			return mLinked
+					&& getMetadataCache(MainActivity.this).get(mCheckPath) != null;
+		}
+
+		@Override
+		protected void onPostExecute(Boolean cached) {
+			if (cached && mLoggedIn && !isFinishing()) {
+				// Shows the last known state at once, refreshes it if it's old
+				checkDropbox();
+			}
+		}
 	}
 
 	private void sendLocalToDropbox() {
@@ -295,9 +476,7 @@ public class MainActivity extends Activity {
 			Log.d(TAG, "sending local to dropbox");
 		}
 
-		File file = new File(backupPath);
-		UploadBackup upload = new UploadBackup(this, mDBApi, "/", file);
-		upload.execute();
+		startUpload(this, mTransport, Vault.getDefault(this), true);
 
 	}
 
@@ -306,32 +485,168 @@ public class MainActivity extends Activity {
 			Log.d(TAG, "checking dropbox");
 		}
 
-		CheckForBackups check = new CheckForBackups(this, mDBApi,
-				DROPBOX_BACKUP_PATH_DEFAULT_VALUE, this);
-		check.execute();
+		if (isScheduled(OPERATION_CHECK, DROPBOX_BACKUP_PATH_DEFAULT_VALUE)) {
+			return;
+		}
+		CheckForBackups check = new CheckForBackups(this, mTransport,
+				getDropboxCheckPath(), this);
+		check.executeOnExecutor(sScheduler.executor(OPERATION_CHECK,
+				DROPBOX_BACKUP_PATH_DEFAULT_VALUE));
+
+	}
+
+	private String getDropboxCheckPath() {
+		return getCheckPath(this, DROPBOX_BACKUP_PATH_DEFAULT_VALUE);
+	}
 
+	/**
+	 * @return the remote file whose revision tells if the backup at path
+	 *         changed
+	 */
+	public static String getCheckPath(Context context, String path) {
+		if (SettingsActivity.isDeltaSync(context)) {
+			// The revision we keep is the one of the manifest
+			path = DeltaSync.manifestPath(path);
+		} else if (SettingsActivity.isRecordSync(context)) {
+			// Every upload of the records rewrites the head
+			path = RecordJournal.headPath(path);
+		}
+		return path;
 	}
 
 	private void getFromDropbox() {
-		GetBackup getBackup = new GetBackup(this, mDBApi,
-				DROPBOX_BACKUP_PATH_DEFAULT_VALUE);
-		getBackup.execute();
+		startRestore(this, mTransport, Vault.getDefault(this),
+				DROPBOX_BACKUP_PATH_DEFAULT_VALUE, true);
+	}
+
+	/**
+	 * Restore remotePath, the current backup of vault or an older version of
+	 * it, to the local file of vault unless a restore is already waiting or
+	 * running.
+	 * 
+	 * @param context
+	 *            an activity, for the progress dialog
+	 */
+	public static void startRestore(Context context, BackupTransport transport,
+			Vault vault, String remotePath, boolean showProgress) {
+		startRestore(context, transport, vault, remotePath, null, showProgress);
+	}
+
+	/**
+	 * @param hash
+	 *            content hash of the version at remotePath, so a snapshot of
+	 *            it can be used instead of downloading it
+	 */
+	static void startRestore(Context context, BackupTransport transport,
+			Vault vault, String remotePath, String hash, boolean showProgress) {
+		// Whatever is restored ends up in the same local file
+		if (isScheduled(OPERATION_RESTORE, vault.remotePath)) {
+			return;
+		}
+		GetBackup getBackup = new GetBackup(context, transport, vault,
+				remotePath, hash, showProgress);
+		getBackup.executeOnExecutor(sScheduler.executor(OPERATION_RESTORE,
+				vault.remotePath));
+	}
+
+	/**
+	 * Show what remotePath holds and offer to restore it, unless a preview
+	 * of it is already waiting or running. Nothing is stored.
+	 * 
+	 * @param context
+	 *            an activity, for the progress dialog and the summary
+	 */
+	static void startPreview(Context context, BackupTransport transport,
+			Vault vault, String remotePath) {
+		if (isScheduled(OPERATION_PREVIEW, remotePath)) {
+			return;
+		}
+		GetBackup.preview(context, transport, vault, remotePath)
+				.executeOnExecutor(sScheduler.executor(OPERATION_PREVIEW,
+						remotePath));
+	}
+
+	/**
+	 * Upload the local file of vault unless an upload is already waiting or
+	 * running. Must be called on the main thread.
+	 * 
+	 * @return the upload, or null if there already was one
+	 */
+	static UploadBackup startUpload(Context context,
+			BackupTransport transport, Vault vault, boolean showProgress) {
+		if (isScheduled(OPERATION_UPLOAD, vault.remotePath)) {
+			return null;
+		}
+		UploadBackup upload = new UploadBackup(context, transport, vault,
+				showProgress);
+		upload.executeOnExecutor(sScheduler.executor(OPERATION_UPLOAD,
+				vault.remotePath));
+		return upload;
+	}
+
+	/**
+	 * Bring every vault up to date: upload the ones that changed here,
+	 * restore the ones that changed on the server. Vaults are compared and
+	 * transferred on the scheduler's threads, so several run at the same
+	 * time and syncing them all takes about as long as the largest.
+	 */
+	static void startSync(final Context context,
+			final BackupTransport transport) {
+		SyncVault.OnCompared onCompared = new SyncVault.OnCompared() {
+			public void onCompared(Vault vault,
+					FingerprintIndex.Direction direction) {
+				switch (direction) {
+				case UPLOAD:
+					startUpload(context, transport, vault, false);
+					break;
+				case DOWNLOAD:
+					startRestore(context, transport, vault, vault.remotePath,
+							false);
+					break;
+				case SAME:
+					Toast.makeText(context, context.getString(
+							R.string.syncUpToDate, vault.getName()),
+							Toast.LENGTH_SHORT).show();
+					break;
+				default:
+					// Either side could be the one to keep
+					Toast.makeText(context, context.getString(
+							R.string.syncConflict, vault.getName()),
+							Toast.LENGTH_LONG).show();
+				}
+			}
+		};
+		for (Vault vault : Vault.getAll(context)) {
+			if (isScheduled(OPERATION_SYNC, vault.remotePath)) {
+				continue;
+			}
+			new SyncVault(context, transport, vault, onCompared)
+					.executeOnExecutor(sScheduler.executor(OPERATION_SYNC,
+							vault.remotePath));
+		}
+	}
+
+	/**
+	 * @return true if operation on the backup at path is already waiting to
+	 *         start, so it needn't be asked for again
+	 */
+	private static boolean isScheduled(String operation, String path) {
+		boolean scheduled = sScheduler.isScheduled(operation, path);
+		if (scheduled && debug) {
+			Log.d(TAG, operation + " already scheduled");
+		}
+		return scheduled;
 	}
 
 	private void checkOISafeInstalled() {
-		boolean oiSafeIsInstalled = false;
-		List<PackageInfo> packs = getPackageManager().getInstalledPackages(0);
-        for (PackageInfo p : packs) {
-            if (p.packageName.contentEquals("org.openintents.safe")) {
-                oiSafeIsInstalled = true;
-                break;
-            }
-        }
+		boolean oiSafeIsInstalled = isOISafeInstalled(this);
 		if (oiSafeIsInstalled) {
 			mOISafeNotInstalled.setVisibility(View.INVISIBLE);
 			mOISafeButton.setEnabled(true);
             mLocalBackupStatus.setVisibility(View.VISIBLE);
-			getBackupName();
+			if (isBackupPathStale()) {
+				getBackupName();
+			}
 		} else {
 			mOISafeNotInstalled.setVisibility(View.VISIBLE);
 			mOISafeButton.setEnabled(false);
@@ -339,6 +654,42 @@ public class MainActivity extends Activity {
 		}
 	}
 
+	/**
+	 * @return true if OI Safe is installed, remembered until a package
+	 *         changes
+	 */
+	private static boolean isOISafeInstalled(Context context) {
+		Boolean installed = sOISafeInstalled;
+		if (installed == null) {
+			try {
+				context.getPackageManager().getPackageInfo(OI_SAFE_PACKAGE, 0);
+				installed = true;
+			} catch (NameNotFoundException e) {
+				installed = false;
+			}
+			sOISafeInstalled = installed;
+		}
+		return installed;
+	}
+
+	/**
+	 * Forget what we know about OI Safe, it was installed, updated or removed.
+	 */
+	static void onOISafeChanged(Context context) {
+		sOISafeInstalled = null;
+		context.getSharedPreferences(ACCOUNT_PREFS_NAME, Context.MODE_PRIVATE)
+				.edit().remove(DB_BACKUP_PATH_TIME_NAME).apply();
+	}
+
+	/**
+	 * @return true if OI Safe should be asked for its backup path again
+	 */
+	private boolean isBackupPathStale() {
+		long resolved = prefs.getLong(DB_BACKUP_PATH_TIME_NAME, 0);
+		long age = System.currentTimeMillis() - resolved;
+		return age < 0 || age > BACKUP_PATH_MAX_AGE;
+	}
+
 	private void getBackupName() {
 		if (tryingToGetBackupPath) {
 			tryingToGetBackupPath=false;
@@ -365,7 +716,7 @@ public class MainActivity extends Activity {
 
 	private void startOISafe() {
 		Intent LaunchIntent = getPackageManager().getLaunchIntentForPackage(
-				"org.openintents.safe");
+				OI_SAFE_PACKAGE);
 		if (LaunchIntent != null)
 			startActivity(LaunchIntent);
 	}
@@ -383,17 +734,143 @@ public class MainActivity extends Activity {
 		}
 	}
 
-	public static void storeEntry(Context context, Entry entry) {
+	/**
+	 * Use the given transport instead of Dropbox from the next time this
+	 * activity resumes, and for automatic backups started from then on. The
+	 * debug menu of DiagnosticsActivity sets a StandInTransport. Pass null
+	 * to go back to Dropbox.
+	 */
+	static void setTransportOverride(BackupTransport transport) {
+		sTransportOverride = transport;
+	}
+
+	static boolean hasTransportOverride() {
+		return sTransportOverride != null;
+	}
+
+	public static void storeEntry(Context context, Vault vault,
+			RemoteEntry entry) {
 		if (entry==null) return;
-		Editor edit = prefs.edit();
+		// Also called from the background, when there may be no activity
+		Editor edit = context.getSharedPreferences(ACCOUNT_PREFS_NAME,
+				Context.MODE_PRIVATE).edit();
 		if (debug) {
-			Log.d(TAG, "storeEntry: entry.rev=" + entry.rev);
+			Log.d(TAG, "storeEntry: " + vault.remotePath + " entry.rev="
+					+ entry.rev);
+		}
+		edit.putString(vault.key(DB_REV_NAME), entry.rev);
+		edit.putString(vault.key(DB_MODIFIED_NAME), entry.modified);
+		edit.apply();
+	}
+
+	/**
+	 * @return revision of vault we last uploaded or restored, or null
+	 */
+	public static String getStoredRev(Context context, Vault vault) {
+		return context.getSharedPreferences(ACCOUNT_PREFS_NAME,
+				Context.MODE_PRIVATE).getString(vault.key(DB_REV_NAME), null);
+	}
+
+	/**
+	 * Like storeEntry(), for a copy kept somewhere other than Dropbox.
+	 * 
+	 * @param target
+	 *            tells the copies apart, e.g. "local:" and a directory
+	 */
+	public static void storeTargetEntry(Context context, String target,
+			RemoteEntry entry) {
+		if (entry==null) return;
+		Editor edit = context.getSharedPreferences(ACCOUNT_PREFS_NAME,
+				Context.MODE_PRIVATE).edit();
+		edit.putString(DB_REV_NAME + ":" + target, entry.rev);
+		edit.putString(DB_MODIFIED_NAME + ":" + target, entry.modified);
+		edit.apply();
+	}
+
+	/**
+	 * @return revision of the copy at target we know of, or null
+	 */
+	public static String getTargetRev(Context context, String target) {
+		return context.getSharedPreferences(ACCOUNT_PREFS_NAME,
+				Context.MODE_PRIVATE).getString(DB_REV_NAME + ":" + target,
+				null);
+	}
+
+	/**
+	 * @return where OI Safe last told us it writes its backup
+	 */
+	public static String getBackupPath(Context context) {
+		return context.getSharedPreferences(ACCOUNT_PREFS_NAME,
+				Context.MODE_PRIVATE).getString(DB_BACKUP_PATH_NAME,
+				PREFERENCE_BACKUP_PATH_DEFAULT_VALUE);
+	}
+
+	/**
+	 * @return the remote metadata we last saw, shared by all tasks
+	 */
+	public static MetadataCache getMetadataCache(Context context) {
+		return MetadataCache.get(new File(context.getFilesDir(),
+				MetadataCache.FILE_NAME));
+	}
+
+	/**
+	 * @return the copies of recent backups kept on the device
+	 */
+	public static SnapshotStore getSnapshotStore(Context context) {
+		return new SnapshotStore(new File(context.getFilesDir(),
+				SnapshotStore.DIR_NAME), SettingsActivity.getSnapshotSize(context));
+	}
+
+	/**
+	 * Keep the local file of vault as a snapshot, so going back to it later
+	 * needs no download. The transfer itself succeeded, so failing to do so
+	 * is only logged.
+	 */
+	public static void addSnapshot(Context context, Vault vault) {
+		try {
+			InputStream in = new FileInputStream(vault.local);
+			try {
+				SnapshotStore.Snapshot snapshot = getSnapshotStore(context)
+						.add(vault.remotePath, System.currentTimeMillis(), in);
+				if (debug) Log.d(TAG, "kept snapshot " + snapshot);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't keep a snapshot of " + vault, e);
 		}
-		edit.putString(MainActivity.DB_REV_NAME, entry.rev);
-		edit.putString(MainActivity.DB_MODIFIED_NAME, entry.modified);
+	}
+
+	/**
+	 * Remember the chunks of the last delta upload or restore of vault.
+	 */
+	public static void storeManifest(Context context, Vault vault,
+			ChunkManifest manifest) {
+		Editor edit = context.getSharedPreferences(ACCOUNT_PREFS_NAME,
+				Context.MODE_PRIVATE).edit();
+		edit.putString(vault.key(DB_MANIFEST_NAME),
+				manifest == null ? null : manifest.toString());
 		edit.apply();
 	}
 
+	/**
+	 * @return chunks of the last delta upload or restore of vault, or null
+	 */
+	public static ChunkManifest getStoredManifest(Context context, Vault vault) {
+		String text = context.getSharedPreferences(ACCOUNT_PREFS_NAME,
+				Context.MODE_PRIVATE).getString(vault.key(DB_MANIFEST_NAME),
+				null);
+		if (text == null) {
+			return null;
+		}
+		try {
+			return ChunkManifest.parse(text);
+		} catch (IOException e) {
+			if (debug) Log.d(TAG, "stored manifest is broken", e);
+			return null;
+		}
+	}
+
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 		if (debug)
 			Log.d(TAG, "onActivityResult: Received requestCode " + requestCode
@@ -407,8 +884,17 @@ public class MainActivity extends Activity {
 				if (debug) Log.d(TAG,"EXTRA_TEXT="+text);
 				if (text!=null) {
 					backupPath=text;
+					// Remembered for automatic backups
+					prefs.edit().putString(DB_BACKUP_PATH_NAME, text).apply();
+					AutoBackupService.updateInBackground(this);
+					checkForLocalBackup();
 				}
 			}
+			// Don't ask again on every resume, even if OI Safe didn't answer
+			tryingToGetBackupPath=false;
+			prefs.edit()
+					.putLong(DB_BACKUP_PATH_TIME_NAME, System.currentTimeMillis())
+					.apply();
 		}
 	}
 }
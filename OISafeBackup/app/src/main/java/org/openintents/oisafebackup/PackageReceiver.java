@@ -0,0 +1,38 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+/**
+ * Drops what MainActivity remembers about OI Safe when it is installed,
+ * updated or removed.
+ */
+public class PackageReceiver extends BroadcastReceiver {
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		Uri data = intent.getData();
+		if (data != null
+				&& MainActivity.OI_SAFE_PACKAGE.equals(data
+						.getSchemeSpecificPart())) {
+			MainActivity.onOISafeChanged(context);
+		}
+	}
+}
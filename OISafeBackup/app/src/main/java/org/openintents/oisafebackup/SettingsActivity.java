@@ -0,0 +1,267 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openintents.oisafebackup.history.SnapshotStore;
+import org.openintents.oisafebackup.transport.ChunkedUpload;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceActivity;
+import android.preference.PreferenceManager;
+import android.widget.Toast;
+
+public class SettingsActivity extends PreferenceActivity {
+
+	public static final String PREF_UPLOAD_MODE = "upload_mode";
+	public static final String PREF_CHUNK_SIZE = "chunk_size";
+	public static final String PREF_COMPRESS = "compress";
+	public static final String PREF_ENCRYPT = "encrypt";
+	public static final String PREF_PASSPHRASE = "passphrase";
+	public static final String PREF_METADATA_TTL = "metadata_ttl";
+	public static final String PREF_STALE_WHILE_REVALIDATE = "stale_while_revalidate";
+	public static final String PREF_AUTO_BACKUP = "auto_backup";
+	public static final String PREF_KEEP_HISTORY = "keep_history";
+	public static final String PREF_LOCAL_TARGETS = "local_targets";
+	public static final String PREF_VAULTS = "vaults";
+	public static final String PREF_SNAPSHOT_SIZE = "snapshot_size";
+
+	private static final String DEFAULT_METADATA_TTL = "300";
+
+	/** Send the whole file in one request */
+	public static final String UPLOAD_MODE_WHOLE = "whole";
+	/** Send the whole file in resumable chunks */
+	public static final String UPLOAD_MODE_CHUNKED = "chunked";
+	/** Send only the content-defined chunks that changed */
+	public static final String UPLOAD_MODE_DELTA = "delta";
+	/** Send only the password entries that changed */
+	public static final String UPLOAD_MODE_RECORDS = "records";
+
+	@SuppressWarnings("deprecation")
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		addPreferencesFromResource(R.xml.preferences);
+
+		// Delta and record uploads can't be encrypted, refuse to combine them
+		findPreference(PREF_UPLOAD_MODE).setOnPreferenceChangeListener(
+				new Preference.OnPreferenceChangeListener() {
+					public boolean onPreferenceChange(Preference preference,
+							Object newValue) {
+						return allowed((String) newValue,
+								getPrefs(SettingsActivity.this).getBoolean(
+										PREF_ENCRYPT, false));
+					}
+				});
+		findPreference(PREF_ENCRYPT).setOnPreferenceChangeListener(
+				new Preference.OnPreferenceChangeListener() {
+					public boolean onPreferenceChange(Preference preference,
+							Object newValue) {
+						return allowed(getUploadMode(SettingsActivity.this),
+								(Boolean) newValue);
+					}
+				});
+	}
+
+	private boolean allowed(String uploadMode, boolean encrypt) {
+		if (encrypt && !canEncrypt(uploadMode)) {
+			Toast.makeText(this, R.string.encryptUnsupported,
+					Toast.LENGTH_LONG).show();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		AutoBackupService.updateInBackground(this);
+	}
+
+	public static String getUploadMode(Context context) {
+		return getPrefs(context).getString(PREF_UPLOAD_MODE, UPLOAD_MODE_WHOLE);
+	}
+
+	public static boolean isChunkedUpload(Context context) {
+		return UPLOAD_MODE_CHUNKED.equals(getUploadMode(context));
+	}
+
+	public static boolean isDeltaSync(Context context) {
+		return UPLOAD_MODE_DELTA.equals(getUploadMode(context));
+	}
+
+	public static boolean isRecordSync(Context context) {
+		return UPLOAD_MODE_RECORDS.equals(getUploadMode(context));
+	}
+
+	/**
+	 * @return true if backups uploaded in uploadMode can be encrypted
+	 */
+	public static boolean canEncrypt(String uploadMode) {
+		return !UPLOAD_MODE_DELTA.equals(uploadMode)
+				&& !UPLOAD_MODE_RECORDS.equals(uploadMode);
+	}
+
+	public static int getChunkSize(Context context) {
+		try {
+			return Integer.parseInt(getPrefs(context).getString(
+					PREF_CHUNK_SIZE,
+					String.valueOf(ChunkedUpload.DEFAULT_CHUNK_SIZE)));
+		} catch (NumberFormatException e) {
+			return ChunkedUpload.DEFAULT_CHUNK_SIZE;
+		}
+	}
+
+	/**
+	 * Compression applies to whole file and chunked uploads. Restores detect
+	 * it by themselves.
+	 */
+	public static boolean isCompressed(Context context) {
+		return getPrefs(context).getBoolean(PREF_COMPRESS, false);
+	}
+
+	/**
+	 * Like compression, encryption applies to whole file and chunked
+	 * uploads. Delta and record uploads send the plain file, and so does an
+	 * upload without a passphrase, so they refuse to run while this is on.
+	 */
+	public static boolean isEncrypted(Context context) {
+		return getPrefs(context).getBoolean(PREF_ENCRYPT, false);
+	}
+
+	/**
+	 * @return passphrase to encrypt and decrypt backups with, or null if none
+	 *         is set. Restores use it even with encryption turned off, for
+	 *         the backups uploaded while it was on.
+	 */
+	public static char[] getPassphrase(Context context) {
+		String passphrase = getPrefs(context).getString(PREF_PASSPHRASE, "");
+		return passphrase.length() == 0 ? null : passphrase.toCharArray();
+	}
+
+	/**
+	 * @return how long cached remote metadata is used without asking the
+	 *         server, in milliseconds
+	 */
+	public static long getMetadataTtl(Context context) {
+		try {
+			return 1000L * Long.parseLong(getPrefs(context).getString(
+					PREF_METADATA_TTL, DEFAULT_METADATA_TTL));
+		} catch (NumberFormatException e) {
+			return 1000L * Long.parseLong(DEFAULT_METADATA_TTL);
+		}
+	}
+
+	/**
+	 * @return true to show expired cached metadata while it is refreshed
+	 */
+	public static boolean isStaleWhileRevalidate(Context context) {
+		return getPrefs(context).getBoolean(PREF_STALE_WHILE_REVALIDATE, true);
+	}
+
+	/**
+	 * @return true to upload the backup whenever OI Safe writes it
+	 */
+	public static boolean isAutoBackup(Context context) {
+		return getPrefs(context).getBoolean(PREF_AUTO_BACKUP, false);
+	}
+
+	/**
+	 * Delta uploads keep no history, old versions would point at chunks that
+	 * have been deleted.
+	 * 
+	 * @return true to keep older versions of the backup on the server
+	 */
+	public static boolean isKeepHistory(Context context) {
+		return !isDeltaSync(context) && !isRecordSync(context)
+				&& getPrefs(context).getBoolean(PREF_KEEP_HISTORY, false);
+	}
+
+	/**
+	 * @return bytes the snapshots on the device may take, 0 to keep none
+	 */
+	public static long getSnapshotSize(Context context) {
+		try {
+			return Long.parseLong(getPrefs(context).getString(
+					PREF_SNAPSHOT_SIZE,
+					String.valueOf(SnapshotStore.DEFAULT_MAX_SIZE)));
+		} catch (NumberFormatException e) {
+			return SnapshotStore.DEFAULT_MAX_SIZE;
+		}
+	}
+
+	/**
+	 * @return directories that get a copy of every backup next to Dropbox,
+	 *         e.g. on an SD card
+	 */
+	public static List<File> getLocalTargets(Context context) {
+		List<File> dirs = new ArrayList<File>();
+		String value = getPrefs(context).getString(PREF_LOCAL_TARGETS, "");
+		for (String dir : value.split(";")) {
+			dir = dir.trim();
+			if (dir.length() > 0) {
+				dirs.add(new File(dir));
+			}
+		}
+		return dirs;
+	}
+
+	/**
+	 * Each vault is a local file, synced with the file of the same name in
+	 * the app folder, or with the remote path given after a =. Entries are
+	 * separated by ;. Entries using a remote path that is already taken are
+	 * left out.
+	 * 
+	 * @return vaults besides the default one
+	 */
+	public static List<Vault> getVaults(Context context) {
+		List<Vault> vaults = new ArrayList<Vault>();
+		Set<String> remotePaths = new HashSet<String>();
+		remotePaths.add(MainActivity.DROPBOX_BACKUP_PATH_DEFAULT_VALUE);
+		String value = getPrefs(context).getString(PREF_VAULTS, "");
+		for (String entry : value.split(";")) {
+			String[] parts = entry.split("=", 2);
+			String local = parts[0].trim();
+			if (local.length() == 0) {
+				continue;
+			}
+			File file = new File(local);
+			String remotePath = parts.length > 1 ? parts[1].trim() : "";
+			if (remotePath.length() == 0) {
+				remotePath = file.getName();
+			}
+			if (!remotePath.startsWith("/")) {
+				remotePath = "/" + remotePath;
+			}
+			if (remotePaths.add(remotePath)) {
+				vaults.add(new Vault(file, remotePath));
+			}
+		}
+		return vaults;
+	}
+
+	private static SharedPreferences getPrefs(Context context) {
+		return PreferenceManager.getDefaultSharedPreferences(context);
+	}
+}
@@ -0,0 +1,110 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openintents.oisafebackup.sync.RecordJournal;
+import org.openintents.oisafebackup.transport.RemotePaths;
+
+import android.content.Context;
+
+/**
+ * A local OI Safe backup and the remote file it is synced with. The first
+ * vault is the backup OI Safe tells us about, more can be added in the
+ * settings, e.g. a personal and a team vault. Each keeps its own revision,
+ * manifest and journal state.
+ */
+public class Vault {
+	public final File local;
+	public final String remotePath;
+
+	public Vault(File local, String remotePath) {
+		this.local = local;
+		this.remotePath = remotePath;
+	}
+
+	/**
+	 * @return the vault of the backup OI Safe writes
+	 */
+	public static Vault getDefault(Context context) {
+		return new Vault(new File(MainActivity.getBackupPath(context)),
+				MainActivity.DROPBOX_BACKUP_PATH_DEFAULT_VALUE);
+	}
+
+	/**
+	 * @return the default vault first, then the ones from the settings
+	 */
+	public static List<Vault> getAll(Context context) {
+		List<Vault> vaults = new ArrayList<Vault>();
+		vaults.add(getDefault(context));
+		vaults.addAll(SettingsActivity.getVaults(context));
+		return vaults;
+	}
+
+	public boolean isDefault() {
+		return MainActivity.DROPBOX_BACKUP_PATH_DEFAULT_VALUE.equals(remotePath);
+	}
+
+	/**
+	 * @return name under which this vault keeps a stored value. The default
+	 *         vault uses the names from before there were several, so
+	 *         nothing is lost on update.
+	 */
+	public String key(String name) {
+		return isDefault() ? name : name + "@" + remotePath;
+	}
+
+	/**
+	 * @return the journal state of records uploads of this vault, in a file
+	 *         named after the whole remote path so no two vaults share one
+	 */
+	public RecordJournal.State getRecordState(Context context) {
+		String name = RecordJournal.State.FILE_NAME;
+		if (!isDefault()) {
+			name = "vault-" + RemotePaths.flatName(remotePath) + "-" + name;
+		}
+		return new RecordJournal.State(new File(context.getFilesDir(), name));
+	}
+
+	/**
+	 * @return what to call the vault in messages
+	 */
+	public String getName() {
+		return local.getName();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Vault)) {
+			return false;
+		}
+		Vault other = (Vault) o;
+		return local.equals(other.local) && remotePath.equals(other.remotePath);
+	}
+
+	@Override
+	public int hashCode() {
+		return local.hashCode() * 31 + remotePath.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return local + " = " + remotePath;
+	}
+}
@@ -18,14 +18,28 @@
 
 package org.openintents.oisafebackup.dropbox;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.openintents.oisafebackup.MainActivity;
 import org.openintents.oisafebackup.R;
+import org.openintents.oisafebackup.SettingsActivity;
+import org.openintents.oisafebackup.Vault;
+import org.openintents.oisafebackup.metrics.Metrics;
+import org.openintents.oisafebackup.metrics.OperationMetrics;
+import org.openintents.oisafebackup.sync.FingerprintIndex;
+import org.openintents.oisafebackup.sync.MetadataCache;
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.CancelableTransport;
+import org.openintents.oisafebackup.transport.CancellationToken;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.RetryPolicy;
+import org.openintents.oisafebackup.transport.TransportException;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.SharedPreferences;
 import android.content.DialogInterface.OnClickListener;
 import android.os.AsyncTask;
 import android.util.Log;
@@ -33,117 +47,156 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.dropbox.client2.DropboxAPI;
-import com.dropbox.client2.DropboxAPI.Entry;
-import com.dropbox.client2.exception.DropboxException;
-import com.dropbox.client2.exception.DropboxIOException;
-import com.dropbox.client2.exception.DropboxParseException;
-import com.dropbox.client2.exception.DropboxPartialFileException;
-import com.dropbox.client2.exception.DropboxServerException;
-import com.dropbox.client2.exception.DropboxUnlinkedException;
-
 /**
  * Here we show getting metadata for a directory and downloading a file in a
  * background thread, trying to show typical exception handling and flow of
  * control for an app that downloads a file from Dropbox.
  */
 
-public class CheckForBackups extends AsyncTask<Void, Long, Boolean> {
+public class CheckForBackups extends AsyncTask<Void, Void, Boolean> {
 	private static final String TAG = "CheckForBackups";
 	private static final boolean debug = true;
 
 	private Context mContext;
 	private Activity mActivity;
 	private final ProgressDialog mDialog;
-	private DropboxAPI<?> mApi;
+	private BackupTransport mTransport;
+	// The main screen shows the default vault
+	private Vault mVault;
 	private String mPath;
 
-	private Entry entryBackup;
+	private RemoteEntry entryBackup;
+
+	private MetadataCache mCache;
+	private MetadataCache.Cached mCached;
+	// Cached entry is shown right away, without a progress dialog
+	private boolean mShowCached;
+	// Cached entry is young enough to skip the round trip
+	private boolean mCachedFresh;
 
-	private boolean mCanceled;
+	// Which side changed, null until the local file was compared
+	private FingerprintIndex.Direction mDirection;
+
+	// Cancel stops the request in flight too, not just the next one
+	private final CancellationToken mToken = new CancellationToken();
+	private final RetryPolicy mRetry = new RetryPolicy(mToken);
 	private String mErrorMsg;
+	private Throwable mError;
+	private OperationMetrics.Recording mRecording;
 
-	public CheckForBackups(Context context, DropboxAPI<?> api,
+	public CheckForBackups(Context context, BackupTransport transport,
 			String dropboxPath, Activity activity) {
 		// We set the context this way so we don't accidentally leak activities
 		mContext = context.getApplicationContext();
 		mActivity = activity;
 
-		mApi = api;
+		mTransport = new CancelableTransport(transport, mToken);
+		mVault = Vault.getDefault(mContext);
 		mPath = dropboxPath;
 
+		mCache = MainActivity.getMetadataCache(mContext);
+		mCached = mCache.get(mPath);
+		if (mCached != null) {
+			mCachedFresh = mCached.isFresh(SettingsActivity
+					.getMetadataTtl(mContext));
+			mShowCached = mCachedFresh
+					|| SettingsActivity.isStaleWhileRevalidate(mContext);
+		}
+
 		mDialog = new ProgressDialog(context);
 		mDialog.setMessage(context.getString(R.string.checkForBackups));
 		mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, context.getString(R.string.cancel),
 				new OnClickListener() {
 					public void onClick(DialogInterface dialog, int which) {
-						mCanceled = true;
 						mErrorMsg = mContext.getString(R.string.canceled);
+						mToken.cancel();
 					}
 				});
 
-		mDialog.show();
+		if (!mShowCached) {
+			mDialog.show();
+		}
 	}
 
-	@SuppressWarnings("StatementWithEmptyBody")
-    @Override
+	@Override
+	protected void onPreExecute() {
+		if (mShowCached) {
+			if (debug) {
+				Log.d(TAG, "cached " + mCached.entry + ", fresh=" + mCachedFresh);
+			}
+			showEntry(mCached.entry, true);
+		}
+	}
+
+	@Override
 	protected Boolean doInBackground(Void... params) {
+		mRecording = Metrics.CHECK.start();
 		try {
-			if (mCanceled) {
+			if (mToken.isCanceled()) {
 				return false;
 			}
 
+			if (mCachedFresh) {
+				entryBackup = mCached.entry;
+				compareContent();
+				return true;
+			}
+
 			// Get the metadata for a directory
-			entryBackup = mApi.metadata(mPath, 1, null, false, null);
+			entryBackup = mRetry.execute(new RetryPolicy.Operation<RemoteEntry>() {
+				public RemoteEntry run() throws TransportException {
+					return mTransport.metadata(mPath);
+				}
+			});
+			mCache.put(mPath, entryBackup);
 
 			if (debug) {
 				Log.d(TAG, "entryBackup=" + entryBackup);
 			}
+			compareContent();
 			return true;
 
-		} catch (DropboxUnlinkedException e) {
-			// The AuthSession wasn't properly authenticated or user unlinked.
-			mErrorMsg = "AuthSession error";
-		} catch (DropboxPartialFileException e) {
-			// We canceled the operation
-			mErrorMsg = "Download canceled";
-		} catch (DropboxServerException e) {
-			// Server-side exception. These are examples of what could happen,
-			// but we don't do anything special with them here.
-			if (e.error == DropboxServerException._304_NOT_MODIFIED) {
-				// won't happen since we don't pass in revision with metadata
-			} else if (e.error == DropboxServerException._401_UNAUTHORIZED) {
-				// Unauthorized, so we should unlink them. You may want to
-				// automatically log the user out in this case.
-			} else if (e.error == DropboxServerException._403_FORBIDDEN) {
-				// Not allowed to access this
-			} else if (e.error == DropboxServerException._404_NOT_FOUND) {
-				if (debug) {
-					Log.d(TAG, "Not found");
+		} catch (TransportException e) {
+			mError = e;
+			switch (e.getKind()) {
+			case UNLINKED:
+				// The AuthSession wasn't properly authenticated or user unlinked.
+				mErrorMsg = "AuthSession error";
+				break;
+			case CANCELED:
+				// We canceled the operation
+				mErrorMsg = "Download canceled";
+				break;
+			case SERVER:
+				if (e.getStatusCode() == TransportException.NOT_FOUND) {
+					if (debug) {
+						Log.d(TAG, "Not found");
+					}
+					mCache.invalidate(mPath);
+					mShowCached = false;
 				}
-			} else if (e.error == DropboxServerException._406_NOT_ACCEPTABLE) {
-				// too many entries to return
-			} else if (e.error == DropboxServerException._415_UNSUPPORTED_MEDIA) {
-				// can't be thumbnailed
-			} else if (e.error == DropboxServerException._507_INSUFFICIENT_STORAGE) {
-				// user is over quota
-			} else {
-				// Something else
-			}
-			// This gets the Dropbox error, translated into the user's language
-			mErrorMsg = e.body.userError;
-			if (mErrorMsg == null) {
-				mErrorMsg = e.body.error;
+				// This gets the server error, translated into the user's
+				// language
+				mErrorMsg = e.getUserError();
+				if (mErrorMsg == null) {
+					mErrorMsg = e.getMessage();
+				}
+				break;
+			case NETWORK:
+				// Happens all the time, but kept failing on every retry
+				mErrorMsg = "Network error.  Try again.";
+				break;
+			case PARSE:
+				// Probably due to Dropbox server restarting
+				mErrorMsg = "Dropbox error.  Try again.";
+				break;
+			default:
+				// Unknown error
+				mErrorMsg = "Unknown error.  Try again.";
 			}
-		} catch (DropboxIOException e) {
-			// Happens all the time, probably want to retry automatically.
-			mErrorMsg = "Network error.  Try again.";
-		} catch (DropboxParseException e) {
-			// Probably due to Dropbox server restarting, should retry
-			mErrorMsg = "Dropbox error.  Try again.";
-		} catch (DropboxException e) {
-			// Unknown error
-			mErrorMsg = "Unknown error.  Try again.";
+		} catch (IOException e) {
+			mError = e;
+			mErrorMsg = e.getLocalizedMessage();
 		}
 		if (debug) {
 			Log.d(TAG, "Error: " + mErrorMsg);
@@ -152,73 +205,148 @@ public class CheckForBackups extends AsyncTask<Void, Long, Boolean> {
 		return false;
 	}
 
-	@Override
-	protected void onProgressUpdate(Long... progress) {
-        // I don't believe this actually gets called.
-        int percent = 0;
-		mDialog.setProgress(percent);
-	}
-
 	@Override
 	protected void onPostExecute(Boolean result) {
+		if (result) {
+			mRecording.succeeded(mRetry.getTotalRetries());
+		} else {
+			mRecording.failed(mError, mRetry.getTotalRetries());
+		}
 		mDialog.dismiss();
+
+		if (result) {
+			if (!mCachedFresh || mDirection != null) {
+				showEntry(entryBackup, mCachedFresh);
+			}
+		} else if (mShowCached) {
+			// Keep showing the cached state, refreshing it failed
+			showToast(mErrorMsg);
+		} else {
+			TextView mBackupFileStatus = (TextView) mActivity
+					.findViewById(R.id.dbBackupFileStatus);
+			TextView mRev = (TextView) mActivity
+					.findViewById(R.id.dbRev);
+			Button mGetFromDropbox = (Button) mActivity.findViewById(R.id.getFromDropbox);
+			// Couldn't download it, so show an error
+			showToast(mErrorMsg);
+			mBackupFileStatus.setText(mErrorMsg);
+			mRev.setText("");
+			mGetFromDropbox.setEnabled(false);
+		}
+	}
+
+	/**
+	 * Find out which side changed by comparing the local backup with what
+	 * was last transferred, instead of trusting the stored revision alone.
+	 */
+	private void compareContent() {
+		String backupPath = mVault.remotePath;
+		// A manifest or head has a revision but not the backup's content
+		String contentHash = mPath.equals(backupPath) ? entryBackup.contentHash
+				: null;
+		FingerprintIndex index = FingerprintIndex.get(new File(
+				mContext.getFilesDir(), FingerprintIndex.FILE_NAME));
+		try {
+			mDirection = index.direction(
+					mVault.local,
+					backupPath, entryBackup.rev, contentHash);
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't compare with the local backup", e);
+		}
+		if (debug) {
+			Log.d(TAG, "direction=" + mDirection);
+		}
+	}
+
+	/**
+	 * Show the state of the remote backup.
+	 * 
+	 * @param cached
+	 *            entry comes from the cache and not from the server
+	 */
+	private void showEntry(RemoteEntry entry, boolean cached) {
 		TextView mBackupFileStatus = (TextView) mActivity
 				.findViewById(R.id.dbBackupFileStatus);
 		TextView mRev = (TextView) mActivity
 				.findViewById(R.id.dbRev);
 		Button mGetFromDropbox = (Button) mActivity.findViewById(R.id.getFromDropbox);
-		
-		if (result) {
-			TextView mModified = (TextView) mActivity
-					.findViewById(R.id.dropboxModified);
-			mModified.setText(entryBackup.modified);
-			String storedRev=getStoredRev();
-			if (debug) {
-				Log.d(TAG, "entryBackup.bytes=" + entryBackup.bytes);
-				Log.d(TAG, "entryBackup.modified=" + entryBackup.modified);
-				Log.d(TAG, "entryBackup.clientMtime=" + entryBackup.clientMtime);
-				Log.d(TAG, "entryBackup.path=" + entryBackup.path);
-				Log.d(TAG, "entryBackup.rev=" + entryBackup.rev);
-				Log.d(TAG, "entryBackup.root=" + entryBackup.root);
-				Log.d(TAG, "entryBackup.size=" + entryBackup.size);
-				Log.d(TAG, "storedRev=" + storedRev);
-			}
-			// if we found an entry that has zero bytes, then it's deleted
-			// So only store if file has data
-			if (entryBackup.bytes > 0) {
-				if (storedRev.equals("") || entryBackup.rev.equals(storedRev)) {
-					MainActivity.storeEntry(mContext, entryBackup);
+		TextView mModified = (TextView) mActivity
+				.findViewById(R.id.dropboxModified);
+		mModified.setText(entry.modified);
+		String storedRev=getStoredRev();
+		if (debug) {
+			Log.d(TAG, "entry.bytes=" + entry.bytes);
+			Log.d(TAG, "entry.modified=" + entry.modified);
+			Log.d(TAG, "entry.path=" + entry.path);
+			Log.d(TAG, "entry.rev=" + entry.rev);
+			Log.d(TAG, "storedRev=" + storedRev);
+		}
+		// if we found an entry that has zero bytes, then it's deleted
+		// So only store if file has data
+		if (entry.bytes > 0) {
+			if (mDirection == null
+					|| mDirection == FingerprintIndex.Direction.UNKNOWN) {
+				// Nothing to compare content with, go by revision
+				if (storedRev.equals("") || entry.rev.equals(storedRev)) {
+					if (!cached) {
+						MainActivity.storeEntry(mContext, mVault, entry);
+					}
 					mBackupFileStatus.setText(mContext
 							.getString(R.string.dropboxHasBackupFile));
 				} else {
 					mBackupFileStatus.setText(mContext
 							.getString(R.string.dropboxNewerBackup));
 				}
-                mRev.setText(entryBackup.rev);
-				mGetFromDropbox.setEnabled(true);
 			} else {
-				mBackupFileStatus.setText(mContext
-						.getString(R.string.dropboxHasBackupFileDeleted));
-				mGetFromDropbox.setEnabled(false);
+				showDirection(entry, cached);
 			}
+			mRev.setText(entry.rev);
+			mGetFromDropbox.setEnabled(true);
 		} else {
-			// Couldn't download it, so show an error
-			showToast(mErrorMsg);
-			mBackupFileStatus.setText(mErrorMsg);
-			mRev.setText("");
+			mBackupFileStatus.setText(mContext
+					.getString(R.string.dropboxHasBackupFileDeleted));
 			mGetFromDropbox.setEnabled(false);
 		}
 	}
 
+	private void showDirection(RemoteEntry entry, boolean cached) {
+		TextView mBackupFileStatus = (TextView) mActivity
+				.findViewById(R.id.dbBackupFileStatus);
+		switch (mDirection) {
+		case SAME:
+			// Same content, even if the revision isn't the one we stored
+			if (!cached) {
+				MainActivity.storeEntry(mContext, mVault, entry);
+			}
+			mBackupFileStatus.setText(mContext
+					.getString(R.string.dropboxHasBackupFile));
+			break;
+		case UPLOAD:
+			// Dropbox still has what we last sent or restored
+			if (!cached) {
+				MainActivity.storeEntry(mContext, mVault, entry);
+			}
+			mBackupFileStatus.setText(mContext
+					.getString(R.string.localNewerBackup));
+			break;
+		case DOWNLOAD:
+			mBackupFileStatus.setText(mContext
+					.getString(R.string.dropboxNewerBackup));
+			break;
+		default:
+			mBackupFileStatus.setText(mContext
+					.getString(R.string.backupsDiffer));
+		}
+	}
+
 	/**
 	 * Get the local stored file revision
 	 * 
 	 * @return stored Rev or empty string
 	 */
 	private String getStoredRev() {
-		SharedPreferences prefs = mContext.getSharedPreferences(
-				MainActivity.ACCOUNT_PREFS_NAME, Context.MODE_PRIVATE);
-        return prefs.getString(MainActivity.DB_REV_NAME, "");
+		String rev = MainActivity.getStoredRev(mContext, mVault);
+		return rev == null ? "" : rev;
 	}
 
 	private void showToast(String msg) {
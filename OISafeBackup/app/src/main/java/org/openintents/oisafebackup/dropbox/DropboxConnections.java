@@ -0,0 +1,158 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.dropbox;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.dropbox.client2.android.AndroidAuthSession;
+import com.dropbox.client2.session.AppKeyPair;
+
+/**
+ * One HTTP client for all Dropbox calls in the process. The client the SDK
+ * builds pools connections and keeps them alive, but only for the session
+ * that built it, and every check, upload and restore used to get a new
+ * session, so each paid for its own DNS lookup, TCP and TLS handshake. All
+ * sessions now share the client of the first one, with its pool and its
+ * socket factory, so a check followed by a restore uses the same
+ * connection.
+ */
+public class DropboxConnections {
+	private static final String TAG = "DropboxConnections";
+	private static final boolean debug = true;
+
+	/** How long an idle connection is kept when the server doesn't say */
+	static final long KEEP_ALIVE = 30 * 1000;
+	private static final long PRECONNECT_TIMEOUT = 10 * 1000;
+	private static final int HTTPS_PORT = 443;
+
+	private static volatile HttpClient sClient;
+
+	/**
+	 * @return a new session that uses the shared client
+	 */
+	public static AndroidAuthSession newSession(AppKeyPair appKeyPair) {
+		return new SharedClientSession(appKeyPair);
+	}
+
+	private static class SharedClientSession extends AndroidAuthSession {
+		SharedClientSession(AppKeyPair appKeyPair) {
+			super(appKeyPair);
+		}
+
+		@Override
+		public HttpClient getHttpClient() {
+			HttpClient client = sClient;
+			if (client == null) {
+				// Outside the lock, the SDK synchronizes on the session
+				client = super.getHttpClient();
+				synchronized (DropboxConnections.class) {
+					if (sClient == null) {
+						keepAlive(client);
+						sClient = client;
+					}
+					client = sClient;
+				}
+			}
+			return client;
+		}
+	}
+
+	/**
+	 * Keep idle connections for as long as the server allows, or
+	 * {@link #KEEP_ALIVE} if it doesn't say, long enough for the restore the
+	 * user starts after reading the result of a check.
+	 */
+	private static void keepAlive(HttpClient client) {
+		if (client instanceof AbstractHttpClient) {
+			((AbstractHttpClient) client)
+					.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+						@Override
+						public long getKeepAliveDuration(HttpResponse response,
+								HttpContext context) {
+							long duration = super.getKeepAliveDuration(
+									response, context);
+							return duration > 0 ? duration : KEEP_ALIVE;
+						}
+					});
+		}
+	}
+
+	/**
+	 * Open a connection to the API and the content server in the
+	 * background, so the first call finds one ready in the pool. Does
+	 * nothing where a pooled connection is still open. Failures are left for
+	 * the real call to report.
+	 */
+	public static void preconnect(final AndroidAuthSession session) {
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+			public void run() {
+				HttpClient client = session.getHttpClient();
+				client.getConnectionManager().closeExpiredConnections();
+				open(client, session.getAPIServer());
+				open(client, session.getContentServer());
+			}
+		});
+	}
+
+	private static void open(HttpClient client, String host) {
+		ClientConnectionManager manager = client.getConnectionManager();
+		HttpRoute route = new HttpRoute(new HttpHost(host, HTTPS_PORT,
+				"https"), null, true);
+		ManagedClientConnection connection = null;
+		long start = System.currentTimeMillis();
+		try {
+			connection = manager.requestConnection(route, null).getConnection(
+					PRECONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (!connection.isOpen()) {
+				connection.open(route, new BasicHttpContext(),
+						client.getParams());
+				if (debug) {
+					Log.d(TAG, "connected to " + host + " in "
+							+ (System.currentTimeMillis() - start) + " ms");
+				}
+			}
+			connection.markReusable();
+		} catch (ConnectionPoolTimeoutException e) {
+			// All connections are busy, so nothing to prepare
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't connect to " + host, e);
+		} finally {
+			if (connection != null) {
+				// Back into the pool if open, closed otherwise
+				manager.releaseConnection(connection, KEEP_ALIVE,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.oisafebackup.dropbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.InFlightCalls;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.TransferListener;
+import org.openintents.oisafebackup.transport.TransportException;
+import org.openintents.oisafebackup.transport.UploadSession;
+
+import com.dropbox.client2.DropboxAPI;
+import com.dropbox.client2.DropboxAPI.ChunkedUploadRequest;
+import com.dropbox.client2.DropboxAPI.ChunkedUploadResponse;
+import com.dropbox.client2.DropboxAPI.DropboxFileInfo;
+import com.dropbox.client2.DropboxAPI.DropboxInputStream;
+import com.dropbox.client2.DropboxAPI.Entry;
+import com.dropbox.client2.DropboxAPI.UploadRequest;
+import com.dropbox.client2.ProgressListener;
+import com.dropbox.client2.exception.DropboxException;
+import com.dropbox.client2.exception.DropboxFileSizeException;
+import com.dropbox.client2.exception.DropboxIOException;
+import com.dropbox.client2.exception.DropboxParseException;
+import com.dropbox.client2.exception.DropboxPartialFileException;
+import com.dropbox.client2.exception.DropboxServerException;
+import com.dropbox.client2.exception.DropboxUnlinkedException;
+
+/**
+ * BackupTransport backed by the Dropbox Core API.
+ */
+public class DropboxTransport implements BackupTransport {
+
+	private final DropboxAPI<?> mApi;
+	// The request of every call in flight, so each can be aborted by itself
+	private final InFlightCalls mCalls = new InFlightCalls();
+
+	public DropboxTransport(DropboxAPI<?> api) {
+		mApi = api;
+	}
+
+	public RemoteEntry metadata(String path) throws TransportException {
+		try {
+			return toRemoteEntry(mApi.metadata(path, 1, null, false, null));
+		} catch (DropboxException e) {
+			throw translate(e);
+		}
+	}
+
+	public RemoteEntry upload(String path, InputStream in, long length,
+			TransferListener listener) throws TransportException {
+		InFlightCalls.Call call = mCalls.begin();
+		try {
+			// By creating a request, we get a handle to the putFile operation,
+			// so we can cancel it later if we want to
+			final UploadRequest request = mApi.putFileOverwriteRequest(path,
+					in, length, toProgressListener(listener));
+			call.onAbort(new Runnable() {
+				public void run() {
+					// This will cancel the putFile operation
+					request.abort();
+				}
+			});
+			return toRemoteEntry(request.upload());
+		} catch (DropboxException e) {
+			throw translate(e);
+		} finally {
+			mCalls.end(call);
+		}
+	}
+
+	public RemoteEntry download(String path, String rev, OutputStream out,
+			TransferListener listener) throws TransportException {
+		InFlightCalls.Call call = mCalls.begin();
+		try {
+			// Same as getFile(), but with a handle to abort the request by
+			final DropboxInputStream in = mApi.getFileStream(path, rev);
+			try {
+				call.onAbort(new Runnable() {
+					public void run() {
+						// Closing aborts the request, a blocked read fails
+						// right away
+						close(in);
+					}
+				});
+				in.copyStreamToOutput(out, toProgressListener(listener));
+				DropboxFileInfo info = in.getFileInfo();
+				return info == null ? null : toRemoteEntry(info.getMetadata());
+			} finally {
+				call.onAbort(null);
+				close(in);
+			}
+		} catch (DropboxException e) {
+			if (call.isAborted()) {
+				throw new TransportException(TransportException.Kind.CANCELED,
+						"Download canceled", e);
+			}
+			throw translate(e);
+		} finally {
+			mCalls.end(call);
+		}
+	}
+
+	public UploadSession appendChunk(String uploadId, long offset,
+			InputStream in, int length, TransferListener listener)
+			throws TransportException {
+		InFlightCalls.Call call = mCalls.begin();
+		try {
+			final ChunkedUploadRequest request = mApi.chunkedUploadRequest(in,
+					length, toProgressListener(listener), offset, uploadId);
+			call.onAbort(new Runnable() {
+				public void run() {
+					request.abort();
+				}
+			});
+			ChunkedUploadResponse response = request.upload();
+			return new UploadSession(response.getUploadId(),
+					response.getOffset());
+		} catch (DropboxServerException e) {
+			// A wrong offset is answered with the offset the server expects
+			if (e.error == DropboxServerException._400_BAD_REQUEST
+					&& e.parsedResponse != null
+					&& e.parsedResponse.get("offset") instanceof Number) {
+				Object id = e.parsedResponse.get("upload_id");
+				return new UploadSession(id != null ? id.toString() : uploadId,
+						((Number) e.parsedResponse.get("offset")).longValue());
+			}
+			throw translate(e);
+		} catch (DropboxException e) {
+			throw translate(e);
+		} finally {
+			mCalls.end(call);
+		}
+	}
+
+	public RemoteEntry commitSession(String path, String uploadId)
+			throws TransportException {
+		try {
+			return toRemoteEntry(mApi.commitChunkedUpload(path, uploadId, true));
+		} catch (DropboxException e) {
+			throw translate(e);
+		}
+	}
+
+	public RemoteEntry copy(String fromPath, String toPath)
+			throws TransportException {
+		try {
+			return toRemoteEntry(mApi.copy(fromPath, toPath));
+		} catch (DropboxException e) {
+			throw translate(e);
+		}
+	}
+
+	public void delete(String path) throws TransportException {
+		try {
+			mApi.delete(path);
+		} catch (DropboxException e) {
+			throw translate(e);
+		}
+	}
+
+	public void abort(Thread thread) {
+		mCalls.abort(thread);
+	}
+
+	private static void close(DropboxInputStream in) {
+		try {
+			in.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	static RemoteEntry toRemoteEntry(Entry entry) {
+		if (entry == null) {
+			return null;
+		}
+		RemoteEntry remote = new RemoteEntry(entry.path, entry.rev,
+				entry.bytes, entry.modified);
+		remote.isDeleted = entry.isDeleted;
+		// API v1 entries have no content_hash, it stays null
+		return remote;
+	}
+
+	private static ProgressListener toProgressListener(
+			final TransferListener listener) {
+		if (listener == null) {
+			return null;
+		}
+		return new ProgressListener() {
+			@Override
+			public long progressInterval() {
+				return listener.progressInterval();
+			}
+
+			@Override
+			public void onProgress(long bytes, long total) {
+				listener.onProgress(bytes, total);
+			}
+		};
+	}
+
+	/**
+	 * Translate the Dropbox exception hierarchy into a TransportException.
+	 */
+	static TransportException translate(DropboxException e) {
+		if (e instanceof DropboxUnlinkedException) {
+			// The AuthSession wasn't properly authenticated or user unlinked.
+			return new TransportException(TransportException.Kind.UNLINKED,
+					"AuthSession error", e);
+		} else if (e instanceof DropboxFileSizeException) {
+			// File size too big to upload via the API
+			return new TransportException(TransportException.Kind.FILE_SIZE,
+					e.getMessage(), e);
+		} else if (e instanceof DropboxPartialFileException) {
+			// We canceled the operation
+			return new TransportException(TransportException.Kind.CANCELED,
+					e.getMessage(), e);
+		} else if (e instanceof DropboxServerException) {
+			DropboxServerException se = (DropboxServerException) e;
+			// This gets the Dropbox error, translated into the user's language
+			String userError = null;
+			if (se.body != null) {
+				userError = se.body.userError;
+				if (userError == null) {
+					userError = se.body.error;
+				}
+			}
+			return new TransportException(TransportException.Kind.SERVER,
+					se.error, se.reason, userError, e);
+		} else if (e instanceof DropboxIOException) {
+			// Happens all the time
+			return new TransportException(TransportException.Kind.NETWORK,
+					e.getMessage(), e);
+		} else if (e instanceof DropboxParseException) {
+			// Probably due to Dropbox server restarting
+			return new TransportException(TransportException.Kind.PARSE,
+					e.getMessage(), e);
+		}
+		return new TransportException(TransportException.Kind.UNKNOWN,
+				e.getMessage(), e);
+	}
+}
@@ -19,13 +19,39 @@
 package org.openintents.oisafebackup.dropbox;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.openintents.oisafebackup.MainActivity;
 import org.openintents.oisafebackup.R;
+import org.openintents.oisafebackup.SettingsActivity;
+import org.openintents.oisafebackup.Vault;
+import org.openintents.oisafebackup.history.SnapshotStore;
+import org.openintents.oisafebackup.metrics.Metrics;
+import org.openintents.oisafebackup.metrics.OperationMetrics;
+import org.openintents.oisafebackup.stream.BackupCipher;
+import org.openintents.oisafebackup.stream.BackupFormat;
+import org.openintents.oisafebackup.stream.BackupValidator;
+import org.openintents.oisafebackup.stream.CountingOutputStream;
+import org.openintents.oisafebackup.stream.InvalidBackupException;
+import org.openintents.oisafebackup.sync.DeltaSync;
+import org.openintents.oisafebackup.sync.FingerprintIndex;
+import org.openintents.oisafebackup.sync.RecordJournal;
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.CancelableTransport;
+import org.openintents.oisafebackup.transport.CancellationToken;
+import org.openintents.oisafebackup.transport.ProgressTracker;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.RetryPolicy;
+import org.openintents.oisafebackup.transport.TransferListener;
+import org.openintents.oisafebackup.transport.TransportException;
 
+import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -34,132 +60,472 @@ import android.os.AsyncTask;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.dropbox.client2.DropboxAPI;
-import com.dropbox.client2.DropboxAPI.DropboxFileInfo;
-import com.dropbox.client2.ProgressListener;
-import com.dropbox.client2.exception.DropboxException;
-import com.dropbox.client2.exception.DropboxIOException;
-import com.dropbox.client2.exception.DropboxParseException;
-import com.dropbox.client2.exception.DropboxPartialFileException;
-import com.dropbox.client2.exception.DropboxServerException;
-import com.dropbox.client2.exception.DropboxUnlinkedException;
-
 /**
  * This was originally taken from the Dropbox example.
  * <p/>
  * This is used to retrieve the oisafe.xml backup file and store it locally to
  * be restored by OI Safe.
+ * <p/>
+ * A preview streams the backup through the validator instead, shows what it
+ * holds and offers to restore it. Nothing is written to disk and memory use
+ * doesn't depend on the size of the backup.
  */
 
-public class GetBackup extends AsyncTask<Void, Long, Boolean> {
+public class GetBackup extends AsyncTask<Void, Void, Boolean> {
     private static final String TAG = "GetBackup";
     private static final boolean debug = true;
 
+    private static final String PART_SUFFIX = ".part";
+
     private Context mContext;
     private final ProgressDialog mDialog;
-    private DropboxAPI<?> mApi;
+    private BackupTransport mTransport;
+    private Vault mVault;
     private String mPath;
+    // Content hash of the version restored, null if not known up front
+    private String mHash;
 
-    private boolean mCanceled;
-    private Long mFileLen;
     private String mErrorMsg;
+    private Throwable mError;
+    private OperationMetrics.Recording mRecording;
+    private final ProgressTracker mTracker = new ProgressTracker(1);
+    private ProgressUpdater mUpdater;
+    private boolean mUnchanged;
+    /** How the backup being restored was uploaded */
+    private String mMode;
+    // Cancel stops the transfer in flight too, not just the next request
+    private final CancellationToken mToken = new CancellationToken();
+    private final RetryPolicy mRetry = new RetryPolicy(mToken);
+
+    // Only set for a preview, to show the summary and restore from there
+    private final Context mOwner;
+    // As passed in, so a restore from the summary isn't tied to the preview's
+    // cancel
+    private final BackupTransport mRawTransport;
+    private BackupValidator mSummary;
+    private RemoteEntry mPreviewed;
 
-    public GetBackup(Context context, DropboxAPI<?> api, String dropboxPath) {
+    /**
+     * @param dropboxPath
+     *            the backup of vault or an older version of it, null for a
+     *            version that is only kept on the device
+     * @param hash
+     *            content hash of that version if known, it is then rebuilt
+     *            from a snapshot without going online if there is one
+     * @param showProgress
+     *            false to restore without a progress dialog, e.g. while
+     *            syncing all vaults. Only the result is shown then.
+     */
+    public GetBackup(Context context, BackupTransport transport, Vault vault,
+            String dropboxPath, String hash, boolean showProgress) {
+        this(context, transport, vault, dropboxPath, hash, showProgress, false);
+    }
+
+    private GetBackup(Context context, BackupTransport transport, Vault vault,
+            String dropboxPath, String hash, boolean showProgress, boolean preview) {
         // We set the context this way so we don't accidentally leak activities
         mContext = context.getApplicationContext();
+        mOwner = preview ? context : null;
 
-        mApi = api;
+        mRawTransport = transport;
+        mTransport = new CancelableTransport(transport, mToken);
+        mVault = vault;
         mPath = dropboxPath;
+        mHash = hash;
 
+        if (!showProgress) {
+            mDialog = null;
+            return;
+        }
+        String message = context.getString(preview ? R.string.previewingBackup
+                : R.string.gettingBackup);
         mDialog = new ProgressDialog(context);
-        mDialog.setMessage(context.getString(R.string.gettingBackup));
+        mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mDialog.setMax(100);
+        mDialog.setMessage(message);
         mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, context.getString(R.string.cancel),
                 new OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) {
-                        mCanceled = true;
                         mErrorMsg = mContext.getString(R.string.canceled);
+                        mToken.cancel();
                     }
                 }
         );
 
         mDialog.show();
+        mUpdater = new ProgressUpdater(mContext, mDialog, message, mTracker);
+        mUpdater.start();
+    }
+
+    /**
+     * Look at what dropboxPath holds before restoring it.
+     * 
+     * @param context
+     *            an activity, for the progress dialog and the summary
+     */
+    public static GetBackup preview(Context context, BackupTransport transport,
+            Vault vault, String dropboxPath) {
+        return new GetBackup(context, transport, vault, dropboxPath, null, true,
+                true);
     }
 
-    @SuppressWarnings("StatementWithEmptyBody")
     @Override
     protected Boolean doInBackground(Void... params) {
-        FileOutputStream outputStream = null;
+        mRecording = (mOwner != null ? Metrics.PREVIEW : Metrics.RESTORE).start();
+        mTracker.setRecording(mRecording);
+        File partFile = null;
+        boolean replaced = false;
         try {
-            if (mCanceled) {
+            if (mToken.isCanceled()) {
                 return false;
             }
 
-            String localPath = MainActivity.PREFERENCE_BACKUP_PATH_DEFAULT_VALUE;
-            File file = new File(localPath);
-            outputStream = new FileOutputStream(file);
-            if (debug) {
-                Log.d(TAG, "getting " + mPath + " and saving to " + localPath);
+            File file = mVault.local;
+            String localPath = file.getPath();
+            FingerprintIndex index = FingerprintIndex.get(new File(mContext.getFilesDir(),
+                    FingerprintIndex.FILE_NAME));
+            partFile = new File(localPath + PART_SUFFIX);
+
+            // A version kept on the device doesn't need Dropbox at all
+            SnapshotStore store = MainActivity.getSnapshotStore(mContext);
+            SnapshotStore.Snapshot snapshot = store.find(mVault.remotePath, mHash);
+            if (snapshot != null && rebuild(store, snapshot, partFile)) {
+                if (!partFile.renameTo(file)) {
+                    throw new IOException("Couldn't replace " + localPath);
+                }
+                replaced = true;
+                return true;
+            }
+            if (mPath == null) {
+                throw new IOException(mContext.getString(R.string.snapshotMissing));
+            }
+
+            // Ask for the revision first, the body is only needed if it changed
+            RemoteEntry remote = findBackup();
+            String mode = mMode;
+            if (remote == null) {
+                remote = mRetry.execute(new RetryPolicy.Operation<RemoteEntry>() {
+                    public RemoteEntry run() throws TransportException {
+                        return mTransport.metadata(mPath);
+                    }
+                });
+            }
+            MainActivity.getMetadataCache(mContext).put(remote.path, remote);
+            if (mOwner != null) {
+                final RemoteEntry expected = remote;
+                final String previewMode = mode;
+                mRetry.execute(new RetryPolicy.Operation<RemoteEntry>() {
+                    public RemoteEntry run() throws TransportException, IOException {
+                        return download(null, expected, previewMode);
+                    }
+                });
+                mPreviewed = remote;
+                return true;
             }
-            DropboxFileInfo info = mApi.getFile(mPath, null, outputStream, new ProgressListener() {
-                @Override
-                public void onProgress(long bytes, long total) {
-                    mFileLen=total;
-                    publishProgress(bytes);
+            if (index.check(file, mPath, remote.rev).unchanged) {
+                if (debug) {
+                    Log.d(TAG, localPath + " already has rev " + remote.rev);
                 }
-            });
+                mUnchanged = true;
+                return true;
+            }
+
+            // Only a plain whole file has the content hash of the backup itself
+            snapshot = null;
+            if (SettingsActivity.UPLOAD_MODE_WHOLE.equals(mode)) {
+                snapshot = store.find(mVault.remotePath, remote.contentHash);
+            }
+            boolean rebuilt = snapshot != null && rebuild(store, snapshot, partFile);
+            RemoteEntry entry;
+            if (rebuilt) {
+                entry = remote;
+            } else {
+                // Download next to the backup and only replace it once complete, so a
+                // failed or canceled download leaves the good local copy alone
+                if (debug) {
+                    Log.d(TAG, "getting " + mPath + " and saving to " + partFile);
+                }
+                final File part = partFile;
+                final RemoteEntry expected = remote;
+                final String downloadMode = mode;
+                // Every attempt starts over with an empty part file
+                entry = mRetry.execute(new RetryPolicy.Operation<RemoteEntry>() {
+                    public RemoteEntry run() throws TransportException, IOException {
+                        return download(part, expected, downloadMode);
+                    }
+                });
 
-            if (debug) {
-                Log.d(TAG, "info=" + info);
+                if (debug) {
+                    Log.d(TAG, "entry=" + entry + " after " + mRetry.getAttempts()
+                            + " attempt(s)");
+                }
             }
-            if (info != null) {
-                MainActivity.storeEntry(mContext, info.getMetadata());
+            if (!partFile.renameTo(file)) {
+                throw new IOException("Couldn't replace " + localPath);
+            }
+            replaced = true;
+            if (!rebuilt) {
+                MainActivity.addSnapshot(mContext, mVault);
+            }
+
+            if (entry != null) {
+                if (isLive()) {
+                    // An older version leaves the rev of the live backup
+                    // alone, else that would look newer from now on
+                    MainActivity.storeEntry(mContext, mVault, entry);
+                }
+                MainActivity.getMetadataCache(mContext).put(entry.path, entry);
+                try {
+                    // The local file now matches the remote one, no need to send it back
+                    index.record(file, null, mPath, entry.rev);
+                } catch (IOException ignored) {
+                }
             }
             return true;
 
-        } catch (FileNotFoundException e) {
+        } catch (InvalidBackupException e) {
+            mError = e;
+            mErrorMsg = getInvalidMessage(e);
+        } catch (IOException e) {
+            mError = e;
             mErrorMsg = e.getLocalizedMessage();
-        } catch (DropboxUnlinkedException e) {
-            // The AuthSession wasn't properly authenticated or user unlinked.
-        } catch (DropboxPartialFileException e) {
-            // We canceled the operation
-            mErrorMsg = "Download canceled";
-        } catch (DropboxServerException e) {
-            // Server-side exception. These are examples of what could happen,
-            // but we don't do anything special with them here.
-            if (e.error == DropboxServerException._304_NOT_MODIFIED) {
-                // won't happen since we don't pass in revision with metadata
-            } else if (e.error == DropboxServerException._401_UNAUTHORIZED) {
-                // Unauthorized, so we should unlink them. You may want to
-                // automatically log the user out in this case.
-            } else if (e.error == DropboxServerException._403_FORBIDDEN) {
-                // Not allowed to access this
-            } else if (e.error == DropboxServerException._404_NOT_FOUND) {
-                if (debug) {
-                    Log.d(TAG, "Not found");
+        } catch (TransportException e) {
+            mError = e;
+            switch (e.getKind()) {
+                case UNLINKED:
+                    // The AuthSession wasn't properly authenticated or user unlinked.
+                    break;
+                case CANCELED:
+                    // We canceled the operation
+                    mErrorMsg = "Download canceled";
+                    break;
+                case SERVER:
+                    if (e.getStatusCode() == TransportException.NOT_FOUND) {
+                        if (debug) {
+                            Log.d(TAG, "Not found");
+                        }
+                    }
+                    // This gets the server error, translated into the user's language
+                    mErrorMsg = e.getUserError();
+                    if (mErrorMsg == null) {
+                        mErrorMsg = e.getMessage();
+                    }
+                    break;
+                case NETWORK:
+                    // Happens all the time, but kept failing on every retry
+                    mErrorMsg = "Network error.  Try again.";
+                    break;
+                case PARSE:
+                    // Probably due to Dropbox server restarting
+                    mErrorMsg = "Dropbox error.  Try again.";
+                    break;
+                default:
+                    // Unknown error
+                    mErrorMsg = "Unknown error.  Try again.";
+            }
+            InvalidBackupException invalid = InvalidBackupException.find(e);
+            if (invalid != null) {
+                // The transfer failed on the data, not on the network
+                mErrorMsg = getInvalidMessage(invalid);
+            }
+        } finally {
+            if (partFile != null && !replaced) {
+                partFile.delete();
+            }
+        }
+        if (debug) {
+            Log.d(TAG, "Error: " + mErrorMsg);
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if mPath is the backup of the vault itself, false for an
+     *         older version of it
+     */
+    private boolean isLive() {
+        return mVault.remotePath.equals(mPath);
+    }
+
+    /**
+     * Find out how the backup at mPath was last uploaded. The plain file, the
+     * delta manifest and the record journal head may all be there, left over
+     * from before the upload mode was changed, here or on another device. The
+     * one written last is the backup, the mode set here only breaks ties. The
+     * three are looked up at the same time, so it takes one round trip.
+     * 
+     * @return metadata of the file the backup was found by, with mMode set to
+     *         the mode it was uploaded in, or null if there is no backup
+     */
+    private RemoteEntry findBackup() throws TransportException, IOException {
+        String[] modes = {
+                SettingsActivity.UPLOAD_MODE_WHOLE, SettingsActivity.UPLOAD_MODE_DELTA,
+                SettingsActivity.UPLOAD_MODE_RECORDS
+        };
+        String[] paths = {
+                mPath, DeltaSync.manifestPath(mPath), RecordJournal.headPath(mPath)
+        };
+        @SuppressWarnings("unchecked")
+        FutureTask<RemoteEntry>[] lookups = new FutureTask[paths.length];
+        for (int i = 1; i < paths.length; i++) {
+            final String path = paths[i];
+            lookups[i] = new FutureTask<RemoteEntry>(new Callable<RemoteEntry>() {
+                public RemoteEntry call() throws TransportException, IOException {
+                    return getMetadata(path);
+                }
+            });
+            new Thread(lookups[i], "Metadata of " + path).start();
+        }
+        RemoteEntry[] entries = new RemoteEntry[paths.length];
+        entries[0] = getMetadata(paths[0]);
+        for (int i = 1; i < paths.length; i++) {
+            entries[i] = get(lookups[i]);
+        }
+
+        String preferred = SettingsActivity.getUploadMode(mContext);
+        mMode = SettingsActivity.UPLOAD_MODE_WHOLE;
+        RemoteEntry found = null;
+        long newest = Long.MIN_VALUE;
+        for (int i = 0; i < modes.length; i++) {
+            RemoteEntry entry = entries[i];
+            if (entry == null || entry.isDeleted) {
+                continue;
+            }
+            long time = entry.getModifiedTime();
+            if (found == null || time > newest
+                    || (time == newest && modes[i].equals(preferred))) {
+                mMode = modes[i];
+                found = entry;
+                newest = time;
+            }
+        }
+        if (debug) {
+            Log.d(TAG, mPath + " was last uploaded as " + mMode);
+        }
+        return found;
+    }
+
+    private static RemoteEntry get(FutureTask<RemoteEntry> lookup)
+            throws TransportException, IOException {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransportException(TransportException.Kind.CANCELED,
+                    "Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransportException) {
+                throw (TransportException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Rebuild the backup into part from a snapshot on the device.
+     * 
+     * @return false if the snapshot is damaged, the backup has to be
+     *         downloaded then
+     */
+    private boolean rebuild(SnapshotStore store, SnapshotStore.Snapshot snapshot,
+            File part) throws IOException {
+        if (debug) {
+            Log.d(TAG, "rebuilding " + snapshot + " into " + part);
+        }
+        FileOutputStream out = new FileOutputStream(part);
+        try {
+            store.restore(snapshot, out);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't rebuild " + snapshot, e);
+            return false;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * One attempt at fetching the backup into part. A download that comes up
+     * short is reported as a network error so it gets retried.
+     * 
+     * @param part
+     *            null to only summarize the backup for a preview
+     * 
+     * @param mode
+     *            how the backup was uploaded, one of the upload modes of
+     *            {@link SettingsActivity}
+     */
+    private RemoteEntry download(File part, RemoteEntry remote, String mode)
+            throws TransportException, IOException {
+        // A new attempt starts the bar over
+        mTracker.start(0, mContext.getString(R.string.dropbox), remote.bytes);
+        TransferListener listener = mTracker.listener(0);
+        // Encrypted and compressed backups are decrypted and decompressed on
+        // the way to the file, and checked once plain so a broken one never
+        // replaces the local copy
+        BackupValidator validator = new BackupValidator();
+        CountingOutputStream counter = new CountingOutputStream(
+                BackupCipher.decrypter(BackupFormat.decoder(part == null
+                        ? validator.sink()
+                        : validator.wrap(new FileOutputStream(part))),
+                        SettingsActivity.getPassphrase(mContext)));
+        OutputStream outputStream = counter;
+        try {
+            RemoteEntry entry;
+            if (SettingsActivity.UPLOAD_MODE_DELTA.equals(mode)) {
+                // Every chunk and the whole file are checked against the manifest
+                DeltaSync.Result result = new DeltaSync(mTransport).restore(mPath,
+                        outputStream, listener);
+                if (part != null && isLive()) {
+                    MainActivity.storeManifest(mContext, mVault, result.manifest);
+                }
+                entry = result.entry;
+            } else if (SettingsActivity.UPLOAD_MODE_RECORDS.equals(mode)
+                    && part == null) {
+                // Streamed into the summary, the records are never all in memory
+                entry = new RecordJournal(mTransport).writeXml(mPath, outputStream);
+            } else if (SettingsActivity.UPLOAD_MODE_RECORDS.equals(mode)) {
+                // Snapshot and journal are replayed and written out as XML
+                RecordJournal.Result result = new RecordJournal(mTransport)
+                        .restore(mPath, isLive() ? mVault.getRecordState(mContext)
+                                : null);
+                validator.expectEntries(result.records.getEntryCount());
+                result.records.writeXml(outputStream);
+                if (isLive()) {
+                    MainActivity.storeManifest(mContext, mVault, null);
                 }
-            } else if (e.error == DropboxServerException._406_NOT_ACCEPTABLE) {
-                // too many entries to return
-            } else if (e.error == DropboxServerException._415_UNSUPPORTED_MEDIA) {
-                // can't be thumbnailed
-            } else if (e.error == DropboxServerException._507_INSUFFICIENT_STORAGE) {
-                // user is over quota
+                entry = result.head;
             } else {
-                // Something else
-            }
-            // This gets the Dropbox error, translated into the user's language
-            mErrorMsg = e.body.userError;
-            if (mErrorMsg == null) {
-                mErrorMsg = e.body.error;
-            }
-        } catch (DropboxIOException e) {
-            // Happens all the time, probably want to retry automatically.
-            mErrorMsg = "Network error.  Try again.";
-        } catch (DropboxParseException e) {
-            // Probably due to Dropbox server restarting, should retry
-            mErrorMsg = "Dropbox error.  Try again.";
-        } catch (DropboxException e) {
-            // Unknown error
-            mErrorMsg = "Unknown error.  Try again.";
+                entry = mTransport.download(mPath, remote.rev, outputStream, listener);
+                if (entry != null && counter.getCount() != entry.bytes) {
+                    throw new TransportException(TransportException.Kind.NETWORK,
+                            "Got " + counter.getCount() + " of " + entry.bytes
+                                    + " bytes");
+                }
+                if (part != null && isLive()) {
+                    MainActivity.storeManifest(mContext, mVault, null);
+                }
+            }
+            // Finishes decompression, fails if the backup was cut short
+            try {
+                outputStream.close();
+            } catch (InvalidBackupException e) {
+                // Complete but not a backup, another attempt won't help
+                throw e;
+            } catch (IOException e) {
+                throw new TransportException(TransportException.Kind.NETWORK,
+                        e.getMessage(), e);
+            } finally {
+                outputStream = null;
+            }
+            if (part == null) {
+                mSummary = validator;
+            }
+            return entry;
         } finally {
             if (outputStream != null) {
                 try {
@@ -168,24 +534,53 @@ public class GetBackup extends AsyncTask<Void, Long, Boolean> {
                 }
             }
         }
-        if (debug) {
-            Log.d(TAG, "Error: " + mErrorMsg);
-        }
+    }
 
-        return false;
+    private String getInvalidMessage(InvalidBackupException e) {
+        if (e instanceof BackupCipher.PassphraseException) {
+            return mContext.getString(R.string.wrongPassphrase, e.getMessage());
+        }
+        return mContext.getString(R.string.backupInvalid, e.getMessage());
     }
 
-    @Override
-    protected void onProgressUpdate(Long... progress) {
-        int percent = (int) (100.0 * (double) progress[0] / mFileLen + 0.5);
-        mDialog.setProgress(percent);
+    /**
+     * @return metadata of path, or null if there is no such file
+     */
+    private RemoteEntry getMetadata(final String path) throws TransportException,
+            IOException {
+        try {
+            return mRetry.execute(new RetryPolicy.Operation<RemoteEntry>() {
+                public RemoteEntry run() throws TransportException {
+                    return mTransport.metadata(path);
+                }
+            });
+        } catch (TransportException e) {
+            if (e.getStatusCode() == TransportException.NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
     }
 
     @Override
     protected void onPostExecute(Boolean result) {
-        mDialog.dismiss();
-
+        if (mUpdater != null) {
+            mUpdater.stop();
+        }
         if (result) {
+            mRecording.succeeded(mRetry.getTotalRetries());
+        } else {
+            mRecording.failed(mError, mRetry.getTotalRetries());
+        }
+        if (mDialog != null) {
+            mDialog.dismiss();
+        }
+
+        if (result && mOwner != null) {
+            showSummary();
+        } else if (result && mUnchanged) {
+            showToast(mContext.getString(R.string.restoreUnchanged));
+        } else if (result) {
             showToast(mContext.getString(R.string.success));
         } else {
             // Couldn't download it, so show an error
@@ -193,7 +588,48 @@ public class GetBackup extends AsyncTask<Void, Long, Boolean> {
         }
     }
 
+    /**
+     * Show what the previewed backup holds, with the choice to restore it.
+     */
+    private void showSummary() {
+        if (mOwner instanceof Activity && ((Activity) mOwner).isFinishing()) {
+            // Nowhere to show it
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        message.append(mContext.getString(R.string.previewEntries,
+                mSummary.getEntryCount(), mSummary.getCategoryCount()));
+        if (mSummary.getDate() != null) {
+            message.append('\n').append(mContext.getString(R.string.previewWritten,
+                    mSummary.getDate()));
+        }
+        if (mPreviewed.modified != null) {
+            message.append('\n').append(mContext.getString(R.string.previewUploaded,
+                    mPreviewed.modified));
+        }
+        if (!mSummary.getCategoryNames().isEmpty()) {
+            message.append("\n\n");
+            for (String name : mSummary.getCategoryNames()) {
+                message.append(name).append('\n');
+            }
+        }
+        new AlertDialog.Builder(mOwner)
+                .setTitle(mVault.getName())
+                .setMessage(message.toString().trim())
+                .setPositiveButton(R.string.restore, new OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        MainActivity.startRestore(mOwner, mRawTransport, mVault,
+                                mPath, true);
+                    }
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
     private void showToast(String msg) {
+        if (!mVault.isDefault()) {
+            msg = mContext.getString(R.string.vaultMessage, mVault.getName(), msg);
+        }
         Toast error = Toast.makeText(mContext, msg, Toast.LENGTH_LONG);
         error.show();
     }
@@ -0,0 +1,73 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.oisafebackup.dropbox;
+
+import org.openintents.oisafebackup.MainActivity;
+import org.openintents.oisafebackup.transport.UploadSession;
+import org.openintents.oisafebackup.transport.UploadSessionStore;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+/**
+ * Keeps unfinished chunked uploads in the "prefs" store, next to the
+ * Dropbox revision.
+ */
+public class PrefsUploadSessionStore implements UploadSessionStore {
+	private static final String UPLOAD_ID = "Upload_Id:";
+	private static final String UPLOAD_OFFSET = "Upload_Offset:";
+	private static final String UPLOAD_LENGTH = "Upload_Length:";
+	private static final String UPLOAD_MODIFIED = "Upload_Modified:";
+
+	private final SharedPreferences mPrefs;
+
+	public PrefsUploadSessionStore(Context context) {
+		mPrefs = context.getSharedPreferences(MainActivity.ACCOUNT_PREFS_NAME,
+				Context.MODE_PRIVATE);
+	}
+
+	public State load(String remotePath) {
+		String uploadId = mPrefs.getString(UPLOAD_ID + remotePath, null);
+		if (uploadId == null) {
+			return null;
+		}
+		return new State(new UploadSession(uploadId, mPrefs.getLong(
+				UPLOAD_OFFSET + remotePath, 0)), mPrefs.getLong(UPLOAD_LENGTH
+				+ remotePath, -1), mPrefs.getLong(UPLOAD_MODIFIED + remotePath,
+				-1));
+	}
+
+	public void save(String remotePath, State state) {
+		Editor edit = mPrefs.edit();
+		edit.putString(UPLOAD_ID + remotePath, state.session.uploadId);
+		edit.putLong(UPLOAD_OFFSET + remotePath, state.session.offset);
+		edit.putLong(UPLOAD_LENGTH + remotePath, state.fileLength);
+		edit.putLong(UPLOAD_MODIFIED + remotePath, state.fileModified);
+		// commit, so the offset survives the process being killed right after
+		edit.commit();
+	}
+
+	public void clear(String remotePath) {
+		Editor edit = mPrefs.edit();
+		edit.remove(UPLOAD_ID + remotePath);
+		edit.remove(UPLOAD_OFFSET + remotePath);
+		edit.remove(UPLOAD_LENGTH + remotePath);
+		edit.remove(UPLOAD_MODIFIED + remotePath);
+		edit.apply();
+	}
+}
@@ -0,0 +1,99 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.dropbox;
+
+import org.openintents.oisafebackup.R;
+import org.openintents.oisafebackup.transport.ProgressTracker;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
+
+/**
+ * Shows the progress of a tracker in a dialog, sampling it at a fixed rate
+ * on the UI thread. However often the transfer reports, the UI gets at most
+ * one update per {@link ProgressTracker#SAMPLE_INTERVAL}.
+ */
+class ProgressUpdater implements Runnable {
+	private final Context mContext;
+	private final ProgressDialog mDialog;
+	private final String mMessage;
+	private final ProgressTracker mTracker;
+	private final Handler mHandler = new Handler();
+	private boolean mRunning;
+
+	/**
+	 * Call from the UI thread.
+	 * 
+	 * @param message
+	 *            shown above the progress, rate and time left
+	 */
+	ProgressUpdater(Context context, ProgressDialog dialog, String message,
+			ProgressTracker tracker) {
+		mContext = context;
+		mDialog = dialog;
+		mMessage = message;
+		mTracker = tracker;
+	}
+
+	void start() {
+		mRunning = true;
+		mHandler.postDelayed(this, ProgressTracker.SAMPLE_INTERVAL);
+	}
+
+	void stop() {
+		mRunning = false;
+		mHandler.removeCallbacks(this);
+	}
+
+	public void run() {
+		if (!mRunning) {
+			return;
+		}
+		mTracker.sample(SystemClock.uptimeMillis());
+		mDialog.setProgress(mTracker.getPercent());
+		StringBuilder message = new StringBuilder(mMessage);
+		int started = 0;
+		for (int i = 0; i < mTracker.getChannelCount(); i++) {
+			if (mTracker.getName(i) != null) {
+				started++;
+			}
+		}
+		if (started > 1) {
+			// The bar follows the slowest, list them all
+			for (int i = 0; i < mTracker.getChannelCount(); i++) {
+				String name = mTracker.getName(i);
+				if (name != null) {
+					message.append('\n').append(name).append(": ")
+							.append(mTracker.getPercent(i)).append('%');
+				}
+			}
+		}
+		long rate = mTracker.getBytesPerSecond();
+		long eta = mTracker.getEtaMillis();
+		if (rate > 0 && eta >= 0) {
+			message.append('\n').append(
+					mContext.getString(R.string.progressRate,
+							Formatter.formatShortFileSize(mContext, rate),
+							DateUtils.formatElapsedTime(eta / 1000)));
+		}
+		mDialog.setMessage(message);
+		mHandler.postDelayed(this, ProgressTracker.SAMPLE_INTERVAL);
+	}
+}
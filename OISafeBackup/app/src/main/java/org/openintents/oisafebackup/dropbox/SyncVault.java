@@ -0,0 +1,130 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.dropbox;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openintents.oisafebackup.MainActivity;
+import org.openintents.oisafebackup.R;
+import org.openintents.oisafebackup.Vault;
+import org.openintents.oisafebackup.metrics.Metrics;
+import org.openintents.oisafebackup.metrics.OperationMetrics;
+import org.openintents.oisafebackup.sync.FingerprintIndex;
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.RetryPolicy;
+import org.openintents.oisafebackup.transport.TransportException;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Finds out which way a vault needs to be synced. Only the metadata is
+ * fetched, the transfer itself is left to UploadBackup or GetBackup.
+ */
+public class SyncVault extends AsyncTask<Void, Void, FingerprintIndex.Direction> {
+	private static final String TAG = "SyncVault";
+	private static final boolean debug = true;
+
+	public interface OnCompared {
+		/**
+		 * Called on the main thread once the vault was compared.
+		 */
+		void onCompared(Vault vault, FingerprintIndex.Direction direction);
+	}
+
+	private Context mContext;
+	private BackupTransport mTransport;
+	private Vault mVault;
+	private OnCompared mOnCompared;
+
+	private final RetryPolicy mRetry = new RetryPolicy();
+	private String mErrorMsg;
+	private Throwable mError;
+	private OperationMetrics.Recording mRecording;
+
+	public SyncVault(Context context, BackupTransport transport, Vault vault,
+			OnCompared onCompared) {
+		mContext = context.getApplicationContext();
+		mTransport = transport;
+		mVault = vault;
+		mOnCompared = onCompared;
+	}
+
+	@Override
+	protected FingerprintIndex.Direction doInBackground(Void... params) {
+		mRecording = Metrics.CHECK.start();
+		final String checkPath = MainActivity.getCheckPath(mContext,
+				mVault.remotePath);
+		try {
+			RemoteEntry remote = null;
+			try {
+				remote = mRetry.execute(new RetryPolicy.Operation<RemoteEntry>() {
+					public RemoteEntry run() throws TransportException {
+						return mTransport.metadata(checkPath);
+					}
+				});
+				MainActivity.getMetadataCache(mContext).put(remote.path, remote);
+			} catch (TransportException e) {
+				if (e.getStatusCode() != TransportException.NOT_FOUND) {
+					throw e;
+				}
+			}
+			boolean local = mVault.local.exists();
+			// A deleted file has no bytes
+			if (remote == null || remote.bytes == 0) {
+				return local ? FingerprintIndex.Direction.UPLOAD
+						: FingerprintIndex.Direction.SAME;
+			}
+			// A manifest or head has a revision but not the backup's content
+			String contentHash = checkPath.equals(mVault.remotePath)
+					? remote.contentHash : null;
+			FingerprintIndex index = FingerprintIndex.get(new File(
+					mContext.getFilesDir(), FingerprintIndex.FILE_NAME));
+			FingerprintIndex.Direction direction = index.direction(
+					mVault.local, mVault.remotePath, remote.rev, contentHash);
+			if (debug) {
+				Log.d(TAG, mVault + ": " + direction);
+			}
+			return direction;
+		} catch (TransportException e) {
+			mError = e;
+			mErrorMsg = e.getUserError();
+			if (mErrorMsg == null) {
+				mErrorMsg = e.getMessage();
+			}
+		} catch (IOException e) {
+			mError = e;
+			mErrorMsg = e.getLocalizedMessage();
+		}
+		return null;
+	}
+
+	@Override
+	protected void onPostExecute(FingerprintIndex.Direction direction) {
+		if (direction == null) {
+			mRecording.failed(mError, mRetry.getTotalRetries());
+			Toast.makeText(mContext, mContext.getString(R.string.vaultMessage,
+					mVault.getName(), mErrorMsg), Toast.LENGTH_LONG).show();
+			return;
+		}
+		mRecording.succeeded(mRetry.getTotalRetries());
+		mOnCompared.onCompared(mVault, direction);
+	}
+}
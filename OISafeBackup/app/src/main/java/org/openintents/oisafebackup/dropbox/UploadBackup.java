@@ -19,155 +19,587 @@
 package org.openintents.oisafebackup.dropbox;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.openintents.oisafebackup.MainActivity;
 import org.openintents.oisafebackup.R;
+import org.openintents.oisafebackup.SettingsActivity;
+import org.openintents.oisafebackup.Vault;
+import org.openintents.oisafebackup.history.RetentionPolicy;
+import org.openintents.oisafebackup.history.VersionHistory;
+import org.openintents.oisafebackup.history.VersionIndex;
+import org.openintents.oisafebackup.metrics.Metrics;
+import org.openintents.oisafebackup.metrics.OperationMetrics;
+import org.openintents.oisafebackup.stream.BackupCipher;
+import org.openintents.oisafebackup.stream.BackupFormat;
+import org.openintents.oisafebackup.stream.BackupValidator;
+import org.openintents.oisafebackup.stream.InvalidBackupException;
+import org.openintents.oisafebackup.stream.UploadSource;
+import org.openintents.oisafebackup.sync.DeltaSync;
+import org.openintents.oisafebackup.sync.FingerprintIndex;
+import org.openintents.oisafebackup.sync.RecordJournal;
+import org.openintents.oisafebackup.sync.RecordSet;
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.CancelableTransport;
+import org.openintents.oisafebackup.transport.CancellationToken;
+import org.openintents.oisafebackup.transport.ChunkedUpload;
+import org.openintents.oisafebackup.transport.FanOutUpload;
+import org.openintents.oisafebackup.transport.LocalDirectoryTransport;
+import org.openintents.oisafebackup.transport.ProgressTracker;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.RetryPolicy;
+import org.openintents.oisafebackup.transport.TransferListener;
+import org.openintents.oisafebackup.transport.TransportException;
 
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.os.AsyncTask;
+import android.util.Log;
 import android.widget.Toast;
 
-import com.dropbox.client2.DropboxAPI;
-import com.dropbox.client2.DropboxAPI.Entry;
-import com.dropbox.client2.DropboxAPI.UploadRequest;
-import com.dropbox.client2.ProgressListener;
-import com.dropbox.client2.exception.DropboxException;
-import com.dropbox.client2.exception.DropboxFileSizeException;
-import com.dropbox.client2.exception.DropboxIOException;
-import com.dropbox.client2.exception.DropboxParseException;
-import com.dropbox.client2.exception.DropboxPartialFileException;
-import com.dropbox.client2.exception.DropboxServerException;
-import com.dropbox.client2.exception.DropboxUnlinkedException;
-
 /**
  * Here we show uploading a file in a background thread, trying to show typical
  * exception handling and flow of control for an app that uploads a file from
  * Dropbox.
  */
-public class UploadBackup extends AsyncTask<Void, Long, Boolean> {
+public class UploadBackup extends AsyncTask<Void, Void, Boolean> {
+	private static final String TAG = "UploadBackup";
+	private static final boolean debug = true;
 
-	private DropboxAPI<?> mApi;
-	private String mPath;
+	private BackupTransport mTransport;
+	private Vault mVault;
 	private File mFile;
 
 	private long mFileLen;
-	private UploadRequest mRequest;
+	private ChunkedUpload mChunkedUpload;
+	private DeltaSync mDeltaSync;
+	private RecordJournal mRecordJournal;
+	// What a records upload sent, if its journal is due to be compacted
+	private RecordSet mCompaction;
+	private UploadSource mPlainSource;
+	// Cancel stops the transfers in flight too, not just the next request
+	private final CancellationToken mToken = new CancellationToken();
+	private final RetryPolicy mRetry = new RetryPolicy(mToken);
 	private Context mContext;
 	private final ProgressDialog mDialog;
 
 	private String mErrorMsg;
+	private Throwable mError;
+	private OperationMetrics.Recording mRecording;
+	private boolean mUnchanged;
+	private volatile FanOutUpload mFanOut;
+	// Name of every target
+	private String[] mNames;
+	private final ProgressTracker mTracker;
+	private ProgressUpdater mUpdater;
+	private Runnable mOnFinished;
+
+	/**
+	 * A local directory that gets a copy next to Dropbox.
+	 */
+	private static class LocalTarget {
+		final File dir;
+		/** Tells the target apart in the stored state */
+		final String key;
+		final BackupTransport transport;
+		FingerprintIndex.Fingerprint fingerprint;
+
+		LocalTarget(File dir, CancellationToken token) {
+			this.dir = dir;
+			key = "local:" + dir.getAbsolutePath();
+			transport = new CancelableTransport(new LocalDirectoryTransport(
+					dir), token);
+		}
+	}
 
-	public UploadBackup(Context context, DropboxAPI<?> api, String dropboxPath,
-			File file) {
+	public UploadBackup(Context context, BackupTransport transport,
+			Vault vault) {
+		this(context, transport, vault, true);
+	}
+
+	/**
+	 * @param showProgress
+	 *            false to upload without a progress dialog, e.g. from a
+	 *            service. Only errors are shown then.
+	 */
+	public UploadBackup(Context context, BackupTransport transport,
+			Vault vault, boolean showProgress) {
 		// We set the context this way so we don't accidentally leak activities
 		mContext = context.getApplicationContext();
 
+		File file = vault.local;
 		mFileLen = file.length();
-		mApi = api;
-		mPath = dropboxPath;
+		mTransport = new CancelableTransport(transport, mToken);
+		mVault = vault;
 		mFile = file;
+		// One progress channel for Dropbox and one per local target
+		mTracker = new ProgressTracker(
+				1 + SettingsActivity.getLocalTargets(mContext).size());
+		mPlainSource = BackupValidator.validating(UploadSource.fromFile(file));
+		if (SettingsActivity.isChunkedUpload(mContext)) {
+			mChunkedUpload = new ChunkedUpload(mTransport,
+					new PrefsUploadSessionStore(mContext),
+					SettingsActivity.getChunkSize(mContext));
+		} else if (SettingsActivity.isDeltaSync(mContext)) {
+			mDeltaSync = new DeltaSync(mTransport);
+		} else if (SettingsActivity.isRecordSync(mContext)) {
+			mRecordJournal = new RecordJournal(mTransport);
+		}
 
+		if (!showProgress) {
+			// Runs in the background, nothing to cancel it from
+			mDialog = null;
+			return;
+		}
 		mDialog = new ProgressDialog(context);
 		mDialog.setMax(100);
-		mDialog.setMessage(context.getString(R.string.uploading)+ " " + file.getName());
+		String message = context.getString(R.string.uploading)+ " " + file.getName();
+		mDialog.setMessage(message);
 		mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
 		mDialog.setProgress(0);
 		mDialog.setButton(DialogInterface.BUTTON_NEGATIVE,context.getString(R.string.cancel), new OnClickListener() {
 			public void onClick(DialogInterface dialog, int which) {
-				// This will cancel the putFile operation
-				mRequest.abort();
+				cancel();
 			}
 		});
 		mDialog.show();
+		mUpdater = new ProgressUpdater(mContext, mDialog, message, mTracker);
+		mUpdater.start();
+	}
+
+	/**
+	 * @param onFinished
+	 *            run on the UI thread once the upload succeeded, failed or
+	 *            was canceled
+	 */
+	public void setOnFinished(Runnable onFinished) {
+		mOnFinished = onFinished;
 	}
 
-	@SuppressWarnings("StatementWithEmptyBody")
-    @Override
+	/**
+	 * Stop the upload, a chunked one can be resumed later. Safe to call at
+	 * any time, also before the upload has started.
+	 */
+	public void cancel() {
+		// Aborts the request in flight and fails every later one
+		mToken.cancel();
+		FanOutUpload fanOut = mFanOut;
+		if (fanOut != null) {
+			fanOut.cancel();
+		}
+		if (mChunkedUpload != null) {
+			// What was acknowledged so far is kept for a resume
+			mChunkedUpload.cancel();
+		} else if (mDeltaSync != null) {
+			mDeltaSync.cancel();
+		} else if (mRecordJournal != null) {
+			mRecordJournal.cancel();
+		}
+	}
+
+	@Override
 	protected Boolean doInBackground(Void... params) {
+		mRecording = Metrics.UPLOAD.start(mTracker.getChannelCount());
+		mTracker.setRecording(mRecording);
 		try {
-			// By creating a request, we get a handle to the putFile operation,
-			// so we can cancel it later if we want to
-			FileInputStream fis = new FileInputStream(mFile);
-			String path = mPath + mFile.getName();
-			mRequest = mApi.putFileOverwriteRequest(path, fis, mFile.length(),
-					new ProgressListener() {
-						@Override
-						public long progressInterval() {
-							// Update the progress bar every half-second or so
-							return 500;
-						}
-
-						@Override
-						public void onProgress(long bytes, long total) {
-							publishProgress(bytes);
-						}
-					});
+			if (SettingsActivity.isEncrypted(mContext)
+					&& !SettingsActivity.canEncrypt(SettingsActivity
+							.getUploadMode(mContext))) {
+				// Set before the settings refused the combination. Sending
+				// the plain file would leak what the user wants sealed.
+				mErrorMsg = mContext.getString(R.string.encryptUnsupported);
+				return false;
+			}
+			if (SettingsActivity.isEncrypted(mContext)
+					&& SettingsActivity.getPassphrase(mContext) == null) {
+				// Nothing to encrypt with, and the plain file mustn't go out
+				mErrorMsg = mContext.getString(R.string.passphraseMissing);
+				return false;
+			}
+			String path = mVault.remotePath;
+			FingerprintIndex index = FingerprintIndex.get(new File(
+					mContext.getFilesDir(), FingerprintIndex.FILE_NAME));
+			FingerprintIndex.Fingerprint fingerprint = index.check(mFile,
+					path, MainActivity.getStoredRev(mContext, mVault));
+			// Each copy is only sent to the targets that don't have it yet
+			List<LocalTarget> targets = new ArrayList<LocalTarget>();
+			for (File dir : SettingsActivity.getLocalTargets(mContext)) {
+				LocalTarget target = new LocalTarget(dir, mToken);
+				target.fingerprint = index.check(mFile, target.key + path,
+						MainActivity.getTargetRev(mContext,
+								mVault.key(target.key)));
+				if (!target.fingerprint.unchanged) {
+					targets.add(target);
+				}
+			}
+			if (fingerprint.unchanged && targets.isEmpty()) {
+				// The remote copy already has exactly this content
+				mUnchanged = true;
+				return true;
+			}
 
-			if (mRequest != null) {
-				Entry entry = mRequest.upload();
-				MainActivity.storeEntry(mContext, entry);
+			// Checked while it is read, a broken backup never completes
+			UploadSource source = mPlainSource;
+			if (SettingsActivity.isCompressed(mContext)) {
+				source = BackupFormat.compress(source);
+			}
+			if (SettingsActivity.isEncrypted(mContext)) {
+				// Sealed as it streams out, nothing readable reaches a target
+				source = BackupCipher.encrypt(source,
+						SettingsActivity.getPassphrase(mContext));
+			}
+			if (targets.isEmpty()) {
+				mNames = new String[] { mContext.getString(R.string.dropbox) };
+				mTracker.start(0, mNames[0], mFileLen);
+				// Transient failures are retried, chunked uploads resume each time
+				uploaded(index, path, fingerprint, uploadWithRetry(path,
+						source, mTracker.listener(0)));
 				return true;
 			}
+			return uploadToAll(index, path, fingerprint, source, targets);
 
-		} catch (DropboxUnlinkedException e) {
-			// This session wasn't authenticated properly or user unlinked
-			mErrorMsg = "This app wasn't authenticated properly.";
-		} catch (DropboxFileSizeException e) {
-			// File size too big to upload via the API
-			mErrorMsg = "This file is too big to upload";
-		} catch (DropboxPartialFileException e) {
-			// We canceled the operation
-			mErrorMsg = "Upload canceled";
-		} catch (DropboxServerException e) {
-			// Server-side exception. These are examples of what could happen,
-			// but we don't do anything special with them here.
-			if (e.error == DropboxServerException._401_UNAUTHORIZED) {
-				// Unauthorized, so we should unlink them. You may want to
-				// automatically log the user out in this case.
-			} else if (e.error == DropboxServerException._403_FORBIDDEN) {
-				// Not allowed to access this
-			} else if (e.error == DropboxServerException._404_NOT_FOUND) {
-				// path not found (or if it was the thumbnail, can't be
-				// thumbnailed)
-			} else if (e.error == DropboxServerException._507_INSUFFICIENT_STORAGE) {
-				// user is over quota
-			} else {
-				// Something else
-			}
-			// This gets the Dropbox error, translated into the user's language
-			mErrorMsg = e.body.userError;
-			if (mErrorMsg == null) {
-				mErrorMsg = e.body.error;
-			}
-		} catch (DropboxIOException e) {
-			// Happens all the time, probably want to retry automatically.
-			mErrorMsg = "Network error.  Try again.";
-		} catch (DropboxParseException e) {
-			// Probably due to Dropbox server restarting, should retry
-			mErrorMsg = "Dropbox error.  Try again.";
-		} catch (DropboxException e) {
-			// Unknown error
-			mErrorMsg = "Unknown error.  Try again.";
-		} catch (FileNotFoundException ignored) {
+		} catch (TransportException e) {
+			mError = e;
+			switch (e.getKind()) {
+			case UNLINKED:
+				// This session wasn't authenticated properly or user unlinked
+				mErrorMsg = "This app wasn't authenticated properly.";
+				break;
+			case FILE_SIZE:
+				// File size too big to upload via the API
+				mErrorMsg = "This file is too big to upload";
+				break;
+			case CANCELED:
+				// We canceled the operation
+				mErrorMsg = "Upload canceled";
+				break;
+			case SERVER:
+				// This gets the server error, translated into the user's
+				// language
+				mErrorMsg = e.getUserError();
+				if (mErrorMsg == null) {
+					mErrorMsg = e.getMessage();
+				}
+				break;
+			case NETWORK:
+				// Happens all the time, but kept failing on every retry
+				mErrorMsg = "Network error.  Try again.";
+				break;
+			case PARSE:
+				// Probably due to Dropbox server restarting
+				mErrorMsg = "Dropbox error.  Try again.";
+				break;
+			default:
+				// Unknown error
+				mErrorMsg = "Unknown error.  Try again.";
+			}
+			InvalidBackupException invalid = InvalidBackupException.find(e);
+			if (invalid != null) {
+				// The transfer failed on the data, not on the network
+				mErrorMsg = mContext.getString(R.string.backupInvalid,
+						invalid.getMessage());
+			}
+		} catch (InvalidBackupException e) {
+			mError = e;
+			mErrorMsg = mContext.getString(R.string.backupInvalid,
+					e.getMessage());
+		} catch (IOException e) {
+			mError = e;
+			mErrorMsg = e.getLocalizedMessage();
 		}
 		return false;
 	}
 
-	@Override
-	protected void onProgressUpdate(Long... progress) {
-		int percent = (int) (100.0 * (double) progress[0] / mFileLen + 0.5);
-		mDialog.setProgress(percent);
+	/**
+	 * Read the file once and send it to Dropbox, unless it is unchanged
+	 * there, and all targets at the same time.
+	 * 
+	 * @return false if a local target failed
+	 * @throws TransportException
+	 *             if Dropbox failed
+	 */
+	private boolean uploadToAll(FingerprintIndex index, final String path,
+			FingerprintIndex.Fingerprint fingerprint, final UploadSource source,
+			List<LocalTarget> targets) throws TransportException, IOException {
+		boolean dropbox = !fingerprint.unchanged;
+		int first = dropbox ? 1 : 0;
+		mNames = new String[first + targets.size()];
+		FanOutUpload fanOut = new FanOutUpload();
+		if (dropbox) {
+			mNames[0] = mContext.getString(R.string.dropbox);
+			mTracker.start(0, mNames[0], mFileLen);
+			final TransferListener listener = mTracker.listener(0);
+			if (mChunkedUpload == null && mDeltaSync == null
+					&& mRecordJournal == null) {
+				fanOut.add(mNames[0], mTransport, path, listener);
+			} else {
+				// Chunked, delta and record uploads read the file by themselves
+				fanOut.add(mNames[0], new RetryPolicy.Operation<RemoteEntry>() {
+					public RemoteEntry run() throws TransportException,
+							IOException {
+						return upload(path, source, listener);
+					}
+				}, null);
+			}
+		}
+		for (int i = 0; i < targets.size(); i++) {
+			LocalTarget target = targets.get(i);
+			mNames[first + i] = target.dir.getPath();
+			mTracker.start(first + i, mNames[first + i], mFileLen);
+			fanOut.add(target.key, target.transport, path,
+					mTracker.listener(first + i));
+		}
+		mFanOut = fanOut;
+		if (mToken.isCanceled()) {
+			throw new TransportException(TransportException.Kind.CANCELED,
+					"Upload canceled");
+		}
+		List<FanOutUpload.Result> results = fanOut.upload(source);
+
+		TransportException dropboxError = null;
+		StringBuilder errors = new StringBuilder();
+		for (int i = 0; i < results.size(); i++) {
+			FanOutUpload.Result result = results.get(i);
+			boolean isDropbox = dropbox && i == 0;
+			if (result.error != null && !mToken.isCanceled()
+					&& RetryPolicy.isRetryable(result.error)) {
+				// Only this one reads the file again
+				try {
+					result.entry = isDropbox ? uploadWithRetry(path, source,
+							mTracker.listener(i)) : uploadWithRetry(
+							targets.get(i - first).transport, path, source,
+							mTracker.listener(i));
+					result.error = null;
+				} catch (TransportException e) {
+					result.error = e;
+				}
+			}
+			if (isDropbox) {
+				if (result.error != null) {
+					dropboxError = result.error;
+				} else {
+					uploaded(index, path, fingerprint, result.entry);
+				}
+			} else if (result.error != null) {
+				Log.w(TAG, "Couldn't copy to " + mNames[i], result.error);
+				errors.append(mNames[i]).append(": ")
+						.append(result.error.getMessage()).append('\n');
+			} else {
+				LocalTarget target = targets.get(i - first);
+				MainActivity.storeTargetEntry(mContext,
+						mVault.key(target.key), result.entry);
+				try {
+					index.record(mFile, target.fingerprint, target.key + path,
+							result.entry.rev);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		if (dropboxError != null) {
+			throw dropboxError;
+		}
+		if (errors.length() > 0) {
+			mErrorMsg = errors.toString().trim();
+			return false;
+		}
+		return true;
+	}
+
+	private RemoteEntry uploadWithRetry(final String path,
+			final UploadSource source, final TransferListener listener)
+			throws TransportException, IOException {
+		RemoteEntry entry = mRetry
+				.execute(new RetryPolicy.Operation<RemoteEntry>() {
+					public RemoteEntry run() throws TransportException,
+							IOException {
+						return upload(path, source, listener);
+					}
+				});
+		if (debug) {
+			Log.d(TAG, "uploaded after " + mRetry.getAttempts()
+					+ " attempt(s)");
+		}
+		return entry;
+	}
+
+	private RemoteEntry uploadWithRetry(final BackupTransport transport,
+			final String path, final UploadSource source,
+			final TransferListener listener) throws TransportException {
+		try {
+			return mRetry.execute(new RetryPolicy.Operation<RemoteEntry>() {
+				public RemoteEntry run() throws TransportException,
+						IOException {
+					InputStream in = source.open();
+					try {
+						return transport.upload(path, in, source.length(),
+								listener);
+					} finally {
+						in.close();
+					}
+				}
+			});
+		} catch (IOException e) {
+			throw new TransportException(TransportException.Kind.UNKNOWN,
+					e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Remember that Dropbox now has the file.
+	 */
+	private void uploaded(FingerprintIndex index, String path,
+			FingerprintIndex.Fingerprint fingerprint, RemoteEntry entry) {
+		if (mCompaction != null) {
+			entry = compact(path, entry);
+		}
+		MainActivity.storeEntry(mContext, mVault, entry);
+		MainActivity.getMetadataCache(mContext).put(entry.path, entry);
+		try {
+			index.record(mFile, fingerprint, path, entry.rev);
+		} catch (IOException ignored) {
+			// Only means the next upload can't be skipped
+		}
+		if (SettingsActivity.isKeepHistory(mContext)) {
+			addVersion(path, fingerprint.hash);
+		}
+		MainActivity.addSnapshot(mContext, mVault);
+	}
+
+
+	/**
+	 * Compact the record journal at path once the upload itself is done. It
+	 * only makes later restores faster, so failing is only logged.
+	 * 
+	 * @return the new head, or entry if it wasn't compacted
+	 */
+	private RemoteEntry compact(final String path, RemoteEntry entry) {
+		final RecordSet records = mCompaction;
+		mCompaction = null;
+		try {
+			RecordJournal.Result result = mRetry
+					.execute(new RetryPolicy.Operation<RecordJournal.Result>() {
+						public RecordJournal.Result run()
+								throws TransportException, IOException {
+							return mRecordJournal.compact(records, path,
+									mVault.getRecordState(mContext));
+						}
+					});
+			if (result != null) {
+				if (debug) {
+					Log.d(TAG, "compacted " + path + " into "
+							+ result.bytesTransferred + " bytes");
+				}
+				return result.head;
+			}
+		} catch (TransportException e) {
+			Log.w(TAG, "Couldn't compact " + path, e);
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't compact " + path, e);
+		}
+		return entry;
+	}
+
+	/**
+	 * Keep a copy of what was just uploaded to path. The backup itself
+	 * succeeded, so failing to do so is only logged.
+	 */
+	private void addVersion(String path, String hash) {
+		final VersionHistory history = new VersionHistory(mTransport, path,
+				new RetentionPolicy());
+		final String fileHash = hash;
+		final long timestamp = System.currentTimeMillis();
+		try {
+			VersionIndex.Version version = mRetry
+					.execute(new RetryPolicy.Operation<VersionIndex.Version>() {
+						public VersionIndex.Version run()
+								throws TransportException, IOException {
+							return history.add(timestamp, fileHash);
+						}
+					});
+			if (debug) {
+				Log.d(TAG, "kept version " + version);
+			}
+		} catch (TransportException e) {
+			Log.w(TAG, "Couldn't keep a version of " + path, e);
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't keep a version of " + path, e);
+		}
+	}
+
+	/**
+	 * One attempt at sending source to path in the configured mode.
+	 */
+	private RemoteEntry upload(String path, UploadSource source,
+			TransferListener listener) throws TransportException, IOException {
+		if (mChunkedUpload != null) {
+			return mChunkedUpload.upload(source, path, listener);
+		}
+		InputStream in = null;
+		try {
+			if (mDeltaSync != null) {
+				in = mPlainSource.open();
+				DeltaSync.Result result = mDeltaSync.upload(in,
+						mFile.length(), path,
+						MainActivity.getStoredManifest(mContext, mVault),
+						MainActivity.getStoredRev(mContext, mVault), listener);
+				MainActivity.storeManifest(mContext, mVault, result.manifest);
+				return result.entry;
+			}
+			if (mRecordJournal != null) {
+				in = mPlainSource.open();
+				RecordJournal.Result result = mRecordJournal.upload(
+						RecordSet.parse(in), path,
+						mVault.getRecordState(mContext));
+				if (debug) {
+					Log.d(TAG, result.records.size() + " records, sent "
+							+ result.bytesTransferred + " bytes, compacted="
+							+ result.compacted + ", due="
+							+ result.compactionDue);
+				}
+				mCompaction = result.compactionDue ? result.records : null;
+				return result.head;
+			}
+			long length = source.length();
+			in = source.open();
+			return mTransport.upload(path, in, length, listener);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
 	}
 
 	@Override
 	protected void onPostExecute(Boolean result) {
-		mDialog.dismiss();
+		if (mUpdater != null) {
+			mUpdater.stop();
+		}
 		if (result) {
+			mRecording.succeeded(mRetry.getTotalRetries());
+		} else {
+			mRecording.failed(mError, mRetry.getTotalRetries());
+		}
+		if (mOnFinished != null) {
+			mOnFinished.run();
+		}
+		if (mDialog == null) {
+			if (!result) {
+				showToast(mErrorMsg);
+			}
+			return;
+		}
+		mDialog.dismiss();
+		if (result && mUnchanged) {
+			showToast(mContext.getString(R.string.backupUnchanged));
+		} else if (result) {
 			showToast(mContext.getString(R.string.backupUploaded));
 		} else {
 			showToast(mErrorMsg);
@@ -175,6 +607,10 @@ public class UploadBackup extends AsyncTask<Void, Long, Boolean> {
 	}
 
 	private void showToast(String msg) {
+		if (!mVault.isDefault()) {
+			msg = mContext.getString(R.string.vaultMessage, mVault.getName(),
+					msg);
+		}
 		Toast error = Toast.makeText(mContext, msg, Toast.LENGTH_LONG);
 		error.show();
 	}
@@ -0,0 +1,186 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Time to first byte of a metadata call over HTTPS, with the HttpClient
+ * 4.0.1 Android ships. clientPerCall() is what every check and restore paid
+ * while each session had a client of its own, sharedClient() what they pay
+ * with DropboxConnections, whose pool keeps the connection alive between
+ * calls. The server is local, behind a DelayingProxy that adds the round
+ * trip of a distant one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// Without it the JDK server waits on delayed ACKs, 40 ms a response
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class ConnectionBenchmark {
+	private static final String KEY_STORE = "localhost.p12";
+	private static final char[] KEY_STORE_PASSWORD = "benchmark"
+			.toCharArray();
+	private static final byte[] METADATA = ("{\"size\": \"12.3 KB\", "
+			+ "\"rev\": \"35e97029684fe\", \"bytes\": 12636, "
+			+ "\"path\": \"/oisafe.xml\", \"is_dir\": false}").getBytes();
+
+	/** Milliseconds */
+	@Param({ "50" })
+	public int roundTrip;
+
+	private KeyStore mKeyStore;
+	private HttpsServer mServer;
+	private ExecutorService mServerThreads;
+	private DelayingProxy mProxy;
+	private String mUrl;
+	private HttpClient mShared;
+
+	@Setup
+	public void setUp() throws IOException, GeneralSecurityException {
+		mKeyStore = KeyStore.getInstance("PKCS12");
+		InputStream in = ConnectionBenchmark.class
+				.getResourceAsStream(KEY_STORE);
+		try {
+			mKeyStore.load(in, KEY_STORE_PASSWORD);
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory keys = KeyManagerFactory
+				.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(mKeyStore, KEY_STORE_PASSWORD);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), null, null);
+
+		mServer = HttpsServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), 0);
+		mServer.setHttpsConfigurator(new HttpsConfigurator(context));
+		mServer.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Content-Type",
+						"application/json");
+				exchange.sendResponseHeaders(200, METADATA.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(METADATA);
+				out.close();
+			}
+		});
+		mServerThreads = Executors.newCachedThreadPool();
+		mServer.setExecutor(mServerThreads);
+		mServer.start();
+
+		mProxy = new DelayingProxy(mServer.getAddress().getPort(), roundTrip);
+		mUrl = "https://localhost:" + mProxy.getPort()
+				+ "/1/metadata/dropbox/oisafe.xml";
+		mShared = newClient();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mShared.getConnectionManager().shutdown();
+		mProxy.close();
+		mServer.stop(0);
+		mServerThreads.shutdown();
+	}
+
+	/**
+	 * DNS, TCP and TLS for every call.
+	 */
+	@Benchmark
+	public int clientPerCall() throws IOException, GeneralSecurityException {
+		HttpClient client = newClient();
+		try {
+			return firstByte(client);
+		} finally {
+			client.getConnectionManager().shutdown();
+		}
+	}
+
+	/**
+	 * Only the first call connects, the ones after find it in the pool.
+	 */
+	@Benchmark
+	public int sharedClient() throws IOException {
+		return firstByte(mShared);
+	}
+
+	/**
+	 * @return the first byte of the response, the rest is read so the
+	 *         connection goes back to the pool
+	 */
+	private int firstByte(HttpClient client) throws IOException {
+		HttpResponse response = client.execute(new HttpGet(mUrl));
+		HttpEntity entity = response.getEntity();
+		int first = entity.getContent().read();
+		entity.consumeContent();
+		return first;
+	}
+
+	/**
+	 * @return a client set up like the SDK's, trusting the local server
+	 */
+	private HttpClient newClient() throws GeneralSecurityException {
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("https", new SSLSocketFactory(mKeyStore),
+				443));
+		HttpParams params = new BasicHttpParams();
+		return new DefaultHttpClient(new ThreadSafeClientConnManager(params,
+				schemes), params);
+	}
+}
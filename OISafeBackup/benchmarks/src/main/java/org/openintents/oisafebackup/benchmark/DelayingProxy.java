@@ -0,0 +1,166 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards TCP connections to a local port and holds every chunk of data
+ * back for half the round-trip time in each direction, as a distant server
+ * would. The TCP handshake itself isn't delayed, so a new connection costs
+ * one round trip less here than over a real network.
+ */
+class DelayingProxy implements Closeable {
+	private final ServerSocket mServer;
+	private final int mTargetPort;
+	private final long mDelayNanos;
+	private final List<Socket> mSockets = new ArrayList<Socket>();
+
+	private static class Chunk {
+		final long due;
+		/** Null at the end of the stream */
+		final byte[] data;
+
+		Chunk(long due, byte[] data) {
+			this.due = due;
+			this.data = data;
+		}
+	}
+
+	DelayingProxy(int targetPort, int roundTripMillis) throws IOException {
+		mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		mTargetPort = targetPort;
+		mDelayNanos = TimeUnit.MILLISECONDS.toNanos(roundTripMillis) / 2;
+		start("Proxy accept", new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						accept(mServer.accept());
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		});
+	}
+
+	int getPort() {
+		return mServer.getLocalPort();
+	}
+
+	public void close() throws IOException {
+		mServer.close();
+		synchronized (mSockets) {
+			for (Socket socket : mSockets) {
+				socket.close();
+			}
+			mSockets.clear();
+		}
+	}
+
+	private void accept(Socket client) throws IOException {
+		Socket server = new Socket(InetAddress.getLoopbackAddress(),
+				mTargetPort);
+		client.setTcpNoDelay(true);
+		server.setTcpNoDelay(true);
+		synchronized (mSockets) {
+			mSockets.add(client);
+			mSockets.add(server);
+		}
+		// Both sockets go once both directions are done
+		AtomicInteger open = new AtomicInteger(2);
+		forward(client, server, open);
+		forward(server, client, open);
+	}
+
+	private void forward(final Socket from, final Socket to,
+			final AtomicInteger open) {
+		final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+		start("Proxy read", new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[16384];
+				try {
+					InputStream in = from.getInputStream();
+					int count;
+					while ((count = in.read(buffer)) > 0) {
+						queue.add(new Chunk(System.nanoTime() + mDelayNanos,
+								Arrays.copyOf(buffer, count)));
+					}
+				} catch (IOException e) {
+					// Closed, same as the end of the stream
+				}
+				queue.add(new Chunk(System.nanoTime() + mDelayNanos, null));
+			}
+		});
+		start("Proxy write", new Runnable() {
+			public void run() {
+				try {
+					OutputStream out = to.getOutputStream();
+					while (true) {
+						Chunk chunk = queue.take();
+						long wait = chunk.due - System.nanoTime();
+						if (wait > 0) {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						}
+						if (chunk.data == null) {
+							to.shutdownOutput();
+							break;
+						}
+						out.write(chunk.data);
+					}
+				} catch (IOException e) {
+					// Closed
+				} catch (InterruptedException e) {
+					// Only daemon threads get here
+				}
+				if (open.decrementAndGet() == 0) {
+					closeQuietly(from);
+					closeQuietly(to);
+				}
+			}
+		});
+	}
+
+	private void closeQuietly(Socket socket) {
+		synchronized (mSockets) {
+			mSockets.remove(socket);
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing to do about it
+		}
+	}
+
+	private static void start(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,94 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openintents.oisafebackup.stream.ContentHash;
+import org.openintents.oisafebackup.sync.ContentChunker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Content hash of a file, parallel over memory-mapped blocks, against the
+ * sequential in-memory one, and content-defined chunking for delta sync.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class HashBenchmark {
+	@Param({ "1024", "65536", "1048576", "10485760", "104857600" })
+	public int size;
+
+	private byte[] mData;
+	private File mFile;
+
+	@Setup
+	public void setUp() throws IOException {
+		mData = SyntheticBackup.generate(size);
+		mFile = File.createTempFile("benchmark", ".xml");
+		FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(mData);
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Benchmark
+	public String contentHashFile() throws IOException {
+		return ContentHash.hash(mFile);
+	}
+
+	@Benchmark
+	public String contentHashSequential() {
+		return ContentHash.of(mData);
+	}
+
+	@Benchmark
+	public int chunk() throws IOException {
+		ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(
+				mData));
+		byte[] buffer = new byte[chunker.getMaxSize()];
+		int chunks = 0;
+		while (chunker.next(buffer) > 0) {
+			chunks++;
+		}
+		return chunks;
+	}
+}
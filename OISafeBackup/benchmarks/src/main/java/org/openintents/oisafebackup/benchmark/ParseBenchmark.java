@@ -0,0 +1,69 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openintents.oisafebackup.stream.BackupValidator;
+import org.openintents.oisafebackup.sync.RecordSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the OI Safe XML: the pull parse into records that the records
+ * upload mode does, and the streaming validation every transfer does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ParseBenchmark {
+	@Param({ "1024", "65536", "1048576", "10485760", "104857600" })
+	public int size;
+
+	private byte[] mData;
+
+	@Setup
+	public void setUp() {
+		mData = SyntheticBackup.generate(size);
+	}
+
+	@Benchmark
+	public RecordSet parseRecords() throws IOException {
+		return RecordSet.parse(new ByteArrayInputStream(mData));
+	}
+
+	@Benchmark
+	public int validate() throws IOException {
+		BackupValidator validator = new BackupValidator();
+		validator.update(mData, 0, mData.length);
+		validator.finish();
+		return validator.getEntryCount();
+	}
+}
@@ -0,0 +1,118 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.oisafebackup.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openintents.oisafebackup.history.SnapshotStore;
+import org.openintents.oisafebackup.stream.CountingOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rebuilding an older version from the snapshot store, and taking a snapshot
+ * of a backup that differs from the previous one in a few entries. The store
+ * holds a few dozen such versions, its size is printed after the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SnapshotBenchmark {
+	private static final String NAME = "/oisafe.xml";
+	private static final int VERSIONS = 30;
+
+	@Param({ "65536", "1048576" })
+	public int size;
+
+	private File mDir;
+	private SnapshotStore mStore;
+	private SnapshotStore.Snapshot mOldest;
+	private byte[] mData;
+	private long mTimestamp;
+
+	@Setup
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("benchmark", ".snapshots");
+		mDir.delete();
+		mStore = new SnapshotStore(mDir, Long.MAX_VALUE);
+		mData = SyntheticBackup.generate(size);
+		for (int i = 0; i < VERSIONS; i++) {
+			mStore.add(NAME, mTimestamp++, new ByteArrayInputStream(edit()));
+		}
+		mOldest = mStore.list(NAME).get(VERSIONS - 1);
+		System.out.println(VERSIONS + " versions of " + mData.length
+				+ " bytes take " + mStore.getSize() + " bytes");
+	}
+
+	@TearDown
+	public void tearDown() {
+		mStore.clear();
+		new File(mDir, "chunks").delete();
+		mDir.delete();
+	}
+
+	@Benchmark
+	public long restore() throws IOException {
+		CountingOutputStream out = new CountingOutputStream(
+				new NullOutputStream());
+		mStore.restore(mOldest, out);
+		return out.getCount();
+	}
+
+	@Benchmark
+	public SnapshotStore.Snapshot add() throws IOException {
+		return mStore.add(NAME, mTimestamp++, new ByteArrayInputStream(edit()));
+	}
+
+	/**
+	 * Change a few passwords, as saving an edit in OI Safe would.
+	 */
+	private byte[] edit() {
+		for (int i = 0; i < 3; i++) {
+			int position = (int) ((mTimestamp * 7919 + i * 104729) % mData.length);
+			mData[position] = (byte) ('A' + (mTimestamp + i) % 26);
+		}
+		return mData.clone();
+	}
+
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+/**
+ * Generates backups that look like the ones OI Safe writes: a header with
+ * master key and salt, and entries spread over a few categories, with
+ * base64-like encrypted fields. The same size always gives the same bytes.
+ */
+public class SyntheticBackup {
+	private static final int CATEGORIES = 8;
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+
+	/**
+	 * @return a backup of at least size bytes, and at most one entry more
+	 */
+	public static byte[] generate(int size) {
+		Random random = new Random(size);
+		StringBuilder xml = new StringBuilder(size + 1024);
+		xml.append("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n");
+		xml.append("<OISafe version=\"1\" date=\"Nov 3, 2014 10:15:42 AM\">\n");
+		xml.append("<MasterKey>").append(encrypted(random, 96))
+				.append("</MasterKey>\n");
+		xml.append("<Salt>").append(encrypted(random, 16)).append("</Salt>\n");
+		String footer = "</Category>\n</OISafe>\n";
+		int row = 1;
+		int category = 0;
+		xml.append("<Category name=\"Category ").append(category)
+				.append("\">\n");
+		while (xml.length() + footer.length() < size) {
+			if (row % 50 == 0 && category < CATEGORIES - 1) {
+				category++;
+				xml.append("</Category>\n<Category name=\"Category ")
+						.append(category).append("\">\n");
+			}
+			xml.append("<Entry>\n");
+			xml.append("<RowID>").append(row++).append("</RowID>\n");
+			xml.append("<Description>").append(encrypted(random, 24))
+					.append("</Description>\n");
+			xml.append("<Website>").append(encrypted(random, 44))
+					.append("</Website>\n");
+			xml.append("<Username>").append(encrypted(random, 24))
+					.append("</Username>\n");
+			xml.append("<Password>").append(encrypted(random, 24))
+					.append("</Password>\n");
+			xml.append("<Note>").append(encrypted(random, random.nextInt(120)))
+					.append("</Note>\n");
+			xml.append("<UniqueName>").append(encrypted(random, 24))
+					.append("</UniqueName>\n");
+			xml.append("</Entry>\n");
+		}
+		xml.append(footer);
+		try {
+			return xml.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String encrypted(Random random, int length) {
+		char[] text = new char[length];
+		for (int i = 0; i < length; i++) {
+			text[i] = BASE64[random.nextInt(BASE64.length)];
+		}
+		return new String(text);
+	}
+}
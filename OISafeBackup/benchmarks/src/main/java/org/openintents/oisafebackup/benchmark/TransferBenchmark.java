@@ -0,0 +1,186 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openintents.oisafebackup.stream.BackupCipher;
+import org.openintents.oisafebackup.stream.BackupFormat;
+import org.openintents.oisafebackup.stream.BackupValidator;
+import org.openintents.oisafebackup.stream.UploadSource;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.StandInTransport;
+import org.openintents.oisafebackup.transport.TransportException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Upload and restore pipelines against the in-memory stand-in, which has no
+ * latency or bandwidth limit here, so only the client side is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TransferBenchmark {
+	private static final String PATH = "/oisafe.xml";
+	private static final String COMPRESSED_PATH = "/oisafe.xml.oisb";
+	private static final String ENCRYPTED_PATH = "/oisafe.xml.oise";
+	private static final char[] PASSPHRASE = "benchmark".toCharArray();
+
+	@Param({ "1024", "65536", "1048576", "10485760", "104857600" })
+	public int size;
+
+	private byte[] mData;
+	private UploadSource mSource;
+	private UploadSource mCompressed;
+	private UploadSource mEncrypted;
+	private StandInTransport mTransport;
+
+	@Setup
+	public void setUp() throws IOException {
+		mData = SyntheticBackup.generate(size);
+		mSource = new UploadSource() {
+			@Override
+			public long length() {
+				return mData.length;
+			}
+
+			@Override
+			public long lastModified() {
+				return 0;
+			}
+
+			@Override
+			public InputStream open() {
+				return new ByteArrayInputStream(mData);
+			}
+		};
+		mCompressed = BackupFormat.compress(mSource);
+		// Length of the compressed data is found once and kept
+		mCompressed.length();
+		// Key derivation happens once per source, like once per upload
+		mEncrypted = BackupCipher.encrypt(mSource, PASSPHRASE);
+		mEncrypted.length();
+		mTransport = new StandInTransport();
+		mTransport.put(PATH, mData);
+		mTransport.put(COMPRESSED_PATH, read(mCompressed));
+		mTransport.put(ENCRYPTED_PATH, read(mEncrypted));
+	}
+
+	private static byte[] read(UploadSource source) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = source.open();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) > 0) {
+			out.write(buffer, 0, count);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public RemoteEntry upload() throws TransportException, IOException {
+		return mTransport.upload(PATH, mSource.open(), mSource.length(), null);
+	}
+
+	@Benchmark
+	public RemoteEntry uploadValidated() throws TransportException,
+			IOException {
+		UploadSource source = BackupValidator.validating(mSource);
+		return mTransport.upload(PATH, source.open(), source.length(), null);
+	}
+
+	@Benchmark
+	public RemoteEntry uploadCompressed() throws TransportException,
+			IOException {
+		return mTransport.upload(PATH, mCompressed.open(),
+				mCompressed.length(), null);
+	}
+
+	/**
+	 * Compare with upload(), encryption runs inline with the transfer.
+	 */
+	@Benchmark
+	public RemoteEntry uploadEncrypted() throws TransportException,
+			IOException {
+		return mTransport.upload(ENCRYPTED_PATH, mEncrypted.open(),
+				mEncrypted.length(), null);
+	}
+
+	/**
+	 * What GetBackup does: decrypt, decode, validate, write.
+	 */
+	@Benchmark
+	public RemoteEntry restore() throws TransportException, IOException {
+		return restore(PATH);
+	}
+
+	@Benchmark
+	public RemoteEntry restoreCompressed() throws TransportException,
+			IOException {
+		return restore(COMPRESSED_PATH);
+	}
+
+	/**
+	 * Includes deriving the key from the passphrase, once per restore.
+	 */
+	@Benchmark
+	public RemoteEntry restoreEncrypted() throws TransportException,
+			IOException {
+		return restore(ENCRYPTED_PATH);
+	}
+
+	private RemoteEntry restore(String path) throws TransportException,
+			IOException {
+		OutputStream out = BackupCipher.decrypter(BackupFormat
+				.decoder(new BackupValidator()
+						.wrap(new DiscardingOutputStream())), PASSPHRASE);
+		RemoteEntry entry = mTransport.download(path, null, out, null);
+		out.close();
+		return entry;
+	}
+
+	/**
+	 * Throws away what is written, like writing to a fast disk.
+	 */
+	static class DiscardingOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
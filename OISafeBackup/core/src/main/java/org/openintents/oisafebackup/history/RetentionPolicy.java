@@ -0,0 +1,96 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.history;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openintents.oisafebackup.history.VersionIndex.Version;
+
+/**
+ * Decides which versions of a backup to keep: the newest one of every hour
+ * for the last day, of every day for the last month and of every week for the
+ * last year. Older versions go, except that the newest version is always
+ * kept.
+ */
+public class RetentionPolicy {
+	public static final int DEFAULT_HOURS = 24;
+	public static final int DEFAULT_DAYS = 30;
+	public static final int DEFAULT_WEEKS = 52;
+
+	private static final long HOUR = 60 * 60 * 1000L;
+	private static final long DAY = 24 * HOUR;
+	private static final long WEEK = 7 * DAY;
+
+	private final int mHours;
+	private final int mDays;
+	private final int mWeeks;
+
+	public RetentionPolicy() {
+		this(DEFAULT_HOURS, DEFAULT_DAYS, DEFAULT_WEEKS);
+	}
+
+	/**
+	 * @param hours
+	 *            hourly versions are kept for this many hours, and so on
+	 */
+	public RetentionPolicy(int hours, int days, int weeks) {
+		mHours = hours;
+		mDays = days;
+		mWeeks = weeks;
+	}
+
+	/**
+	 * @param versions
+	 *            newest first, as in {@link VersionIndex#getVersions()}
+	 * @return the versions that can be deleted
+	 */
+	public List<Version> expired(List<Version> versions, long now) {
+		List<Version> expired = new ArrayList<Version>();
+		Set<String> buckets = new HashSet<String>();
+		boolean first = true;
+		for (Version version : versions) {
+			String bucket = bucket(now - version.timestamp, version.timestamp);
+			if (first) {
+				first = false;
+				if (bucket != null) {
+					buckets.add(bucket);
+				}
+			} else if (bucket == null || !buckets.add(bucket)) {
+				// Too old, or there is a newer one for the same period
+				expired.add(version);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * @return the period a version of the given age belongs to, or null if it
+	 *         is too old to keep
+	 */
+	private String bucket(long age, long timestamp) {
+		if (age < mHours * HOUR) {
+			return "h" + timestamp / HOUR;
+		} else if (age < mDays * DAY) {
+			return "d" + timestamp / DAY;
+		} else if (age < mWeeks * WEEK) {
+			return "w" + timestamp / WEEK;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.oisafebackup.history;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openintents.oisafebackup.stream.ContentHash;
+import org.openintents.oisafebackup.sync.ChunkManifest;
+import org.openintents.oisafebackup.sync.ContentChunker;
+
+/**
+ * Copies of recent backups kept on the device, so restoring one of them is a
+ * local rebuild instead of a download. Backups are cut into the same
+ * content-defined chunks as delta sync and each chunk is stored once under
+ * its SHA-1, however many snapshots contain it. Consecutive backups differ
+ * in a few entries, so dozens of snapshots take little more room than one.
+ * <p/>
+ * The chunks are kept below a size limit: when they grow past it, the least
+ * recently used snapshots are dropped and the chunks no other snapshot needs
+ * are deleted.
+ */
+public class SnapshotStore {
+	public static final String DIR_NAME = "snapshots";
+	public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+	private static final String HEADER = "oisafebackup-snapshot 1";
+	private static final String CHUNK_DIR = "chunks";
+	private static final String MANIFEST_SUFFIX = ".snapshot";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	// All stores in the process share the files, so they share the lock too
+	private static final Object sLock = new Object();
+
+	public static class Snapshot {
+		/** Which backup this is a copy of, e.g. the remote path of a vault */
+		public final String name;
+		/** Milliseconds since the epoch when the snapshot was taken */
+		public final long timestamp;
+		/** Content hash of the whole file, as in FingerprintIndex */
+		public final String hash;
+		public final long bytes;
+
+		private final File mFile;
+		private final ChunkManifest mManifest;
+
+		Snapshot(File file, String name, long timestamp,
+				ChunkManifest manifest) {
+			this.name = name;
+			this.timestamp = timestamp;
+			this.hash = manifest.getFileHash();
+			this.bytes = manifest.getLength();
+			mFile = file;
+			mManifest = manifest;
+		}
+
+		@Override
+		public String toString() {
+			return name + " at " + timestamp + " (" + bytes + " bytes)";
+		}
+	}
+
+	private static final Comparator<Snapshot> NEWEST_FIRST = new Comparator<Snapshot>() {
+		public int compare(Snapshot a, Snapshot b) {
+			return a.timestamp < b.timestamp ? 1
+					: (a.timestamp == b.timestamp ? 0 : -1);
+		}
+	};
+
+	private static final Comparator<Snapshot> LEAST_RECENTLY_USED = new Comparator<Snapshot>() {
+		public int compare(Snapshot a, Snapshot b) {
+			long usedA = a.mFile.lastModified();
+			long usedB = b.mFile.lastModified();
+			return usedA < usedB ? -1 : (usedA == usedB ? 0 : 1);
+		}
+	};
+
+	private final File mDir;
+	private final File mChunkDir;
+	private final long mMaxSize;
+
+	public SnapshotStore(File dir) {
+		this(dir, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            bytes the chunks may take, 0 to keep no snapshots
+	 */
+	public SnapshotStore(File dir, long maxSize) {
+		mDir = dir;
+		mChunkDir = new File(dir, CHUNK_DIR);
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Take a snapshot of the backup read from in. Only the chunks the store
+	 * doesn't have yet are written. If the newest snapshot of name already
+	 * has this content, it is kept instead of adding another one.
+	 *
+	 * @return the snapshot, null if the size limit doesn't leave room for it
+	 */
+	public Snapshot add(String name, long timestamp, InputStream in)
+			throws IOException {
+		synchronized (sLock) {
+			if (mMaxSize <= 0) {
+				return null;
+			}
+			if (!mChunkDir.isDirectory() && !mChunkDir.mkdirs()) {
+				throw new IOException("Couldn't create " + mChunkDir);
+			}
+			MessageDigest chunkDigest = newDigest();
+			ContentHash fileHash = new ContentHash();
+			ContentChunker chunker = new ContentChunker(in);
+			byte[] buffer = new byte[chunker.getMaxSize()];
+			ChunkManifest manifest = new ChunkManifest();
+			int count;
+			while ((count = chunker.next(buffer)) > 0) {
+				fileHash.update(buffer, 0, count);
+				chunkDigest.update(buffer, 0, count);
+				String hash = toHex(chunkDigest.digest());
+				File chunk = chunkFile(hash);
+				if (!chunk.exists()) {
+					writeAtomically(chunk, buffer, count);
+				}
+				manifest.add(hash, count);
+			}
+			manifest.setFileHash(fileHash.digest());
+
+			List<Snapshot> snapshots = list(name);
+			if (!snapshots.isEmpty()
+					&& manifest.getFileHash().equals(snapshots.get(0).hash)) {
+				Snapshot latest = snapshots.get(0);
+				touch(latest);
+				return latest;
+			}
+
+			File file = new File(mDir, Integer.toHexString(name.hashCode())
+					+ "-" + timestamp + MANIFEST_SUFFIX);
+			byte[] text = toBytes(HEADER + "\nname " + name + "\ntime "
+					+ timestamp + "\n" + manifest);
+			writeAtomically(file, text, text.length);
+			Snapshot snapshot = new Snapshot(file, name, timestamp, manifest);
+			trim();
+			return file.exists() ? snapshot : null;
+		}
+	}
+
+	/**
+	 * @return the snapshots of name, newest first
+	 */
+	public List<Snapshot> list(String name) {
+		synchronized (sLock) {
+			List<Snapshot> snapshots = new ArrayList<Snapshot>();
+			for (Snapshot snapshot : readAll()) {
+				if (snapshot.name.equals(name)) {
+					snapshots.add(snapshot);
+				}
+			}
+			Collections.sort(snapshots, NEWEST_FIRST);
+			return snapshots;
+		}
+	}
+
+	/**
+	 * @return the newest snapshot of name with content hash, null if there
+	 *         is none
+	 */
+	public Snapshot find(String name, String hash) {
+		if (hash == null) {
+			return null;
+		}
+		for (Snapshot snapshot : list(name)) {
+			if (hash.equals(snapshot.hash)) {
+				return snapshot;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Rebuild the backup of snapshot into out, checking every chunk against
+	 * its hash.
+	 *
+	 * @throws IOException
+	 *             if a chunk is missing or damaged, out then has a partial
+	 *             backup
+	 */
+	public void restore(Snapshot snapshot, OutputStream out)
+			throws IOException {
+		synchronized (sLock) {
+			MessageDigest chunkDigest = newDigest();
+			ContentHash fileHash = new ContentHash();
+			byte[] buffer = new byte[ContentChunker.DEFAULT_MAX_SIZE];
+			for (ChunkManifest.Chunk chunk : snapshot.mManifest.getChunks()) {
+				if (buffer.length < chunk.length) {
+					buffer = new byte[chunk.length];
+				}
+				File file = chunkFile(chunk.hash);
+				if (file.length() != chunk.length) {
+					throw new IOException("Snapshot chunk " + chunk.hash
+							+ " is missing");
+				}
+				readFully(file, buffer, chunk.length);
+				chunkDigest.update(buffer, 0, chunk.length);
+				if (!chunk.hash.equals(toHex(chunkDigest.digest()))) {
+					throw new IOException("Snapshot chunk " + chunk.hash
+							+ " is corrupt");
+				}
+				fileHash.update(buffer, 0, chunk.length);
+				out.write(buffer, 0, chunk.length);
+			}
+			if (!fileHash.digest().equals(snapshot.hash)) {
+				throw new IOException("Rebuilt snapshot doesn't match "
+						+ snapshot);
+			}
+			touch(snapshot);
+		}
+	}
+
+	/**
+	 * @return bytes taken by the chunks
+	 */
+	public long getSize() {
+		synchronized (sLock) {
+			long size = 0;
+			File[] chunks = mChunkDir.listFiles();
+			if (chunks != null) {
+				for (File chunk : chunks) {
+					size += chunk.length();
+				}
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Drop all snapshots, e.g. when unlinking the account.
+	 */
+	public void clear() {
+		synchronized (sLock) {
+			deleteAll(mDir.listFiles());
+			deleteAll(mChunkDir.listFiles());
+		}
+	}
+
+	/**
+	 * Drop least recently used snapshots until the chunks the others need
+	 * fit the size limit, then delete every chunk no snapshot needs. This
+	 * also cleans up after a snapshot that was interrupted.
+	 */
+	private void trim() {
+		List<Snapshot> snapshots = readAll();
+		Collections.sort(snapshots, LEAST_RECENTLY_USED);
+
+		// How many snapshots need each chunk
+		Map<String, Integer> references = new HashMap<String, Integer>();
+		Map<String, Integer> lengths = new HashMap<String, Integer>();
+		long size = 0;
+		for (Snapshot snapshot : snapshots) {
+			for (ChunkManifest.Chunk chunk : snapshot.mManifest.getChunks()) {
+				lengths.put(chunk.hash, chunk.length);
+			}
+			for (String hash : snapshot.mManifest.getHashes()) {
+				Integer count = references.get(hash);
+				if (count == null) {
+					count = 0;
+					size += lengths.get(hash);
+				}
+				references.put(hash, count + 1);
+			}
+		}
+
+		int evicted = 0;
+		while (size > mMaxSize && evicted < snapshots.size()) {
+			Snapshot snapshot = snapshots.get(evicted++);
+			snapshot.mFile.delete();
+			for (String hash : snapshot.mManifest.getHashes()) {
+				int count = references.get(hash) - 1;
+				if (count == 0) {
+					references.remove(hash);
+					size -= lengths.get(hash);
+				} else {
+					references.put(hash, count);
+				}
+			}
+		}
+
+		File[] chunks = mChunkDir.listFiles();
+		if (chunks != null) {
+			for (File chunk : chunks) {
+				if (!references.containsKey(chunk.getName())) {
+					chunk.delete();
+				}
+			}
+		}
+	}
+
+	private List<Snapshot> readAll() {
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		File[] files = mDir.listFiles();
+		if (files == null) {
+			return snapshots;
+		}
+		for (File file : files) {
+			if (!file.getName().endsWith(MANIFEST_SUFFIX)) {
+				continue;
+			}
+			try {
+				snapshots.add(read(file));
+			} catch (IOException e) {
+				// Unreadable, its chunks go with the next trim
+				file.delete();
+			}
+		}
+		return snapshots;
+	}
+
+	private static Snapshot read(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			if (!HEADER.equals(reader.readLine())) {
+				throw new IOException("Not a snapshot: " + file);
+			}
+			String name = value(reader.readLine(), "name ");
+			long timestamp;
+			try {
+				timestamp = Long.parseLong(value(reader.readLine(), "time "));
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad snapshot time: " + file);
+			}
+			StringBuilder rest = new StringBuilder();
+			char[] buffer = new char[4096];
+			int count;
+			while ((count = reader.read(buffer)) != -1) {
+				rest.append(buffer, 0, count);
+			}
+			ChunkManifest manifest = ChunkManifest.parse(rest.toString());
+			if (manifest.getFileHash() == null) {
+				throw new IOException("Snapshot without a hash: " + file);
+			}
+			return new Snapshot(file, name, timestamp, manifest);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String value(String line, String prefix)
+			throws IOException {
+		if (line == null || !line.startsWith(prefix)) {
+			throw new IOException("Bad snapshot line: " + line);
+		}
+		return line.substring(prefix.length());
+	}
+
+	private File chunkFile(String hash) {
+		return new File(mChunkDir, hash);
+	}
+
+	/**
+	 * Mark snapshot as used, it is the last to go when trimming.
+	 */
+	private static void touch(Snapshot snapshot) {
+		snapshot.mFile.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Write to a temporary file first, so a file under its final name is
+	 * always complete.
+	 */
+	private static void writeAtomically(File file, byte[] data, int length)
+			throws IOException {
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data, 0, length);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+
+	private static void readFully(File file, byte[] buffer, int length)
+			throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < length) {
+				int count = in.read(buffer, read, length - read);
+				if (count == -1) {
+					throw new IOException("Snapshot chunk " + file.getName()
+							+ " is truncated");
+				}
+				read += count;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void deleteAll(File[] files) {
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isFile()) {
+				file.delete();
+			}
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] toBytes(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
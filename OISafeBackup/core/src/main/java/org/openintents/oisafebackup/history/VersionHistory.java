@@ -0,0 +1,160 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.openintents.oisafebackup.history.VersionIndex.Version;
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.RemotePaths;
+import org.openintents.oisafebackup.transport.TransportException;
+
+/**
+ * Keeps time-stamped copies of a backup in HISTORY_DIR, so a broken backup
+ * that overwrote the current one doesn't take the good ones with it. Copies
+ * are made on the server, nothing is uploaded twice. The versions are listed
+ * in an index file, which is all that needs to be read to show the history.
+ */
+public class VersionHistory {
+	public static final String HISTORY_DIR = "/history/";
+	public static final String INDEX_SUFFIX = ".index";
+
+	/** Deletes per backup, the rest waits for the next one */
+	public static final int MAX_DELETES = 50;
+
+	private final BackupTransport mTransport;
+	private final String mPath;
+	private final RetentionPolicy mPolicy;
+
+	/**
+	 * @param remotePath
+	 *            the current backup, e.g. /oisafe.xml
+	 */
+	public VersionHistory(BackupTransport transport, String remotePath,
+			RetentionPolicy policy) {
+		mTransport = transport;
+		mPath = remotePath;
+		mPolicy = policy;
+	}
+
+	/**
+	 * @return path of the index of remotePath's versions
+	 */
+	public static String indexPath(String remotePath) {
+		return HISTORY_DIR + name(remotePath) + INDEX_SUFFIX;
+	}
+
+	/**
+	 * Copy the current backup to a new version, then delete the versions the
+	 * retention policy no longer wants.
+	 * 
+	 * @param hash
+	 *            content hash of the local file that was uploaded, see
+	 *            ContentHash, or null
+	 * @return the new version
+	 */
+	public Version add(long timestamp, String hash) throws TransportException,
+			IOException {
+		RemoteEntry copy = mTransport.copy(mPath, versionPath(timestamp));
+		Version version = new Version(timestamp, copy.bytes, hash, copy.rev,
+				copy.path);
+
+		VersionIndex index = load();
+		index.add(version);
+		List<Version> expired = mPolicy.expired(index.getVersions(),
+				timestamp);
+		List<Version> deleted = new ArrayList<Version>();
+		for (Version old : expired) {
+			if (deleted.size() >= MAX_DELETES) {
+				break;
+			}
+			try {
+				mTransport.delete(old.path);
+				deleted.add(old);
+			} catch (TransportException e) {
+				if (e.getStatusCode() == TransportException.NOT_FOUND) {
+					// Deleted by an earlier run that didn't get to save the index
+					deleted.add(old);
+				}
+				// Otherwise it stays listed and expires again next time
+			}
+		}
+		index.removeAll(deleted);
+		store(index);
+		return version;
+	}
+
+	/**
+	 * @return the versions, newest first
+	 */
+	public List<Version> list() throws TransportException, IOException {
+		return load().getVersions();
+	}
+
+	private VersionIndex load() throws TransportException, IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try {
+			mTransport.download(indexPath(mPath), null, buffer, null);
+		} catch (TransportException e) {
+			if (e.getStatusCode() == TransportException.NOT_FOUND) {
+				return new VersionIndex();
+			}
+			throw e;
+		}
+		return VersionIndex.parse(buffer.toString("UTF-8"));
+	}
+
+	private void store(VersionIndex index) throws TransportException,
+			IOException {
+		byte[] data = index.toString().getBytes("UTF-8");
+		mTransport.upload(indexPath(mPath), new ByteArrayInputStream(data),
+				data.length, null);
+	}
+
+	/**
+	 * @return e.g. /history/oisafe-20141018T153000123Z.xml
+	 */
+	private String versionPath(long timestamp) {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyyMMdd'T'HHmmssSSS'Z'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String name = name(mPath);
+		int dot = name.lastIndexOf('.');
+		String stamp = "-" + format.format(new Date(timestamp));
+		if (dot > 0) {
+			return HISTORY_DIR + name.substring(0, dot) + stamp
+					+ name.substring(dot);
+		}
+		return HISTORY_DIR + name + stamp;
+	}
+
+	/**
+	 * @return name of path within the shared directory, the whole path goes
+	 *         into it so that backups in different folders don't collide
+	 */
+	private static String name(String path) {
+		return RemotePaths.flatName(path);
+	}
+}
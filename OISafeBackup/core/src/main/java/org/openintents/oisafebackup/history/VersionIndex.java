@@ -0,0 +1,134 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.history;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The versions of a backup that are kept on the server, newest first. Stored
+ * next to them as one small text file, so the history can be shown without
+ * listing the folder.
+ */
+public class VersionIndex {
+	private static final String HEADER = "oisafebackup-history 1";
+
+	public static class Version {
+		/** Milliseconds since the epoch when the backup was made */
+		public final long timestamp;
+		public final long bytes;
+		/**
+		 * Content hash of the local file, as in FingerprintIndex and
+		 * SnapshotStore.Snapshot.hash, null if unknown
+		 */
+		public final String hash;
+		public final String rev;
+		public final String path;
+
+		public Version(long timestamp, long bytes, String hash, String rev,
+				String path) {
+			this.timestamp = timestamp;
+			this.bytes = bytes;
+			this.hash = hash;
+			this.rev = rev;
+			this.path = path;
+		}
+
+		@Override
+		public String toString() {
+			return path + " (" + rev + ", " + bytes + " bytes)";
+		}
+	}
+
+	private static final Comparator<Version> NEWEST_FIRST = new Comparator<Version>() {
+		public int compare(Version a, Version b) {
+			return a.timestamp < b.timestamp ? 1
+					: (a.timestamp == b.timestamp ? 0 : -1);
+		}
+	};
+
+	private final List<Version> mVersions = new ArrayList<Version>();
+
+	public void add(Version version) {
+		mVersions.add(version);
+		Collections.sort(mVersions, NEWEST_FIRST);
+	}
+
+	public void removeAll(Collection<Version> versions) {
+		mVersions.removeAll(versions);
+	}
+
+	/**
+	 * @return the versions, newest first
+	 */
+	public List<Version> getVersions() {
+		return Collections.unmodifiableList(mVersions);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(HEADER).append('\n');
+		for (Version version : mVersions) {
+			sb.append(version.timestamp).append(' ').append(version.bytes)
+					.append(' ')
+					.append(version.hash == null ? "-" : version.hash)
+					.append(' ').append(version.rev).append(' ')
+					.append(version.path).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse an index written by {@link #toString()}.
+	 * 
+	 * @throws IOException
+	 *             if text isn't a version index
+	 */
+	public static VersionIndex parse(String text) throws IOException {
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		if (!HEADER.equals(reader.readLine())) {
+			throw new IOException("Not a version index");
+		}
+		VersionIndex index = new VersionIndex();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.length() == 0) {
+				continue;
+			}
+			// The path comes last, it is the only field that may hold spaces
+			String[] fields = line.split(" ", 5);
+			if (fields.length != 5) {
+				throw new IOException("Bad index line: " + line);
+			}
+			try {
+				index.mVersions.add(new Version(Long.parseLong(fields[0]), Long
+						.parseLong(fields[1]), "-".equals(fields[2]) ? null
+						: fields[2], fields[3], fields[4]));
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad index line: " + line);
+			}
+		}
+		Collections.sort(index.mVersions, NEWEST_FIRST);
+		return index;
+	}
+}
@@ -0,0 +1,113 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.metrics;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Metrics of the backup operations since the process started or the last
+ * reset. Kept in memory only, the automatic backup service keeps the
+ * process around long enough for them to be useful.
+ */
+public class Metrics {
+	public static final OperationMetrics UPLOAD = new OperationMetrics("upload");
+	public static final OperationMetrics CHECK = new OperationMetrics("check");
+	public static final OperationMetrics RESTORE = new OperationMetrics(
+			"restore");
+	public static final OperationMetrics PREVIEW = new OperationMetrics(
+			"preview");
+
+	private static final OperationMetrics[] ALL = { UPLOAD, CHECK, RESTORE,
+			PREVIEW };
+
+	private static volatile long sSince = System.currentTimeMillis();
+
+	public static OperationMetrics[] all() {
+		return ALL.clone();
+	}
+
+	/**
+	 * @return when recording started, in milliseconds since the epoch
+	 */
+	public static long getSince() {
+		return sSince;
+	}
+
+	public static void reset() {
+		for (OperationMetrics metrics : ALL) {
+			metrics.reset();
+		}
+		sSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return all metrics as plain text, for the diagnostics screen and for
+	 *         export
+	 */
+	public static String report() {
+		SimpleDateFormat format = new SimpleDateFormat(
+				"yyyy-MM-dd HH:mm:ss Z", Locale.US);
+		StringBuilder report = new StringBuilder();
+		report.append("oisafebackup-metrics 1\n");
+		report.append("since ").append(format.format(new Date(sSince)))
+				.append('\n');
+		report.append("at ").append(format.format(new Date())).append('\n');
+		for (OperationMetrics metrics : ALL) {
+			report.append('\n');
+			append(report, metrics);
+		}
+		return report.toString();
+	}
+
+	private static void append(StringBuilder report, OperationMetrics metrics) {
+		report.append(metrics.getName()).append(": ")
+				.append(metrics.getCount()).append(" runs, ")
+				.append(metrics.getFailures()).append(" failed, ")
+				.append(metrics.getRetries()).append(" retries\n");
+		if (metrics.getCount() == 0) {
+			return;
+		}
+		report.append("  latency ms: mean ").append(metrics.getMeanMillis())
+				.append(", p50 ").append(metrics.getPercentile(0.5))
+				.append(", p90 ").append(metrics.getPercentile(0.9))
+				.append(", p99 ").append(metrics.getPercentile(0.99))
+				.append(", max ").append(metrics.getMaxMillis()).append('\n');
+		report.append("  bytes ").append(metrics.getBytes())
+				.append(", throughput ")
+				.append(metrics.getThroughput() / 1024).append(" KB/s\n");
+		report.append("  histogram:");
+		long[] histogram = metrics.getHistogram();
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] > 0) {
+				report.append(" <").append(1L << i).append("ms=")
+						.append(histogram[i]);
+			}
+		}
+		report.append('\n');
+		Map<String, Long> errors = metrics.getErrors();
+		if (!errors.isEmpty()) {
+			report.append("  errors:");
+			for (Map.Entry<String, Long> error : errors.entrySet()) {
+				report.append(' ').append(error.getKey()).append('=')
+						.append(error.getValue());
+			}
+			report.append('\n');
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.metrics;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.openintents.oisafebackup.stream.InvalidBackupException;
+import org.openintents.oisafebackup.transport.TransportException;
+
+/**
+ * Counters for one kind of operation, e.g. uploads: how many ran and
+ * failed, a latency histogram, bytes moved, retries and why operations
+ * failed. Everything is an atomic counter, so recording takes no lock and,
+ * once an operation has started, allocates nothing.
+ * <p/>
+ * Latencies go into power of two buckets: bucket i counts operations that
+ * took less than 2^i milliseconds but at least half that.
+ */
+public class OperationMetrics {
+	public static final int BUCKETS = 25;
+
+	/** Error classes besides the kinds of TransportException */
+	public static final String ERROR_INVALID_BACKUP = "INVALID_BACKUP";
+	public static final String ERROR_IO = "IO";
+	public static final String ERROR_OTHER = "OTHER";
+
+	private static final TransportException.Kind[] KINDS = TransportException.Kind
+			.values();
+	private static final String[] ERROR_CLASSES = errorClasses();
+
+	private final String mName;
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mFailures = new AtomicLong();
+	private final AtomicLong mBytes = new AtomicLong();
+	private final AtomicLong mRetries = new AtomicLong();
+	private final AtomicLong mTotalMillis = new AtomicLong();
+	private final AtomicLong mMaxMillis = new AtomicLong();
+	private final AtomicLongArray mLatency = new AtomicLongArray(BUCKETS);
+	private final AtomicLongArray mErrors = new AtomicLongArray(
+			ERROR_CLASSES.length);
+
+	/**
+	 * One running operation. Progress may be reported from several threads,
+	 * one per channel.
+	 */
+	public class Recording {
+		private final long mStart = System.nanoTime();
+		/** Bytes last reported per channel, to turn totals into deltas */
+		private final AtomicLongArray mReported;
+		private boolean mEnded;
+
+		Recording(int channels) {
+			mReported = new AtomicLongArray(channels);
+		}
+
+		/**
+		 * Called from progress callbacks with the bytes the current attempt
+		 * moved so far. A smaller number than last time is a new attempt.
+		 */
+		public void progress(int channel, long bytes) {
+			long last = mReported.getAndSet(channel, bytes);
+			mBytes.addAndGet(bytes >= last ? bytes - last : bytes);
+		}
+
+		public void progress(long bytes) {
+			progress(0, bytes);
+		}
+
+		public void succeeded(int retries) {
+			end(retries, null, false);
+		}
+
+		/**
+		 * @param error
+		 *            why the operation failed, or null if it just returned
+		 *            without success
+		 */
+		public void failed(Throwable error, int retries) {
+			end(retries, error, true);
+		}
+
+		private void end(int retries, Throwable error, boolean failed) {
+			if (mEnded) {
+				return;
+			}
+			mEnded = true;
+			long millis = (System.nanoTime() - mStart) / 1000000;
+			mCount.incrementAndGet();
+			mRetries.addAndGet(retries);
+			mTotalMillis.addAndGet(millis);
+			mLatency.incrementAndGet(bucket(millis));
+			long max;
+			while (millis > (max = mMaxMillis.get())
+					&& !mMaxMillis.compareAndSet(max, millis)) {
+				// Lost a race with another operation, look again
+			}
+			if (failed) {
+				mFailures.incrementAndGet();
+				mErrors.incrementAndGet(errorClass(error));
+			}
+		}
+	}
+
+	public OperationMetrics(String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public Recording start() {
+		return start(1);
+	}
+
+	/**
+	 * @param channels
+	 *            number of transfers that report progress separately
+	 */
+	public Recording start(int channels) {
+		return new Recording(channels);
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getFailures() {
+		return mFailures.get();
+	}
+
+	public long getBytes() {
+		return mBytes.get();
+	}
+
+	public long getRetries() {
+		return mRetries.get();
+	}
+
+	public long getMaxMillis() {
+		return mMaxMillis.get();
+	}
+
+	public long getMeanMillis() {
+		long count = mCount.get();
+		return count == 0 ? 0 : mTotalMillis.get() / count;
+	}
+
+	/**
+	 * @return bytes per second over the time all operations took together
+	 */
+	public long getThroughput() {
+		long millis = mTotalMillis.get();
+		return millis == 0 ? 0 : mBytes.get() * 1000 / millis;
+	}
+
+	/**
+	 * @param fraction
+	 *            e.g. 0.9 for the 90th percentile
+	 * @return milliseconds that fraction of the operations took at most, to
+	 *         the precision of the histogram
+	 */
+	public long getPercentile(double fraction) {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += mLatency.get(i);
+		}
+		long wanted = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mLatency.get(i);
+			if (seen >= wanted && seen > 0) {
+				return Math.min(1L << i, mMaxMillis.get());
+			}
+		}
+		return 0;
+	}
+
+	public long[] getHistogram() {
+		long[] histogram = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			histogram[i] = mLatency.get(i);
+		}
+		return histogram;
+	}
+
+	/**
+	 * @return failures by error class, leaving out classes that never
+	 *         happened
+	 */
+	public Map<String, Long> getErrors() {
+		Map<String, Long> errors = new LinkedHashMap<String, Long>();
+		for (int i = 0; i < ERROR_CLASSES.length; i++) {
+			long count = mErrors.get(i);
+			if (count > 0) {
+				errors.put(ERROR_CLASSES[i], count);
+			}
+		}
+		return errors;
+	}
+
+	public void reset() {
+		mCount.set(0);
+		mFailures.set(0);
+		mBytes.set(0);
+		mRetries.set(0);
+		mTotalMillis.set(0);
+		mMaxMillis.set(0);
+		for (int i = 0; i < BUCKETS; i++) {
+			mLatency.set(i, 0);
+		}
+		for (int i = 0; i < ERROR_CLASSES.length; i++) {
+			mErrors.set(i, 0);
+		}
+	}
+
+	static int bucket(long millis) {
+		return Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+	}
+
+	private static int errorClass(Throwable error) {
+		if (InvalidBackupException.find(error) != null) {
+			return KINDS.length;
+		}
+		if (error instanceof TransportException) {
+			return ((TransportException) error).getKind().ordinal();
+		}
+		if (error instanceof IOException) {
+			return KINDS.length + 1;
+		}
+		return KINDS.length + 2;
+	}
+
+	private static String[] errorClasses() {
+		String[] classes = new String[KINDS.length + 3];
+		for (int i = 0; i < KINDS.length; i++) {
+			classes[i] = KINDS[i].name();
+		}
+		classes[KINDS.length] = ERROR_INVALID_BACKUP;
+		classes[KINDS.length + 1] = ERROR_IO;
+		classes[KINDS.length + 2] = ERROR_OTHER;
+		return classes;
+	}
+}
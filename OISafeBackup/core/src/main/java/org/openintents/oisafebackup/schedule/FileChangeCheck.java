@@ -0,0 +1,57 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.schedule;
+
+import java.io.File;
+
+import org.openintents.oisafebackup.sync.FingerprintIndex;
+
+/**
+ * Asks for an operation on a file again if the file changed while the
+ * last one ran. Taken when the operation is asked for and run when it is
+ * done, so a write that came in while the old contents were on their way
+ * isn't left for the next change. At worst this is one upload too many,
+ * which the fingerprint index turns into a no-op.
+ */
+public class FileChangeCheck implements Runnable {
+	private final File mFile;
+	private final FingerprintIndex.Fingerprint mBefore;
+	private final Runnable mAgain;
+
+	/**
+	 * @param again
+	 *            asks for the operation again, run by run() if file changed
+	 */
+	public FileChangeCheck(File file, Runnable again) {
+		mFile = file;
+		mBefore = FingerprintIndex.Fingerprint.of(file);
+		mAgain = again;
+	}
+
+	/**
+	 * @return true if file is still there and its size or last modified time
+	 *         differ from when this was created
+	 */
+	public boolean changed() {
+		return mFile.exists() && !mBefore.matches(mFile);
+	}
+
+	public void run() {
+		if (changed()) {
+			mAgain.run();
+		}
+	}
+}
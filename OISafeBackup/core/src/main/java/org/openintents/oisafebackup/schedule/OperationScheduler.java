@@ -0,0 +1,161 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.schedule;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs backup operations on a small pool of threads. Operations on the same
+ * path run one after the other, in the order they were asked for, while
+ * operations on different paths may run at the same time. Asking for an
+ * operation that is already waiting on the same path does nothing, so
+ * repeated taps on a button end up as a single transfer. Asking for one that
+ * is running queues one more run behind it: the running one may have read
+ * its data before the request, the next one sees the latest.
+ */
+public class OperationScheduler {
+	public static final int DEFAULT_THREADS = 3;
+
+	private static final long KEEP_ALIVE = 30;
+
+	private final ThreadPoolExecutor mExecutor;
+	/** Operation keys that are waiting to start */
+	private final Set<String> mWaiting = new HashSet<String>();
+	/** Per path, the running job first and the waiting ones after it */
+	private final Map<String, LinkedList<Job>> mQueues = new HashMap<String, LinkedList<Job>>();
+
+	public OperationScheduler() {
+		this(DEFAULT_THREADS);
+	}
+
+	public OperationScheduler(int threads) {
+		mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Backup #"
+								+ mCount.incrementAndGet());
+						thread.setPriority(Thread.NORM_PRIORITY - 1);
+						return thread;
+					}
+				});
+		// Don't keep threads around while nothing is backed up
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return true if operation on path is waiting to start. A running one
+	 *         doesn't count, asking again then queues another run.
+	 */
+	public synchronized boolean isScheduled(String operation, String path) {
+		return mWaiting.contains(key(operation, path));
+	}
+
+	/**
+	 * Run work once nothing else is running on path.
+	 * 
+	 * @return false if the same operation on path was already waiting, in
+	 *         which case work is dropped and the waiting one runs instead
+	 */
+	public synchronized boolean execute(String operation, String path,
+			Runnable work) {
+		String key = key(operation, path);
+		if (!mWaiting.add(key)) {
+			return false;
+		}
+		Job job = new Job(key, path, work);
+		LinkedList<Job> queue = mQueues.get(path);
+		if (queue == null) {
+			queue = new LinkedList<Job>();
+			mQueues.put(path, queue);
+			queue.add(job);
+			mExecutor.execute(job);
+		} else {
+			queue.add(job);
+		}
+		return true;
+	}
+
+	/**
+	 * @return an executor that runs everything given to it as operation on
+	 *         path, for AsyncTask.executeOnExecutor(). It throws
+	 *         RejectedExecutionException if the operation is already
+	 *         waiting, check isScheduled() first.
+	 */
+	public Executor executor(final String operation, final String path) {
+		return new Executor() {
+			public void execute(Runnable command) {
+				if (!OperationScheduler.this.execute(operation, path, command)) {
+					throw new RejectedExecutionException(operation + " " + path
+							+ " is already waiting");
+				}
+			}
+		};
+	}
+
+	private synchronized void started(Job job) {
+		// From now on a new request for it queues another run
+		mWaiting.remove(job.mKey);
+	}
+
+	private synchronized void finished(Job job) {
+		LinkedList<Job> queue = mQueues.get(job.mPath);
+		queue.removeFirst();
+		if (queue.isEmpty()) {
+			mQueues.remove(job.mPath);
+		} else {
+			mExecutor.execute(queue.getFirst());
+		}
+	}
+
+	private static String key(String operation, String path) {
+		return operation + " " + path;
+	}
+
+	private class Job implements Runnable {
+		final String mKey;
+		final String mPath;
+		final Runnable mWork;
+
+		Job(String key, String path, Runnable work) {
+			mKey = key;
+			mPath = path;
+			mWork = work;
+		}
+
+		public void run() {
+			started(this);
+			try {
+				mWork.run();
+			} finally {
+				finished(this);
+			}
+		}
+	}
+}
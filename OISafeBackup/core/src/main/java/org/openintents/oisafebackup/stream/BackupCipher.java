@@ -0,0 +1,376 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encryption of the backup before it leaves the device. The data is cut
+ * into chunks that are each sealed with AES-GCM, so encryption and
+ * decryption run in constant memory as the data streams by, and damage is
+ * found in the chunk it happens in.
+ * <p/>
+ * Header: the magic "OISE", format version, key derivation, iterations,
+ * salt, chunk size as a power of two, nonce prefix, key check. The key is
+ * derived from the passphrase with PBKDF2. A chunk's nonce is the prefix,
+ * the chunk number and whether it is the last chunk, so chunks can't be
+ * reordered, dropped or cut off at the end without failing. The key check
+ * is the tag of an empty message under a nonce no chunk uses, it tells a
+ * wrong passphrase apart from damaged data.
+ * <p/>
+ * An encrypted backup holds whatever BackupFormat would have uploaded, so
+ * compressed backups are compressed first.
+ */
+public class BackupCipher {
+	static final byte[] MAGIC = { 'O', 'I', 'S', 'E' };
+	static final byte VERSION = 1;
+	static final byte KDF_PBKDF2_SHA1 = 1;
+	static final int DEFAULT_ITERATIONS = 10000;
+	static final int SALT_LENGTH = 16;
+	static final byte DEFAULT_CHUNK_SHIFT = 16;
+	static final int PREFIX_LENGTH = 7;
+	static final int TAG_LENGTH = 16;
+	static final int HEADER_LENGTH = MAGIC.length + 2 + 4 + SALT_LENGTH + 1
+			+ PREFIX_LENGTH + TAG_LENGTH;
+
+	// Offsets into the header
+	private static final int ITERATIONS = MAGIC.length + 2;
+	private static final int SALT = ITERATIONS + 4;
+	private static final int CHUNK_SHIFT = SALT + SALT_LENGTH;
+	private static final int PREFIX = CHUNK_SHIFT + 1;
+	private static final int CHECK = PREFIX + PREFIX_LENGTH;
+
+	// Largest chunk a backup may ask the restore to buffer
+	private static final int MAX_CHUNK_SHIFT = 24;
+	private static final int KEY_BITS = 256;
+
+	static final byte FLAG_MORE = 0;
+	static final byte FLAG_LAST = 1;
+	private static final byte FLAG_CHECK = (byte) 0xff;
+
+	private static final SecureRandom sRandom = new SecureRandom();
+
+	/**
+	 * Thrown when a backup is encrypted and there is no passphrase, or a
+	 * different one.
+	 */
+	public static class PassphraseException extends InvalidBackupException {
+		private static final long serialVersionUID = 1L;
+
+		public PassphraseException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @return the source encrypted with a key derived from passphrase, with a
+	 *         header in front
+	 */
+	public static UploadSource encrypt(UploadSource source, char[] passphrase) {
+		return new EncryptedSource(source, passphrase);
+	}
+
+	/**
+	 * Wrap out so that an encrypted backup written to it arrives in out
+	 * decrypted. Anything else passes through unchanged, so backups uploaded
+	 * without encryption still restore.
+	 * 
+	 * @param passphrase
+	 *            null if none is set, encrypted backups then fail with a
+	 *            {@link PassphraseException}
+	 */
+	public static OutputStream decrypter(OutputStream out, char[] passphrase) {
+		return new DecryptingOutputStream(out, passphrase);
+	}
+
+	/**
+	 * @return number of bytes an encrypted backup of length bytes takes
+	 */
+	static long encryptedLength(long length, int chunkSize) {
+		long chunks = length == 0 ? 1 : (length + chunkSize - 1) / chunkSize;
+		return HEADER_LENGTH + length + chunks * TAG_LENGTH;
+	}
+
+	/**
+	 * Everything needed to encrypt or decrypt one backup.
+	 */
+	static class Parameters {
+		final byte[] header;
+		final SecretKey key;
+		final byte[] prefix;
+		final int chunkSize;
+
+		private Parameters(byte[] header, SecretKey key) {
+			this.header = header;
+			this.key = key;
+			prefix = Arrays.copyOfRange(header, PREFIX, PREFIX + PREFIX_LENGTH);
+			chunkSize = 1 << header[CHUNK_SHIFT];
+		}
+
+		/**
+		 * New salt and nonce prefix, so no two backups share a key and
+		 * nonce.
+		 */
+		static Parameters generate(char[] passphrase) throws IOException {
+			byte[] header = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+			header[MAGIC.length] = VERSION;
+			header[MAGIC.length + 1] = KDF_PBKDF2_SHA1;
+			putInt(header, ITERATIONS, DEFAULT_ITERATIONS);
+			byte[] random = new byte[SALT_LENGTH + PREFIX_LENGTH];
+			sRandom.nextBytes(random);
+			System.arraycopy(random, 0, header, SALT, SALT_LENGTH);
+			header[CHUNK_SHIFT] = DEFAULT_CHUNK_SHIFT;
+			System.arraycopy(random, SALT_LENGTH, header, PREFIX,
+					PREFIX_LENGTH);
+			Parameters parameters = new Parameters(header, deriveKey(
+					passphrase, header));
+			byte[] check = parameters.check();
+			System.arraycopy(check, 0, header, CHECK, TAG_LENGTH);
+			return parameters;
+		}
+
+		/**
+		 * Read a header written by {@link #generate(char[])}.
+		 */
+		static Parameters read(byte[] header, char[] passphrase)
+				throws IOException {
+			if (header[MAGIC.length] != VERSION
+					|| header[MAGIC.length + 1] != KDF_PBKDF2_SHA1
+					|| header[CHUNK_SHIFT] < 1
+					|| header[CHUNK_SHIFT] > MAX_CHUNK_SHIFT) {
+				throw new IOException("Backup was written by a newer version");
+			}
+			if (passphrase == null) {
+				throw new PassphraseException("Backup is encrypted");
+			}
+			Parameters parameters = new Parameters(header, deriveKey(
+					passphrase, header));
+			if (!Arrays.equals(parameters.check(), Arrays.copyOfRange(header,
+					CHECK, CHECK + TAG_LENGTH))) {
+				throw new PassphraseException(
+						"Backup was encrypted with another passphrase");
+			}
+			return parameters;
+		}
+
+		private byte[] check() throws IOException {
+			Cipher cipher = newCipher();
+			init(cipher, Cipher.ENCRYPT_MODE, 0xffffffffL, FLAG_CHECK);
+			try {
+				return cipher.doFinal();
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		/**
+		 * Set up cipher for the chunk with the given number.
+		 * 
+		 * @param flag
+		 *            {@link BackupCipher#FLAG_LAST} for the last chunk
+		 */
+		void init(Cipher cipher, int mode, long chunk, byte flag)
+				throws IOException {
+			if (chunk > 0xffffffffL) {
+				throw new IOException("Backup is too large to encrypt");
+			}
+			byte[] nonce = Arrays.copyOf(prefix, PREFIX_LENGTH + 5);
+			putInt(nonce, PREFIX_LENGTH, (int) chunk);
+			nonce[PREFIX_LENGTH + 4] = flag;
+			try {
+				cipher.init(mode, key, parameterSpec(nonce));
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e.toString());
+			}
+		}
+	}
+
+	static Cipher newCipher() throws IOException {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IOException("AES-GCM is not available: " + e);
+		}
+	}
+
+	private static AlgorithmParameterSpec parameterSpec(byte[] nonce) {
+		try {
+			return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+		} catch (NoClassDefFoundError e) {
+			// Before Android 4.4 the provider takes the nonce as an IV and
+			// always uses 128 bit tags
+			return new IvParameterSpec(nonce);
+		}
+	}
+
+	private static SecretKey deriveKey(char[] passphrase, byte[] header)
+			throws IOException {
+		byte[] salt = Arrays.copyOfRange(header, SALT, SALT + SALT_LENGTH);
+		int iterations = getInt(header, ITERATIONS);
+		try {
+			SecretKeyFactory factory = SecretKeyFactory
+					.getInstance("PBKDF2WithHmacSHA1");
+			byte[] key = factory.generateSecret(
+					new PBEKeySpec(passphrase, salt, iterations, KEY_BITS))
+					.getEncoded();
+			return new SecretKeySpec(key, "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Couldn't derive the key: " + e);
+		}
+	}
+
+	private static void putInt(byte[] b, int off, int value) {
+		b[off] = (byte) (value >>> 24);
+		b[off + 1] = (byte) (value >>> 16);
+		b[off + 2] = (byte) (value >>> 8);
+		b[off + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] b, int off) {
+		return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+				| (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+	}
+
+	/**
+	 * Holds back one chunk at a time, a full chunk is only decrypted once
+	 * more data shows it isn't the last.
+	 */
+	private static class DecryptingOutputStream extends FilterOutputStream {
+		private final char[] mPassphrase;
+		private final byte[] mHead = new byte[HEADER_LENGTH];
+		private int mHeadCount;
+		private boolean mDecided;
+		private Parameters mParameters;
+		private Cipher mCipher;
+		private byte[] mChunk;
+		private int mChunkCount;
+		private byte[] mPlain;
+		private long mChunkNumber;
+
+		DecryptingOutputStream(OutputStream out, char[] passphrase) {
+			super(out);
+			mPassphrase = passphrase;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!mDecided) {
+				int count = Math.min(len, HEADER_LENGTH - mHeadCount);
+				System.arraycopy(b, off, mHead, mHeadCount, count);
+				mHeadCount += count;
+				off += count;
+				len -= count;
+				if (mHeadCount < HEADER_LENGTH) {
+					return;
+				}
+				decide();
+			}
+			if (mParameters == null) {
+				if (len > 0) {
+					out.write(b, off, len);
+				}
+				return;
+			}
+			while (len > 0) {
+				if (mChunkCount == mChunk.length) {
+					decrypt(FLAG_MORE);
+				}
+				int count = Math.min(len, mChunk.length - mChunkCount);
+				System.arraycopy(b, off, mChunk, mChunkCount, count);
+				mChunkCount += count;
+				off += count;
+				len -= count;
+			}
+		}
+
+		/**
+		 * Look at the first bytes and set up to decrypt the rest.
+		 */
+		private void decide() throws IOException {
+			mDecided = true;
+			boolean encrypted = mHeadCount >= MAGIC.length
+					&& Arrays.equals(Arrays.copyOf(mHead, MAGIC.length), MAGIC);
+			if (!encrypted) {
+				// Plain or compressed backup
+				out.write(mHead, 0, mHeadCount);
+				return;
+			}
+			if (mHeadCount < HEADER_LENGTH) {
+				throw new InvalidBackupException("Encrypted backup is truncated");
+			}
+			mParameters = Parameters.read(mHead, mPassphrase);
+			mCipher = newCipher();
+			mChunk = new byte[mParameters.chunkSize + TAG_LENGTH];
+			mPlain = new byte[mParameters.chunkSize];
+		}
+
+		private void decrypt(byte flag) throws IOException {
+			mParameters.init(mCipher, Cipher.DECRYPT_MODE, mChunkNumber, flag);
+			int count;
+			try {
+				count = mCipher.doFinal(mChunk, 0, mChunkCount, mPlain, 0);
+			} catch (GeneralSecurityException e) {
+				throw new InvalidBackupException(
+						"Encrypted backup is damaged or truncated in chunk "
+								+ mChunkNumber);
+			}
+			mChunkNumber++;
+			mChunkCount = 0;
+			out.write(mPlain, 0, count);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (mDecided) {
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (!mDecided) {
+					// Shorter than a header
+					decide();
+				}
+				if (mParameters != null) {
+					decrypt(FLAG_LAST);
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
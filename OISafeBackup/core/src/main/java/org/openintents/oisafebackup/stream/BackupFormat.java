@@ -0,0 +1,175 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Format of the backup as stored on the remote. A compressed backup starts
+ * with a header naming how it was encoded, anything else is the plain
+ * oisafe.xml as written by OI Safe. That way backups uploaded before
+ * compression existed still restore.
+ * <p/>
+ * Header: the magic "OISB", format version, codec, dictionary. The codec is
+ * raw deflate primed with a preset dictionary of the OI Safe backup schema.
+ */
+public class BackupFormat {
+	static final byte[] MAGIC = { 'O', 'I', 'S', 'B' };
+	static final byte VERSION = 1;
+	static final byte CODEC_DEFLATE = 1;
+	static final byte DICTIONARY_OISAFE_1 = 1;
+	static final int HEADER_LENGTH = MAGIC.length + 3;
+
+	/**
+	 * Tag names and boilerplate of the backup OI Safe writes. Deflate finds
+	 * matches in the dictionary from the very first byte, which matters for
+	 * small vaults. Never change it, add a new one with a new id instead.
+	 */
+	private static final String DICTIONARY_1_TEXT = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>"
+			+ "<OISafe version=\"\" date=\"\"><MasterKey></MasterKey><Salt></Salt>"
+			+ "<Category name=\"\"><Entry><RowID></RowID><Description></Description>"
+			+ "<Website></Website><Username></Username><Password></Password>"
+			+ "<Note></Note><UniqueName></UniqueName><FileName></FileName>"
+			+ "</Entry></Category></OISafe>\n"
+			+ "</Description>\n<Website>\n</Website>\n<Username>\n</Username>\n"
+			+ "<Password>\n</Password>\n<Note>\n</Note>\n<UniqueName>\n</UniqueName>\n"
+			+ "</Entry>\n<Entry>\n<RowID>\n</RowID>\n<Description>";
+
+	static final byte[] DICTIONARY_1 = toBytes(DICTIONARY_1_TEXT);
+
+	static byte[] header() {
+		byte[] header = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+		header[MAGIC.length] = VERSION;
+		header[MAGIC.length + 1] = CODEC_DEFLATE;
+		header[MAGIC.length + 2] = DICTIONARY_OISAFE_1;
+		return header;
+	}
+
+	/**
+	 * @return the source compressed, with a header in front
+	 */
+	public static UploadSource compress(UploadSource source) {
+		return new CompressedSource(source);
+	}
+
+	/**
+	 * Wrap out so that whatever is written to it, compressed or not, arrives
+	 * in out as the plain backup. Decompression is streaming, memory use
+	 * doesn't depend on the size of the backup. Closing the returned stream
+	 * closes out.
+	 */
+	public static OutputStream decoder(OutputStream out) {
+		return new DecodingOutputStream(out);
+	}
+
+	private static class DecodingOutputStream extends FilterOutputStream {
+		private ByteArrayOutputStream mHead = new ByteArrayOutputStream(
+				HEADER_LENGTH);
+		private Inflater mInflater;
+
+		DecodingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (mHead != null) {
+				int count = Math.min(len, HEADER_LENGTH - mHead.size());
+				mHead.write(b, off, count);
+				off += count;
+				len -= count;
+				if (mHead.size() < HEADER_LENGTH) {
+					return;
+				}
+				decide();
+			}
+			if (len > 0) {
+				out.write(b, off, len);
+			}
+		}
+
+		/**
+		 * Look at the first bytes and set up out to decode the rest.
+		 */
+		private void decide() throws IOException {
+			byte[] head = mHead.toByteArray();
+			mHead = null;
+			if (head.length == HEADER_LENGTH
+					&& Arrays.equals(Arrays.copyOf(head, MAGIC.length), MAGIC)) {
+				if (head[MAGIC.length] != VERSION
+						|| head[MAGIC.length + 1] != CODEC_DEFLATE
+						|| head[MAGIC.length + 2] != DICTIONARY_OISAFE_1) {
+					throw new IOException(
+							"Backup was written by a newer version");
+				}
+				mInflater = new Inflater(true);
+				mInflater.setDictionary(DICTIONARY_1);
+				out = new InflaterOutputStream(out, mInflater);
+			} else {
+				// Plain backup
+				out.write(head);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (mHead == null) {
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (mHead != null) {
+					// Shorter than a header, so it can only be plain
+					decide();
+				}
+				if (mInflater != null) {
+					((InflaterOutputStream) out).finish();
+					if (!mInflater.finished()) {
+						throw new IOException("Compressed backup is truncated");
+					}
+				}
+			} finally {
+				out.close();
+				if (mInflater != null) {
+					mInflater.end();
+				}
+			}
+		}
+	}
+
+	private static byte[] toBytes(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
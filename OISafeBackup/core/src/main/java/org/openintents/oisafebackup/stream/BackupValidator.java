@@ -0,0 +1,677 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that bytes fed to it, in any number of pieces, make up a complete
+ * OI Safe backup: well-formed XML with an OISafe root holding one MasterKey,
+ * one Salt and entries that are either at the top or inside a category.
+ * <p/>
+ * It is a push tokenizer that looks at every byte once and keeps only the
+ * open element names, so memory use doesn't depend on the size of the
+ * backup. Hooked into a transfer with {@link #validating(UploadSource)} or
+ * {@link #wrap(OutputStream)} it checks the data as it goes by, without a
+ * second read of the file. Markup is all ASCII, so UTF-8 text needs no
+ * decoding.
+ * <p/>
+ * On the way it picks up what a backup can be recognized by: the date OI
+ * Safe wrote on the root, the category names and the number of entries.
+ * {@link #sink()} collects them without keeping the backup anywhere.
+ */
+public class BackupValidator {
+	static final String ROOT = "OISafe";
+	static final String MASTER_KEY = "MasterKey";
+	static final String SALT = "Salt";
+	static final String CATEGORY = "Category";
+	static final String ENTRY = "Entry";
+	static final String DATE = "date";
+	static final String NAME = "name";
+
+	/** OI Safe nests four deep, anything much deeper isn't a backup */
+	private static final int MAX_DEPTH = 16;
+	private static final int MAX_NAME_LENGTH = 64;
+	private static final int MAX_ENTITY_LENGTH = 10;
+	/** Longer values of the attributes kept are cut off */
+	private static final int MAX_VALUE_LENGTH = 256;
+	/** Names of further categories are only counted */
+	private static final int MAX_CATEGORY_NAMES = 256;
+
+	// Tokenizer states
+	private static final int TEXT = 0;
+	private static final int TAG_OPEN = 1;
+	private static final int START_NAME = 2;
+	private static final int ATTRIBUTES = 3;
+	private static final int ATTRIBUTE_NAME = 4;
+	private static final int ATTRIBUTE_EQUALS = 5;
+	private static final int ATTRIBUTE_VALUE = 6;
+	private static final int AFTER_ATTRIBUTE = 7;
+	private static final int EMPTY_TAG_END = 8;
+	private static final int END_NAME = 9;
+	private static final int END_TAG_END = 10;
+	private static final int ENTITY = 11;
+	private static final int BANG = 12;
+	private static final int COMMENT_START = 13;
+	private static final int COMMENT = 14;
+	private static final int CDATA_START = 15;
+	private static final int CDATA = 16;
+	private static final int PROCESSING_INSTRUCTION = 17;
+
+	private static final String CDATA_OPEN = "CDATA[";
+
+	private final String[] mStack = new String[MAX_DEPTH];
+	private final StringBuilder mName = new StringBuilder(MAX_NAME_LENGTH);
+	private final StringBuilder mEntity = new StringBuilder(MAX_ENTITY_LENGTH);
+	private final StringBuilder mAttribute = new StringBuilder(MAX_NAME_LENGTH);
+	/** Value of the current attribute if it is one that is kept, else null */
+	private ByteArrayOutputStream mValue;
+	private int mDepth;
+	private int mState = TEXT;
+	/** State to go back to after an entity reference */
+	private int mEntityReturn;
+	private byte mQuote;
+	/** Progress through a fixed sequence, like the end of a comment */
+	private int mMatched;
+
+	private long mPosition;
+	private boolean mRootSeen;
+	private boolean mRootClosed;
+	private boolean mFinished;
+	private int mMasterKeys;
+	private int mSalts;
+	private int mCategories;
+	private int mEntries;
+	private int mExpectedEntries = -1;
+	private String mDate;
+	private final List<String> mCategoryNames = new ArrayList<String>();
+
+	/**
+	 * Also require the backup to have this many entries, e.g. as many as
+	 * were restored from records.
+	 */
+	public void expectEntries(int entries) {
+		mExpectedEntries = entries;
+	}
+
+	public int getEntryCount() {
+		return mEntries;
+	}
+
+	public int getCategoryCount() {
+		return mCategories;
+	}
+
+	/**
+	 * @return the date attribute of the root as OI Safe wrote it, or null
+	 */
+	public String getDate() {
+		return mDate;
+	}
+
+	/**
+	 * @return names of the categories in the order they appear, at most the
+	 *         first {@value #MAX_CATEGORY_NAMES}
+	 */
+	public List<String> getCategoryNames() {
+		return Collections.unmodifiableList(mCategoryNames);
+	}
+
+	/**
+	 * @return true once the root has been closed, nothing that follows can
+	 *         change the entry count or the categories
+	 */
+	public boolean isComplete() {
+		return mRootClosed;
+	}
+
+	/**
+	 * Look at the next bytes of the backup.
+	 *
+	 * @throws InvalidBackupException
+	 *             as soon as the data can't be part of a backup
+	 */
+	public void update(byte[] b, int off, int len) throws InvalidBackupException {
+		if (mFinished) {
+			throw new InvalidBackupException("Data after the end of the backup");
+		}
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			next(b[i]);
+			mPosition++;
+		}
+	}
+
+	/**
+	 * Called after the last byte.
+	 *
+	 * @throws InvalidBackupException
+	 *             if the backup is cut short or misses required elements
+	 */
+	public void finish() throws InvalidBackupException {
+		if (mFinished) {
+			return;
+		}
+		mFinished = true;
+		if (mPosition == 0) {
+			throw fail("Backup is empty");
+		}
+		if (!mRootClosed || mState != TEXT) {
+			throw fail("Backup ends inside " + (mDepth > 0 ? "<"
+					+ mStack[mDepth - 1] + ">" : "markup"));
+		}
+		if (mMasterKeys != 1) {
+			throw fail("Expected one <" + MASTER_KEY + ">, found "
+					+ mMasterKeys);
+		}
+		if (mSalts != 1) {
+			throw fail("Expected one <" + SALT + ">, found " + mSalts);
+		}
+		if (mExpectedEntries >= 0 && mEntries != mExpectedEntries) {
+			throw fail("Expected " + mExpectedEntries + " entries, found "
+					+ mEntries);
+		}
+	}
+
+	/**
+	 * @return source whose streams are validated as they are read. A stream
+	 *         fails on the read that would return the last byte, so a
+	 *         transfer of an invalid backup never completes.
+	 */
+	public static UploadSource validating(final UploadSource source) {
+		return new UploadSource() {
+			@Override
+			public long length() throws IOException {
+				return source.length();
+			}
+
+			@Override
+			public long lastModified() {
+				return source.lastModified();
+			}
+
+			@Override
+			public InputStream open() throws IOException {
+				return new ValidatingInputStream(source.open(),
+						source.length(), new BackupValidator());
+			}
+		};
+	}
+
+	/**
+	 * @return stream that validates everything written to it before passing
+	 *         it on to out. close() fails if the backup is incomplete.
+	 */
+	public OutputStream wrap(OutputStream out) {
+		return new ValidatingOutputStream(out, this);
+	}
+
+	/**
+	 * @return stream that only validates and summarizes what is written to
+	 *         it, for looking at a backup without storing it
+	 */
+	public OutputStream sink() {
+		return new ValidatingOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, this);
+	}
+
+	private void next(byte c) throws InvalidBackupException {
+		switch (mState) {
+		case TEXT:
+			if (c == '<') {
+				mState = TAG_OPEN;
+			} else if (c == '&') {
+				startEntity(TEXT);
+			} else if (mDepth == 0 && !isSpace(c)) {
+				throw fail("Text outside of <" + ROOT + ">");
+			}
+			break;
+		case TAG_OPEN:
+			if (c == '/') {
+				mName.setLength(0);
+				mState = END_NAME;
+			} else if (c == '?') {
+				mMatched = 0;
+				mState = PROCESSING_INSTRUCTION;
+			} else if (c == '!') {
+				mState = BANG;
+			} else if (isNameStart(c)) {
+				mName.setLength(0);
+				mName.append((char) c);
+				mState = START_NAME;
+			} else {
+				throw fail("Bad tag");
+			}
+			break;
+		case START_NAME:
+			if (isNameChar(c)) {
+				appendName(c);
+			} else if (isSpace(c)) {
+				mState = ATTRIBUTES;
+			} else if (c == '>') {
+				open();
+				mState = TEXT;
+			} else if (c == '/') {
+				mState = EMPTY_TAG_END;
+			} else {
+				throw fail("Bad tag name");
+			}
+			break;
+		case ATTRIBUTES:
+		case AFTER_ATTRIBUTE:
+			if (c == '>') {
+				open();
+				mState = TEXT;
+			} else if (c == '/') {
+				mState = EMPTY_TAG_END;
+			} else if (isSpace(c)) {
+				mState = ATTRIBUTES;
+			} else if (mState == ATTRIBUTES && isNameStart(c)) {
+				mAttribute.setLength(0);
+				mAttribute.append((char) c);
+				mState = ATTRIBUTE_NAME;
+			} else {
+				throw fail("Bad attribute");
+			}
+			break;
+		case ATTRIBUTE_NAME:
+			if (c == '=') {
+				startValue();
+				mState = ATTRIBUTE_EQUALS;
+			} else if (isNameChar(c)) {
+				if (mAttribute.length() < MAX_NAME_LENGTH) {
+					mAttribute.append((char) c);
+				}
+			} else if (!isSpace(c)) {
+				throw fail("Bad attribute name");
+			}
+			break;
+		case ATTRIBUTE_EQUALS:
+			if (c == '"' || c == '\'') {
+				mQuote = c;
+				mState = ATTRIBUTE_VALUE;
+			} else if (!isSpace(c)) {
+				throw fail("Attribute value without quotes");
+			}
+			break;
+		case ATTRIBUTE_VALUE:
+			if (c == mQuote) {
+				endValue();
+				mState = AFTER_ATTRIBUTE;
+			} else if (c == '&') {
+				startEntity(ATTRIBUTE_VALUE);
+			} else if (c == '<') {
+				throw fail("'<' in attribute value");
+			} else if (mValue != null && mValue.size() < MAX_VALUE_LENGTH) {
+				mValue.write(c);
+			}
+			break;
+		case EMPTY_TAG_END:
+			if (c != '>') {
+				throw fail("Expected '>' after '/'");
+			}
+			open();
+			close(mStack[mDepth - 1]);
+			mState = TEXT;
+			break;
+		case END_NAME:
+			if (isNameChar(c)) {
+				appendName(c);
+			} else if (isSpace(c) || c == '>') {
+				close(mName.toString());
+				mState = c == '>' ? TEXT : END_TAG_END;
+			} else {
+				throw fail("Bad end tag");
+			}
+			break;
+		case END_TAG_END:
+			if (c == '>') {
+				mState = TEXT;
+			} else if (!isSpace(c)) {
+				throw fail("Expected '>' in end tag");
+			}
+			break;
+		case ENTITY:
+			if (c == ';') {
+				String text = checkEntity();
+				if (mEntityReturn == ATTRIBUTE_VALUE && mValue != null
+						&& mValue.size() < MAX_VALUE_LENGTH) {
+					byte[] bytes = toBytes(text);
+					mValue.write(bytes, 0, bytes.length);
+				}
+				mState = mEntityReturn;
+			} else if (mEntity.length() < MAX_ENTITY_LENGTH
+					&& (isNameChar(c) || c == '#')) {
+				mEntity.append((char) c);
+			} else {
+				throw fail("Bad character reference");
+			}
+			break;
+		case BANG:
+			if (c == '-') {
+				mState = COMMENT_START;
+			} else if (c == '[' && mDepth > 0) {
+				mMatched = 0;
+				mState = CDATA_START;
+			} else {
+				// Document types could declare entities, OI Safe never writes one
+				throw fail("Unsupported declaration");
+			}
+			break;
+		case COMMENT_START:
+			if (c != '-') {
+				throw fail("Bad comment");
+			}
+			mMatched = 0;
+			mState = COMMENT;
+			break;
+		case COMMENT:
+			// Waiting for "-->"
+			if (c == '-') {
+				mMatched = Math.min(mMatched + 1, 2);
+			} else if (c == '>' && mMatched == 2) {
+				mState = TEXT;
+			} else {
+				mMatched = 0;
+			}
+			break;
+		case CDATA_START:
+			if (c != CDATA_OPEN.charAt(mMatched)) {
+				throw fail("Bad CDATA section");
+			}
+			if (++mMatched == CDATA_OPEN.length()) {
+				mMatched = 0;
+				mState = CDATA;
+			}
+			break;
+		case CDATA:
+			// Waiting for "]]>"
+			if (c == ']') {
+				mMatched = Math.min(mMatched + 1, 2);
+			} else if (c == '>' && mMatched == 2) {
+				mState = TEXT;
+			} else {
+				mMatched = 0;
+			}
+			break;
+		case PROCESSING_INSTRUCTION:
+			// Waiting for "?>", the XML declaration is one of these
+			if (c == '>' && mMatched == 1) {
+				mState = TEXT;
+			} else {
+				mMatched = c == '?' ? 1 : 0;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Start tag of mName is complete.
+	 */
+	private void open() throws InvalidBackupException {
+		String name = mName.toString();
+		if (mDepth == 0) {
+			if (mRootSeen) {
+				throw fail("More than one root element");
+			}
+			if (!ROOT.equals(name)) {
+				throw fail("Root is <" + name + ">, not <" + ROOT + ">");
+			}
+			mRootSeen = true;
+		} else if (mDepth == MAX_DEPTH) {
+			throw fail("Elements nested too deep");
+		} else {
+			String parent = mStack[mDepth - 1];
+			if (ENTRY.equals(name)) {
+				if (!ROOT.equals(parent) && !CATEGORY.equals(parent)) {
+					throw fail("<" + ENTRY + "> inside <" + parent + ">");
+				}
+				mEntries++;
+			} else if (CATEGORY.equals(name)) {
+				if (!ROOT.equals(parent)) {
+					throw fail("<" + CATEGORY + "> inside <" + parent + ">");
+				}
+				mCategories++;
+			} else if (ROOT.equals(parent)) {
+				if (MASTER_KEY.equals(name)) {
+					mMasterKeys++;
+				} else if (SALT.equals(name)) {
+					mSalts++;
+				}
+			}
+		}
+		mStack[mDepth++] = name;
+	}
+
+	private void close(String name) throws InvalidBackupException {
+		if (mDepth == 0) {
+			throw fail("</" + name + "> without start tag");
+		}
+		if (!name.equals(mStack[mDepth - 1])) {
+			throw fail("</" + name + "> closes <" + mStack[mDepth - 1] + ">");
+		}
+		mStack[--mDepth] = null;
+		if (mDepth == 0) {
+			mRootClosed = true;
+		}
+	}
+
+	/**
+	 * An attribute value starts, keep it if it is one of the summary.
+	 */
+	private void startValue() {
+		String name = mName.toString();
+		String attribute = mAttribute.toString();
+		boolean keep = (mDepth == 0 && ROOT.equals(name) && DATE
+				.equals(attribute))
+				|| (mDepth == 1 && CATEGORY.equals(name) && NAME
+						.equals(attribute) && mCategoryNames.size() < MAX_CATEGORY_NAMES);
+		mValue = keep ? new ByteArrayOutputStream() : null;
+	}
+
+	private void endValue() {
+		if (mValue == null) {
+			return;
+		}
+		String value;
+		try {
+			value = mValue.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		mValue = null;
+		if (mDepth == 0) {
+			mDate = value;
+		} else {
+			mCategoryNames.add(value);
+		}
+	}
+
+	private void startEntity(int returnState) {
+		mEntityReturn = returnState;
+		mEntity.setLength(0);
+		mState = ENTITY;
+	}
+
+	/**
+	 * @return the text the entity stands for
+	 */
+	private String checkEntity() throws InvalidBackupException {
+		String entity = mEntity.toString();
+		if (entity.equals("amp")) {
+			return "&";
+		} else if (entity.equals("lt")) {
+			return "<";
+		} else if (entity.equals("gt")) {
+			return ">";
+		} else if (entity.equals("quot")) {
+			return "\"";
+		} else if (entity.equals("apos")) {
+			return "'";
+		}
+		try {
+			if (entity.startsWith("#x")) {
+				return codePoint(Integer.parseInt(entity.substring(2), 16));
+			} else if (entity.startsWith("#")) {
+				return codePoint(Integer.parseInt(entity.substring(1)));
+			}
+		} catch (NumberFormatException e) {
+			// Falls through to the error
+		}
+		throw fail("Unknown entity &" + entity + ";");
+	}
+
+	private String codePoint(int codePoint) throws InvalidBackupException {
+		if (!Character.isValidCodePoint(codePoint)) {
+			throw fail("Bad character reference &#" + codePoint + ";");
+		}
+		return new String(Character.toChars(codePoint));
+	}
+
+	private void appendName(byte c) throws InvalidBackupException {
+		if (mName.length() == MAX_NAME_LENGTH) {
+			throw fail("Element name too long");
+		}
+		mName.append((char) c);
+	}
+
+	private static byte[] toBytes(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private InvalidBackupException fail(String message) {
+		mFinished = true;
+		return new InvalidBackupException(message + " at byte " + mPosition);
+	}
+
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private static boolean isNameStart(byte c) {
+		// Bytes of multi-byte UTF-8 characters are negative
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+				|| c == ':' || c < 0;
+	}
+
+	private static boolean isNameChar(byte c) {
+		return isNameStart(c) || (c >= '0' && c <= '9') || c == '-'
+				|| c == '.';
+	}
+
+	private static class ValidatingInputStream extends FilterInputStream {
+		private final long mLength;
+		private final BackupValidator mValidator;
+		private long mRead;
+
+		ValidatingInputStream(InputStream in, long length,
+				BackupValidator validator) {
+			super(in);
+			mLength = length;
+			mValidator = validator;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = in.read(b, off, len);
+			if (count > 0) {
+				mValidator.update(b, off, count);
+				mRead += count;
+			}
+			if (count < 0 || mRead >= mLength) {
+				// Uploads stop reading at the length, so this is the end
+				mValidator.finish();
+			}
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Skipped bytes still have to be looked at
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			while (skipped < n) {
+				int count = read(buffer, 0,
+						(int) Math.min(buffer.length, n - skipped));
+				if (count < 0) {
+					break;
+				}
+				skipped += count;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	private static class ValidatingOutputStream extends FilterOutputStream {
+		private final BackupValidator mValidator;
+
+		ValidatingOutputStream(OutputStream out, BackupValidator validator) {
+			super(out);
+			mValidator = validator;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			mValidator.update(b, off, len);
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				mValidator.finish();
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
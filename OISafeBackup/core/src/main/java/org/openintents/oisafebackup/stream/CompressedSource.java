@@ -0,0 +1,124 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Compresses another source on the fly, with the BackupFormat header in
+ * front. Uploads need the length before the first byte is sent, so it is
+ * found by compressing once. Output up to MAX_KEPT is kept from that pass
+ * and served by open() for as long as the source keeps its length and last
+ * modified time, so a backup of usual size is only compressed once per
+ * upload. A bigger one is compressed again, deflate is deterministic and
+ * gives the same bytes.
+ */
+class CompressedSource extends UploadSource {
+	/** Most compressed bytes kept between length() and open() */
+	static final int MAX_KEPT = 4 * 1024 * 1024;
+
+	private final UploadSource mSource;
+	private long mLength = -1;
+	/** What the source looked like when mLength was found */
+	private long mSourceLength;
+	private long mSourceModified;
+	/** Output of the pass that found mLength, null if it was too big */
+	private byte[] mKept;
+
+	CompressedSource(UploadSource source) {
+		mSource = source;
+	}
+
+	@Override
+	public synchronized long length() throws IOException {
+		if (!isCurrent()) {
+			// Taken before reading, a write during the pass shows next time
+			long sourceLength = mSource.length();
+			long sourceModified = mSource.lastModified();
+			mLength = -1;
+			mKept = null;
+			ByteArrayOutputStream kept = new ByteArrayOutputStream();
+			InputStream in = compress();
+			try {
+				byte[] buffer = new byte[8192];
+				long length = 0;
+				int count;
+				while ((count = in.read(buffer)) >= 0) {
+					length += count;
+					if (kept != null && length > MAX_KEPT) {
+						kept = null;
+					} else if (kept != null) {
+						kept.write(buffer, 0, count);
+					}
+				}
+				mLength = length;
+			} finally {
+				in.close();
+			}
+			mKept = kept != null ? kept.toByteArray() : null;
+			mSourceLength = sourceLength;
+			mSourceModified = sourceModified;
+		}
+		return mLength;
+	}
+
+	@Override
+	public long lastModified() {
+		return mSource.lastModified();
+	}
+
+	@Override
+	public InputStream open() throws IOException {
+		synchronized (this) {
+			if (mKept != null && isCurrent()) {
+				return new ByteArrayInputStream(mKept);
+			}
+		}
+		return compress();
+	}
+
+	/**
+	 * @return true if mLength was found for the source as it is now
+	 */
+	private boolean isCurrent() throws IOException {
+		return mLength >= 0 && mSource.length() == mSourceLength
+				&& mSource.lastModified() == mSourceModified;
+	}
+
+	private InputStream compress() throws IOException {
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		deflater.setDictionary(BackupFormat.DICTIONARY_1);
+		InputStream compressed = new DeflaterInputStream(mSource.open(),
+				deflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+		return new SequenceInputStream(new ByteArrayInputStream(
+				BackupFormat.header()), compressed);
+	}
+}
@@ -0,0 +1,182 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dropbox's content_hash: the data is split into 4 MB blocks, each block is
+ * hashed with SHA-256, and the hash of the concatenated block hashes is the
+ * content hash. Two files with the same content hash have the same content,
+ * no matter which revision or device they came from.
+ * <p/>
+ * Bytes can be fed in order with update(), a file is hashed with
+ * {@link #hash(File)}, which maps the file and hashes its blocks in
+ * parallel on all cores.
+ */
+public class ContentHash {
+	public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+	private static final long KEEP_ALIVE = 10;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static ThreadPoolExecutor sExecutor;
+
+	private final MessageDigest mOverall = sha256();
+	private final MessageDigest mBlock = sha256();
+	private int mBlockLength;
+
+	public void update(byte[] b, int off, int len) {
+		while (len > 0) {
+			int count = Math.min(len, BLOCK_SIZE - mBlockLength);
+			mBlock.update(b, off, count);
+			mBlockLength += count;
+			off += count;
+			len -= count;
+			if (mBlockLength == BLOCK_SIZE) {
+				mOverall.update(mBlock.digest());
+				mBlockLength = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return hex content hash of everything passed to update()
+	 */
+	public String digest() {
+		if (mBlockLength > 0) {
+			mOverall.update(mBlock.digest());
+			mBlockLength = 0;
+		}
+		return toHex(mOverall.digest());
+	}
+
+	public static String of(byte[] data) {
+		ContentHash hash = new ContentHash();
+		hash.update(data, 0, data.length);
+		return hash.digest();
+	}
+
+	/**
+	 * @return hex content hash of file, read through memory maps with one
+	 *         block per task so all cores take part
+	 */
+	public static String hash(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			long size = channel.size();
+			int blocks = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			MessageDigest overall = sha256();
+			if (blocks <= 1) {
+				// Nothing to split, not worth a thread switch
+				if (size > 0) {
+					overall.update(hashBlock(channel, 0, size));
+				}
+				return toHex(overall.digest());
+			}
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(blocks);
+			ThreadPoolExecutor executor = executor();
+			for (int i = 0; i < blocks; i++) {
+				final long position = (long) i * BLOCK_SIZE;
+				final long length = Math.min(BLOCK_SIZE, size - position);
+				results.add(executor.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return hashBlock(channel, position, length);
+					}
+				}));
+			}
+			try {
+				for (Future<byte[]> result : results) {
+					overall.update(result.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while hashing " + file);
+			} catch (ExecutionException e) {
+				IOException error = new IOException("Couldn't hash " + file);
+				error.initCause(e.getCause());
+				throw error;
+			} finally {
+				for (Future<byte[]> result : results) {
+					result.cancel(false);
+				}
+			}
+			return toHex(overall.digest());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] hashBlock(FileChannel channel, long position,
+			long length) throws IOException {
+		MessageDigest digest = sha256();
+		digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+				length));
+		return digest.digest();
+	}
+
+	/**
+	 * One thread per core, gone again a few seconds after the last hash.
+	 */
+	private static synchronized ThreadPoolExecutor executor() {
+		if (sExecutor == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			sExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Content hash");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			sExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sExecutor;
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,165 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Encrypts another source on the fly, with the BackupCipher header in
+ * front. The length follows from the length of the source, no extra pass is
+ * needed.
+ * <p/>
+ * Every open() gives the same bytes, which chunked uploads need to resume.
+ * Salt and nonce prefix are new whenever the source changes, so different
+ * data is never sealed under the same nonce. For the same reason an
+ * interrupted upload only resumes with the same instance:
+ * {@link #lastModified()} is when the current key was made, not when the
+ * file was written.
+ */
+class EncryptedSource extends UploadSource {
+	private final UploadSource mSource;
+	private final char[] mPassphrase;
+	private BackupCipher.Parameters mParameters;
+	private long mParametersModified;
+	private long mParametersCreated;
+
+	EncryptedSource(UploadSource source, char[] passphrase) {
+		mSource = source;
+		mPassphrase = passphrase.clone();
+	}
+
+	private synchronized BackupCipher.Parameters parameters()
+			throws IOException {
+		if (mParameters == null
+				|| mParametersModified != mSource.lastModified()) {
+			mParametersModified = mSource.lastModified();
+			mParameters = BackupCipher.Parameters.generate(mPassphrase);
+			mParametersCreated = System.currentTimeMillis();
+		}
+		return mParameters;
+	}
+
+	@Override
+	public long length() throws IOException {
+		return BackupCipher.encryptedLength(mSource.length(),
+				parameters().chunkSize);
+	}
+
+	@Override
+	public synchronized long lastModified() {
+		try {
+			parameters();
+		} catch (IOException e) {
+			// open() will fail the same way
+			return mSource.lastModified();
+		}
+		return mParametersCreated;
+	}
+
+	@Override
+	public InputStream open() throws IOException {
+		return new EncryptingInputStream(parameters(), mSource.open());
+	}
+
+	private static class EncryptingInputStream extends InputStream {
+		private final BackupCipher.Parameters mParameters;
+		private final InputStream mIn;
+		private final Cipher mCipher;
+		// One chunk and the first byte of the next, to tell the last chunk
+		private final byte[] mPlain;
+		private int mPlainCount;
+		private final byte[] mOut;
+		private int mOutPosition;
+		private int mOutCount;
+		private long mChunkNumber;
+		private boolean mDone;
+
+		EncryptingInputStream(BackupCipher.Parameters parameters,
+				InputStream in) throws IOException {
+			mParameters = parameters;
+			mIn = in;
+			mCipher = BackupCipher.newCipher();
+			mPlain = new byte[parameters.chunkSize + 1];
+			mOut = new byte[parameters.chunkSize + BackupCipher.TAG_LENGTH];
+			System.arraycopy(parameters.header, 0, mOut, 0,
+					parameters.header.length);
+			mOutCount = parameters.header.length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (mOutPosition == mOutCount && !fill()) {
+				return -1;
+			}
+			int count = Math.min(len, mOutCount - mOutPosition);
+			System.arraycopy(mOut, mOutPosition, b, off, count);
+			mOutPosition += count;
+			return count;
+		}
+
+		/**
+		 * Encrypt the next chunk into mOut.
+		 * 
+		 * @return false at the end
+		 */
+		private boolean fill() throws IOException {
+			if (mDone) {
+				return false;
+			}
+			int count = mPlainCount;
+			int read;
+			while (count < mPlain.length
+					&& (read = mIn.read(mPlain, count, mPlain.length - count)) >= 0) {
+				count += read;
+			}
+			boolean last = count < mPlain.length;
+			int chunk = last ? count : count - 1;
+			mParameters.init(mCipher, Cipher.ENCRYPT_MODE, mChunkNumber++,
+					last ? BackupCipher.FLAG_LAST : BackupCipher.FLAG_MORE);
+			try {
+				mOutCount = mCipher.doFinal(mPlain, 0, chunk, mOut, 0);
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e.toString());
+			}
+			mOutPosition = 0;
+			if (last) {
+				mDone = true;
+			} else {
+				mPlain[0] = mPlain[chunk];
+				mPlainCount = 1;
+			}
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mIn.close();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import java.io.IOException;
+
+/**
+ * The data is not a complete, well-formed OI Safe backup.
+ */
+public class InvalidBackupException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public InvalidBackupException(String message) {
+		super(message);
+	}
+
+	/**
+	 * @return the InvalidBackupException among the causes of e, or null if
+	 *         e didn't fail because of the data
+	 */
+	public static InvalidBackupException find(Throwable e) {
+		while (e != null) {
+			if (e instanceof InvalidBackupException) {
+				return (InvalidBackupException) e;
+			}
+			e = e.getCause();
+		}
+		return null;
+	}
+}
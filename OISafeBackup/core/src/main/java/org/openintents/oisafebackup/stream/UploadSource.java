@@ -0,0 +1,63 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Data to upload that can be read more than once, e.g. to resume a chunked
+ * upload part way through.
+ */
+public abstract class UploadSource {
+
+	/**
+	 * @return number of bytes open() will return
+	 */
+	public abstract long length() throws IOException;
+
+	/**
+	 * @return last modified time of the underlying file, used to tell whether
+	 *         an interrupted upload still belongs to the same data
+	 */
+	public abstract long lastModified();
+
+	/**
+	 * Open a new stream from the beginning of the data.
+	 */
+	public abstract InputStream open() throws IOException;
+
+	public static UploadSource fromFile(final File file) {
+		return new UploadSource() {
+			@Override
+			public long length() {
+				return file.length();
+			}
+
+			@Override
+			public long lastModified() {
+				return file.lastModified();
+			}
+
+			@Override
+			public InputStream open() throws IOException {
+				return new FileInputStream(file);
+			}
+		};
+	}
+}
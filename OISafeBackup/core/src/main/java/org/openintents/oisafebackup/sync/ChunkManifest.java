@@ -0,0 +1,234 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ordered list of the chunks a backup is made of. The file is rebuilt by
+ * concatenating the chunks. A chunk is either stored under its hash or
+ * packed together with others into one larger object, a pack.
+ */
+public class ChunkManifest {
+	private static final String HEADER = "oisafebackup-manifest ";
+	/**
+	 * Version 1 manifests keep their chunks in a directory shared by every
+	 * backup, version 2 ones in a directory of their own, version 3 ones may
+	 * also pack chunks and list the objects about to be deleted
+	 */
+	public static final int VERSION = 3;
+	private static final String PACK = "pack";
+	private static final String OBSOLETE = "obsolete";
+
+	public static class Chunk {
+		public final String hash;
+		public final int length;
+		/** Object the chunk is in, its hash if it is stored by itself */
+		public final String pack;
+		/** Where in pack the chunk starts */
+		public final int offset;
+
+		public Chunk(String hash, int length) {
+			this(hash, length, hash, 0);
+		}
+
+		public Chunk(String hash, int length, String pack, int offset) {
+			this.hash = hash;
+			this.length = length;
+			this.pack = pack;
+			this.offset = offset;
+		}
+
+		boolean isPacked() {
+			return !pack.equals(hash) || offset != 0;
+		}
+	}
+
+	private final List<Chunk> mChunks = new ArrayList<Chunk>();
+	private final Map<String, Long> mPackSizes = new LinkedHashMap<String, Long>();
+	private final Set<String> mObsolete = new LinkedHashSet<String>();
+	private String mFileHash;
+	private long mLength;
+	private int mVersion = VERSION;
+
+	public void add(String hash, int length) {
+		add(new Chunk(hash, length));
+	}
+
+	public void add(Chunk chunk) {
+		mChunks.add(chunk);
+		mLength += chunk.length;
+	}
+
+	/**
+	 * Note the size of a pack, which tells how much of it is still used.
+	 */
+	public void addPack(String pack, long size) {
+		mPackSizes.put(pack, size);
+	}
+
+	/**
+	 * @return size of pack, or -1 if it wasn't noted
+	 */
+	public long getPackSize(String pack) {
+		Long size = mPackSizes.get(pack);
+		return size == null ? -1 : size;
+	}
+
+	/**
+	 * @return every object a chunk is in
+	 */
+	public Set<String> getPacks() {
+		Set<String> packs = new LinkedHashSet<String>();
+		for (Chunk chunk : mChunks) {
+			packs.add(chunk.pack);
+		}
+		return packs;
+	}
+
+	/**
+	 * List an object the previous manifest needed and this one doesn't. It is
+	 * only deleted by the upload after this one, so a restore that is still
+	 * reading the previous manifest elsewhere can finish.
+	 */
+	public void addObsolete(String pack) {
+		mObsolete.add(pack);
+	}
+
+	public Set<String> getObsolete() {
+		return Collections.unmodifiableSet(mObsolete);
+	}
+
+	public List<Chunk> getChunks() {
+		return Collections.unmodifiableList(mChunks);
+	}
+
+	public Set<String> getHashes() {
+		Set<String> hashes = new HashSet<String>();
+		for (Chunk chunk : mChunks) {
+			hashes.add(chunk.hash);
+		}
+		return hashes;
+	}
+
+	/**
+	 * @return hash of the whole file
+	 */
+	public String getFileHash() {
+		return mFileHash;
+	}
+
+	public void setFileHash(String fileHash) {
+		mFileHash = fileHash;
+	}
+
+	public long getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return format version the manifest was written in, VERSION for one
+	 *         that wasn't parsed
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(HEADER).append(mVersion).append('\n');
+		sb.append("file ").append(mFileHash).append(' ').append(mLength)
+				.append('\n');
+		for (Chunk chunk : mChunks) {
+			sb.append(chunk.hash).append(' ').append(chunk.length);
+			if (chunk.isPacked()) {
+				sb.append(' ').append(chunk.pack).append(' ')
+						.append(chunk.offset);
+			}
+			sb.append('\n');
+		}
+		for (Map.Entry<String, Long> pack : mPackSizes.entrySet()) {
+			sb.append(PACK).append(' ').append(pack.getKey()).append(' ')
+					.append(pack.getValue()).append('\n');
+		}
+		for (String pack : mObsolete) {
+			sb.append(OBSOLETE).append(' ').append(pack).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse a manifest written by {@link #toString()}.
+	 * 
+	 * @throws IOException
+	 *             if text isn't a manifest
+	 */
+	public static ChunkManifest parse(String text) throws IOException {
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		String header = reader.readLine();
+		int version = 0;
+		for (int known = 1; known <= VERSION; known++) {
+			if ((HEADER + known).equals(header)) {
+				version = known;
+			}
+		}
+		if (version == 0) {
+			throw new IOException("Not a chunk manifest");
+		}
+		ChunkManifest manifest = new ChunkManifest();
+		manifest.mVersion = version;
+		long length = -1;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] fields = line.split(" ");
+			try {
+				if (fields.length == 3 && fields[0].equals("file")) {
+					manifest.setFileHash(fields[1]);
+					length = Long.parseLong(fields[2]);
+				} else if (fields.length == 3 && fields[0].equals(PACK)) {
+					manifest.addPack(fields[1], Long.parseLong(fields[2]));
+				} else if (fields.length == 2 && fields[0].equals(OBSOLETE)) {
+					manifest.addObsolete(fields[1]);
+				} else if (fields.length == 2) {
+					manifest.add(fields[0], Integer.parseInt(fields[1]));
+				} else if (fields.length == 4) {
+					manifest.add(new Chunk(fields[0],
+							Integer.parseInt(fields[1]), fields[2],
+							Integer.parseInt(fields[3])));
+				} else if (line.length() > 0) {
+					throw new IOException("Bad manifest line: " + line);
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad manifest line: " + line);
+			}
+		}
+		if (length != manifest.getLength()) {
+			throw new IOException("Manifest length doesn't add up");
+		}
+		return manifest;
+	}
+}
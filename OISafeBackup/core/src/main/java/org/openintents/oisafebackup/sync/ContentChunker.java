@@ -0,0 +1,100 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks at content-defined boundaries, using a Gear
+ * rolling hash over the last 64 bytes. An edit only changes the chunks
+ * around it, the boundaries before and after it stay where they were.
+ */
+public class ContentChunker {
+	public static final int DEFAULT_MIN_SIZE = 1024;
+	public static final int DEFAULT_AVERAGE_SIZE = 4096;
+	public static final int DEFAULT_MAX_SIZE = 16384;
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// Fixed seed: chunk boundaries must never change between versions
+		Random random = new Random(0x6f6973616665L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final InputStream mIn;
+	private final int mMinSize;
+	private final int mMaxSize;
+	private final long mMask;
+
+	private final byte[] mReadBuffer = new byte[8192];
+	private int mReadPos;
+	private int mReadLimit;
+
+	public ContentChunker(InputStream in) {
+		this(in, DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param averageSize
+	 *            expected chunk size, rounded down to a power of two
+	 */
+	public ContentChunker(InputStream in, int minSize, int averageSize,
+			int maxSize) {
+		mIn = in;
+		mMinSize = minSize;
+		mMaxSize = maxSize;
+		int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+		// Use the high bits, they depend on the whole window
+		mMask = ((1L << bits) - 1) << (64 - bits);
+	}
+
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Read the next chunk into buffer, which must hold at least
+	 * {@link #getMaxSize()} bytes.
+	 * 
+	 * @return length of the chunk, 0 at the end of the stream
+	 */
+	public int next(byte[] buffer) throws IOException {
+		int length = 0;
+		long hash = 0;
+		while (length < mMaxSize) {
+			if (mReadPos == mReadLimit) {
+				mReadLimit = mIn.read(mReadBuffer);
+				mReadPos = 0;
+				if (mReadLimit <= 0) {
+					mReadLimit = 0;
+					break;
+				}
+			}
+			int b = mReadBuffer[mReadPos++] & 0xff;
+			buffer[length++] = (byte) b;
+			hash = (hash << 1) + GEAR[b];
+			if (length >= mMinSize && (hash & mMask) == 0) {
+				break;
+			}
+		}
+		return length;
+	}
+}
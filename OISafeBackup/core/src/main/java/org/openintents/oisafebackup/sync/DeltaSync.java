@@ -0,0 +1,365 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.CancelableTransport;
+import org.openintents.oisafebackup.transport.CancellationToken;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.RemotePaths;
+import org.openintents.oisafebackup.transport.TransferListener;
+import org.openintents.oisafebackup.transport.TransportException;
+
+/**
+ * Uploads a backup as content-defined chunks plus a small manifest. Chunks
+ * the previous manifest already references are not sent again, so the bytes
+ * uploaded depend on the size of the edit and not on the size of the vault.
+ * <p/>
+ * The manifest goes to remotePath + ".manifest", the chunks to a directory
+ * of their own under /chunks/. New chunks are packed into objects of up to
+ * PACK_SIZE, so a first upload or a restore takes one request per pack
+ * instead of one per chunk of a few KB. Every backup has its own chunk
+ * directory, as the packs one no longer needs are deleted and another
+ * backup can't tell.
+ * <p/>
+ * A pack the new manifest no longer needs is listed in it as obsolete and
+ * only deleted by the upload after, so a restore elsewhere that read the
+ * previous manifest a moment ago still finds every pack.
+ */
+public class DeltaSync {
+	public static final String MANIFEST_SUFFIX = ".manifest";
+	public static final String CHUNK_DIR = "/chunks/";
+	public static final int PACK_SIZE = 1024 * 1024;
+	/** Packs a restore keeps, for chunks that come back to an earlier one */
+	private static final int CACHED_PACKS = 4;
+	private static final SecureRandom sRandom = new SecureRandom();
+
+	public static class Result {
+		/** The remote manifest */
+		public final RemoteEntry entry;
+		public final ChunkManifest manifest;
+		/** Bytes of packs actually sent or received */
+		public final long bytesTransferred;
+
+		Result(RemoteEntry entry, ChunkManifest manifest, long bytesTransferred) {
+			this.entry = entry;
+			this.manifest = manifest;
+			this.bytesTransferred = bytesTransferred;
+		}
+	}
+
+	private final BackupTransport mTransport;
+	private final CancellationToken mToken = new CancellationToken();
+
+	public DeltaSync(BackupTransport transport) {
+		mTransport = new CancelableTransport(transport, mToken);
+	}
+
+	public static String manifestPath(String remotePath) {
+		return remotePath + MANIFEST_SUFFIX;
+	}
+
+	/**
+	 * @return directory the chunks of manifest are in. Those of version 1
+	 *         manifests are in CHUNK_DIR itself, shared by every backup.
+	 */
+	public static String chunkDir(String remotePath, ChunkManifest manifest) {
+		if (manifest.getVersion() == 1) {
+			return CHUNK_DIR;
+		}
+		return CHUNK_DIR + RemotePaths.flatName(remotePath) + "/";
+	}
+
+	/**
+	 * Upload the backup read from in.
+	 * 
+	 * @param previous
+	 *            manifest of the last upload, or null to send every chunk
+	 * @param previousRev
+	 *            revision of the remote manifest that previous was uploaded
+	 *            as. If the remote manifest has changed since, previous is
+	 *            not trusted.
+	 */
+	public Result upload(InputStream in, long length, String remotePath,
+			ChunkManifest previous, String previousRev,
+			TransferListener listener) throws TransportException, IOException {
+		String manifestPath = manifestPath(remotePath);
+		if (previous != null && !isCurrent(manifestPath, previousRev)) {
+			previous = null;
+		}
+		ChunkManifest manifest = new ChunkManifest();
+		String chunkDir = chunkDir(remotePath, manifest);
+		if (previous != null && !chunkDir.equals(chunkDir(remotePath, previous))) {
+			// Its chunks are in the shared directory, other backups may
+			// still need them. Start over in our own and leave those alone.
+			previous = null;
+		}
+		Map<String, ChunkManifest.Chunk> stored = reusable(previous);
+
+		MessageDigest fileDigest = newDigest();
+		MessageDigest chunkDigest = newDigest();
+		ContentChunker chunker = new ContentChunker(in);
+		byte[] buffer = new byte[chunker.getMaxSize()];
+		ByteArrayOutputStream pack = new ByteArrayOutputStream();
+		String packName = newPackName();
+		long processed = 0;
+		long sent = 0;
+		int count;
+		while ((count = chunker.next(buffer)) > 0) {
+			if (mToken.isCanceled()) {
+				throw new TransportException(TransportException.Kind.CANCELED,
+						"Upload canceled");
+			}
+			fileDigest.update(buffer, 0, count);
+			chunkDigest.update(buffer, 0, count);
+			String hash = toHex(chunkDigest.digest());
+			ChunkManifest.Chunk chunk = stored.get(hash);
+			if (chunk == null) {
+				if (pack.size() + count > PACK_SIZE) {
+					sent += sendPack(chunkDir, packName, pack, manifest);
+					packName = newPackName();
+				}
+				chunk = new ChunkManifest.Chunk(hash, count, packName,
+						pack.size());
+				pack.write(buffer, 0, count);
+				stored.put(hash, chunk);
+			}
+			manifest.add(chunk);
+			processed += count;
+			if (listener != null) {
+				listener.onProgress(processed, length);
+			}
+		}
+		if (pack.size() > 0) {
+			sent += sendPack(chunkDir, packName, pack, manifest);
+		}
+		manifest.setFileHash(toHex(fileDigest.digest()));
+
+		Set<String> packs = manifest.getPacks();
+		if (previous != null) {
+			for (String kept : packs) {
+				long size = previous.getPackSize(kept);
+				if (size >= 0) {
+					manifest.addPack(kept, size);
+				}
+			}
+			for (String dropped : previous.getPacks()) {
+				if (!packs.contains(dropped)) {
+					manifest.addObsolete(dropped);
+				}
+			}
+		}
+
+		byte[] text = toBytes(manifest.toString());
+		RemoteEntry entry = mTransport.upload(manifestPath,
+				new ByteArrayInputStream(text), text.length, null);
+
+		if (previous != null) {
+			// Left in place for one upload. Best effort, a leftover pack
+			// only costs space.
+			for (String obsolete : previous.getObsolete()) {
+				if (packs.contains(obsolete)) {
+					continue;
+				}
+				try {
+					mTransport.delete(chunkDir + obsolete);
+				} catch (TransportException ignored) {
+				}
+			}
+		}
+		return new Result(entry, manifest, sent);
+	}
+
+	/**
+	 * Rebuild the backup at remotePath from its manifest and chunks, checking
+	 * every chunk against its hash.
+	 * 
+	 */
+	public Result restore(String remotePath, OutputStream out,
+			TransferListener listener) throws TransportException, IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		RemoteEntry entry = mTransport.download(manifestPath(remotePath),
+				null, buffer, null);
+		ChunkManifest manifest = ChunkManifest.parse(buffer.toString("UTF-8"));
+		String chunkDir = chunkDir(remotePath, manifest);
+
+		MessageDigest fileDigest = newDigest();
+		MessageDigest chunkDigest = newDigest();
+		// Chunks mostly come in pack order, a few recent packs are enough
+		Map<String, byte[]> packs = new LinkedHashMap<String, byte[]>(
+				CACHED_PACKS * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+				return size() > CACHED_PACKS;
+			}
+		};
+		long restored = 0;
+		long received = 0;
+		for (ChunkManifest.Chunk chunk : manifest.getChunks()) {
+			if (mToken.isCanceled()) {
+				throw new TransportException(TransportException.Kind.CANCELED,
+						"Download canceled");
+			}
+			byte[] data = packs.get(chunk.pack);
+			if (data == null) {
+				buffer.reset();
+				mTransport.download(chunkDir + chunk.pack, null, buffer, null);
+				data = buffer.toByteArray();
+				received += data.length;
+				packs.put(chunk.pack, data);
+			}
+			boolean complete = chunk.offset + chunk.length <= data.length;
+			if (complete) {
+				chunkDigest.update(data, chunk.offset, chunk.length);
+			}
+			if (!complete || !chunk.hash.equals(toHex(chunkDigest.digest()))) {
+				// Damaged on the way, fetching it again may well work
+				throw new TransportException(TransportException.Kind.NETWORK,
+						"Chunk " + chunk.hash + " is corrupt");
+			}
+			fileDigest.update(data, chunk.offset, chunk.length);
+			out.write(data, chunk.offset, chunk.length);
+			restored += chunk.length;
+			if (listener != null) {
+				listener.onProgress(restored, manifest.getLength());
+			}
+		}
+		if (manifest.getFileHash() != null
+				&& !manifest.getFileHash().equals(toHex(fileDigest.digest()))) {
+			throw new IOException("Rebuilt backup doesn't match the manifest");
+		}
+		return new Result(entry, manifest, received);
+	}
+
+	/**
+	 * Stop for good and abort the transfer in flight. Only the calls of this
+	 * one are aborted, not those of others sharing the transport.
+	 */
+	public void cancel() {
+		mToken.cancel();
+	}
+
+	/**
+	 * @return where the chunks of previous are, by hash, leaving out those
+	 *         in packs that are mostly unused by now. Those are sent again
+	 *         into new packs, so a restore doesn't download mostly dead
+	 *         data and the old pack can go.
+	 */
+	private static Map<String, ChunkManifest.Chunk> reusable(
+			ChunkManifest previous) {
+		Map<String, ChunkManifest.Chunk> stored = new HashMap<String, ChunkManifest.Chunk>();
+		if (previous == null) {
+			return stored;
+		}
+		Map<String, Long> used = new HashMap<String, Long>();
+		for (ChunkManifest.Chunk chunk : previous.getChunks()) {
+			if (stored.put(chunk.hash, chunk) == null) {
+				Long bytes = used.get(chunk.pack);
+				used.put(chunk.pack, (bytes == null ? 0 : bytes) + chunk.length);
+			}
+		}
+		for (ChunkManifest.Chunk chunk : previous.getChunks()) {
+			long size = previous.getPackSize(chunk.pack);
+			if (size > 0 && used.get(chunk.pack) * 2 < size) {
+				stored.remove(chunk.hash);
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * @return bytes sent
+	 */
+	private long sendPack(String chunkDir, String name,
+			ByteArrayOutputStream pack, ChunkManifest manifest)
+			throws TransportException {
+		byte[] data = pack.toByteArray();
+		mTransport.upload(chunkDir + name, new ByteArrayInputStream(data),
+				data.length, null);
+		manifest.addPack(name, data.length);
+		pack.reset();
+		return data.length;
+	}
+
+	/**
+	 * Packs are named at random rather than by their contents, so a pack
+	 * that is rebuilt never replaces one a restore elsewhere still reads.
+	 */
+	private static String newPackName() {
+		byte[] name = new byte[12];
+		synchronized (sRandom) {
+			sRandom.nextBytes(name);
+		}
+		return "pack-" + toHex(name);
+	}
+
+	private boolean isCurrent(String manifestPath, String rev)
+			throws TransportException {
+		if (rev == null) {
+			return false;
+		}
+		try {
+			return rev.equals(mTransport.metadata(manifestPath).rev);
+		} catch (TransportException e) {
+			if (e.getKind() == TransportException.Kind.SERVER
+					&& e.getStatusCode() == TransportException.NOT_FOUND) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] toBytes(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
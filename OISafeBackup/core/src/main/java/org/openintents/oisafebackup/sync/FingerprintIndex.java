@@ -0,0 +1,248 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.openintents.oisafebackup.stream.ContentHash;
+
+/**
+ * Remembers size, last modified time and content hash of the local file last
+ * sent to (or restored from) each remote path. Lets an upload of an unchanged
+ * file be skipped without asking the server. The file is only hashed again
+ * when its size or last modified time changed.
+ */
+public class FingerprintIndex {
+	public static final String FILE_NAME = "fingerprints.properties";
+
+	private static final String LOCAL = ".local";
+	private static final String SIZE = ".size";
+	private static final String MODIFIED = ".modified";
+	private static final String HASH = ".hash";
+	private static final String REV = ".rev";
+
+	/**
+	 * Which way a backup has to go to bring both sides up to date.
+	 */
+	public enum Direction {
+		/** Both sides have the same content */
+		SAME,
+		/** Only the local file changed since the last transfer */
+		UPLOAD,
+		/** Only the remote file changed since the last transfer */
+		DOWNLOAD,
+		/** Both changed since the last transfer */
+		CONFLICT,
+		/** Nothing recorded to compare with */
+		UNKNOWN
+	}
+
+	/**
+	 * Size, last modified time and hash of a local file.
+	 */
+	public static class Fingerprint {
+		public final long size;
+		public final long modified;
+		/** Content hash of the contents, null if it wasn't needed yet */
+		public String hash;
+		/** True if the remote path already has exactly this content */
+		public boolean unchanged;
+
+		Fingerprint(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+
+		/**
+		 * @return size and last modified time of file as they are now
+		 */
+		public static Fingerprint of(File file) {
+			return new Fingerprint(file.length(), file.lastModified());
+		}
+
+		/**
+		 * @return true if file still has the size and last modified time it
+		 *         had when this was taken. Cheap, the contents aren't read.
+		 */
+		public boolean matches(File file) {
+			return file.length() == size && file.lastModified() == modified;
+		}
+	}
+
+	/** One per file, guarded by itself */
+	private static final Map<String, FingerprintIndex> sInstances = new HashMap<String, FingerprintIndex>();
+
+	private final File mIndexFile;
+	private final Properties mIndex = new Properties();
+
+	/**
+	 * @return the index kept in indexFile. Every caller gets the same
+	 *         instance, so tasks running side by side see each other's
+	 *         records instead of writing back stale copies.
+	 */
+	public static FingerprintIndex get(File indexFile) {
+		synchronized (sInstances) {
+			String key = indexFile.getAbsolutePath();
+			FingerprintIndex index = sInstances.get(key);
+			if (index == null) {
+				index = new FingerprintIndex(indexFile);
+				sInstances.put(key, index);
+			}
+			return index;
+		}
+	}
+
+	private FingerprintIndex(File indexFile) {
+		mIndexFile = indexFile;
+		// If it's lost, the worst case is one upload too many
+		PropertiesFile.load(indexFile, mIndex);
+	}
+
+	/**
+	 * Compare file with what was last recorded for remotePath.
+	 * 
+	 * @param remoteRev
+	 *            revision we believe the remote file has. The record only
+	 *            counts if it was made for the same revision.
+	 */
+	public synchronized Fingerprint check(File file, String remotePath,
+			String remoteRev) throws IOException {
+		Fingerprint fingerprint = Fingerprint.of(file);
+		String recordedHash = mIndex.getProperty(remotePath + HASH);
+		if (recordedHash == null
+				|| remoteRev == null
+				|| !remoteRev.equals(mIndex.getProperty(remotePath + REV))
+				|| !file.getAbsolutePath().equals(
+						mIndex.getProperty(remotePath + LOCAL))) {
+			return fingerprint;
+		}
+		if (String.valueOf(fingerprint.size).equals(
+				mIndex.getProperty(remotePath + SIZE))
+				&& String.valueOf(fingerprint.modified).equals(
+						mIndex.getProperty(remotePath + MODIFIED))) {
+			fingerprint.hash = recordedHash;
+			fingerprint.unchanged = true;
+			return fingerprint;
+		}
+		// Touched, but maybe not changed
+		fingerprint.hash = hash(file);
+		if (fingerprint.hash.equals(recordedHash)) {
+			fingerprint.unchanged = true;
+			mIndex.setProperty(remotePath + SIZE,
+					String.valueOf(fingerprint.size));
+			mIndex.setProperty(remotePath + MODIFIED,
+					String.valueOf(fingerprint.modified));
+			save();
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Record that remotePath now holds the contents of file.
+	 * 
+	 * @param fingerprint
+	 *            taken before the transfer started, or null to take it now
+	 */
+	public synchronized void record(File file, Fingerprint fingerprint,
+			String remotePath, String remoteRev) throws IOException {
+		if (fingerprint == null) {
+			fingerprint = Fingerprint.of(file);
+		}
+		if (fingerprint.hash == null) {
+			fingerprint.hash = hash(file);
+		}
+		mIndex.setProperty(remotePath + LOCAL, file.getAbsolutePath());
+		mIndex.setProperty(remotePath + SIZE, String.valueOf(fingerprint.size));
+		mIndex.setProperty(remotePath + MODIFIED,
+				String.valueOf(fingerprint.modified));
+		mIndex.setProperty(remotePath + HASH, fingerprint.hash);
+		if (remoteRev != null) {
+			mIndex.setProperty(remotePath + REV, remoteRev);
+		} else {
+			mIndex.remove(remotePath + REV);
+		}
+		save();
+	}
+
+	/**
+	 * Tell which side changed since file and remotePath were last in sync.
+	 * Compares content, not revisions, where it can: a recorded revision
+	 * only tells about the remote side, the local one is always hashed.
+	 * 
+	 * @param remoteContentHash
+	 *            content hash reported by the server, or null if it doesn't,
+	 *            in which case the recorded rev decides whether the remote
+	 *            side changed (always so with Dropbox API v1)
+	 */
+	public synchronized Direction direction(File file, String remotePath,
+			String remoteRev, String remoteContentHash) throws IOException {
+		String recordedHash = mIndex.getProperty(remotePath + HASH);
+		if (!file.exists()) {
+			return Direction.DOWNLOAD;
+		}
+		String localHash;
+		if (recordedHash != null
+				&& file.getAbsolutePath().equals(
+						mIndex.getProperty(remotePath + LOCAL))
+				&& String.valueOf(file.length()).equals(
+						mIndex.getProperty(remotePath + SIZE))
+				&& String.valueOf(file.lastModified()).equals(
+						mIndex.getProperty(remotePath + MODIFIED))) {
+			localHash = recordedHash;
+		} else {
+			localHash = hash(file);
+		}
+		if (localHash.equals(remoteContentHash)) {
+			return Direction.SAME;
+		}
+		boolean remoteChanged;
+		if (remoteContentHash != null) {
+			remoteChanged = !remoteContentHash.equals(recordedHash);
+		} else if (remoteRev != null
+				&& remoteRev.equals(mIndex.getProperty(remotePath + REV))) {
+			remoteChanged = false;
+		} else if (recordedHash == null) {
+			return Direction.UNKNOWN;
+		} else {
+			remoteChanged = true;
+		}
+		boolean localChanged = !localHash.equals(recordedHash);
+		if (remoteChanged) {
+			return localChanged ? Direction.CONFLICT : Direction.DOWNLOAD;
+		}
+		return localChanged ? Direction.UPLOAD : Direction.SAME;
+	}
+
+	public synchronized void clear() {
+		mIndex.clear();
+		mIndexFile.delete();
+	}
+
+	/**
+	 * @return hex content hash of the file, the same Dropbox reports for it
+	 */
+	public static String hash(File file) throws IOException {
+		return ContentHash.hash(file);
+	}
+
+	private void save() throws IOException {
+		PropertiesFile.store(mIndexFile, mIndex);
+	}
+}
@@ -0,0 +1,156 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.openintents.oisafebackup.transport.RemoteEntry;
+
+/**
+ * Remote metadata we fetched or produced ourselves, keyed by remote path and
+ * kept across restarts, so the last known state can be shown without a
+ * round trip.
+ */
+public class MetadataCache {
+	public static final String FILE_NAME = "metadata.properties";
+
+	private static final String REV = ".rev";
+	private static final String BYTES = ".bytes";
+	private static final String MODIFIED = ".modified";
+	private static final String FETCHED = ".fetched";
+	private static final String CONTENT_HASH = ".content_hash";
+
+	public static class Cached {
+		public final RemoteEntry entry;
+		/** When the entry was fetched, in milliseconds since the epoch */
+		public final long fetchedAt;
+
+		Cached(RemoteEntry entry, long fetchedAt) {
+			this.entry = entry;
+			this.fetchedAt = fetchedAt;
+		}
+
+		/**
+		 * @return true if the entry is younger than ttl milliseconds
+		 */
+		public boolean isFresh(long ttl) {
+			long age = System.currentTimeMillis() - fetchedAt;
+			return age >= 0 && age < ttl;
+		}
+	}
+
+	/** One per file, guarded by itself */
+	private static final Map<String, MetadataCache> sInstances = new HashMap<String, MetadataCache>();
+
+	private final File mFile;
+	private final Properties mCache = new Properties();
+
+	/**
+	 * @return the cache kept in file, the same instance for every caller
+	 */
+	public static MetadataCache get(File file) {
+		synchronized (sInstances) {
+			String key = file.getAbsolutePath();
+			MetadataCache cache = sInstances.get(key);
+			if (cache == null) {
+				cache = new MetadataCache(file);
+				sInstances.put(key, cache);
+			}
+			return cache;
+		}
+	}
+
+	private MetadataCache(File file) {
+		mFile = file;
+		PropertiesFile.load(file, mCache);
+	}
+
+	/**
+	 * @return the cached entry for path, or null
+	 */
+	public synchronized Cached get(String path) {
+		path = key(path);
+		String rev = mCache.getProperty(path + REV);
+		if (rev == null) {
+			return null;
+		}
+		try {
+			RemoteEntry entry = new RemoteEntry(path, rev, Long.parseLong(mCache
+					.getProperty(path + BYTES)), mCache.getProperty(path
+					+ MODIFIED));
+			entry.contentHash = mCache.getProperty(path + CONTENT_HASH);
+			return new Cached(entry, Long.parseLong(mCache.getProperty(path
+					+ FETCHED)));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public synchronized void put(String path, RemoteEntry entry) {
+		path = key(path);
+		if (entry == null || entry.rev == null) {
+			invalidate(path);
+			return;
+		}
+		mCache.setProperty(path + REV, entry.rev);
+		mCache.setProperty(path + BYTES, String.valueOf(entry.bytes));
+		mCache.setProperty(path + MODIFIED,
+				entry.modified == null ? "" : entry.modified);
+		mCache.setProperty(path + FETCHED,
+				String.valueOf(System.currentTimeMillis()));
+		if (entry.contentHash != null) {
+			mCache.setProperty(path + CONTENT_HASH, entry.contentHash);
+		} else {
+			mCache.remove(path + CONTENT_HASH);
+		}
+		save();
+	}
+
+	public synchronized void invalidate(String path) {
+		path = key(path);
+		mCache.remove(path + REV);
+		mCache.remove(path + BYTES);
+		mCache.remove(path + MODIFIED);
+		mCache.remove(path + FETCHED);
+		mCache.remove(path + CONTENT_HASH);
+		save();
+	}
+
+	public synchronized void clear() {
+		mCache.clear();
+		mFile.delete();
+	}
+
+	/**
+	 * Dropbox paths are case insensitive
+	 */
+	private static String key(String path) {
+		return path.toLowerCase(Locale.US);
+	}
+
+	private void save() {
+		try {
+			PropertiesFile.store(mFile, mCache);
+		} catch (IOException ignored) {
+			// Only costs a round trip next time
+		}
+	}
+}
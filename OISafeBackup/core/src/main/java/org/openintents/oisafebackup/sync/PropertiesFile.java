@@ -0,0 +1,73 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Small key/value files in the app's files dir, replaced atomically. Every
+ * store writes the whole file, so the stores built on this keep one shared
+ * instance per file.
+ */
+class PropertiesFile {
+
+	/**
+	 * Load file into properties. A missing or broken file gives empty
+	 * properties, the stores built on this can always be rebuilt.
+	 */
+	static void load(File file, Properties properties) {
+		if (!file.exists()) {
+			return;
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+		} catch (IOException e) {
+			properties.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	static void store(File file, Properties properties) throws IOException {
+		// Write next to the file and rename, so a crash can't leave half a
+		// file. The name is unique, two writers can't write into each other.
+		File tmp = File.createTempFile(file.getName() + ".", ".tmp",
+				file.getAbsoluteFile().getParentFile());
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Couldn't write " + file);
+		}
+	}
+}
@@ -0,0 +1,769 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.openintents.oisafebackup.transport.BackupTransport;
+import org.openintents.oisafebackup.transport.CancelableTransport;
+import org.openintents.oisafebackup.transport.CancellationToken;
+import org.openintents.oisafebackup.transport.RemoteEntry;
+import org.openintents.oisafebackup.transport.RemotePaths;
+import org.openintents.oisafebackup.transport.TransportException;
+
+/**
+ * Stores a backup on the server as a snapshot of all its records followed by
+ * journal segments with the records that changed since. An upload after a
+ * single edit sends one small segment and rewrites the head, which lists the
+ * snapshot and segments in order. Once the segments add up to more than the
+ * snapshot, or there are more than MAX_SEGMENTS of them, they are due to be
+ * compacted into a new snapshot. That is a step of its own, see compact(),
+ * so an upload only ever sends what changed plus the head.
+ * <p/>
+ * The journal is only extended if the head is still the one we wrote last.
+ * Otherwise, e.g. after a restore on another device, a fresh snapshot is
+ * written.
+ * <p/>
+ * A new snapshot leaves what the old head listed in place for one more
+ * generation, so a restore that read the old head just before can still
+ * finish. The new head lists it as obsolete and the snapshot after deletes
+ * it.
+ */
+public class RecordJournal {
+	public static final String RECORD_DIR = "/records/";
+	public static final String HEAD_SUFFIX = ".head";
+	/**
+	 * Segments a restore may have to replay. Together with the limit of the
+	 * journal to the size of the snapshot, a restore reads at most twice the
+	 * snapshot in at most MAX_SEGMENTS + 2 requests.
+	 */
+	public static final int MAX_SEGMENTS = 32;
+
+	private static final String HEAD_HEADER = "oisafebackup-records-head";
+	/** Version 2 added the obsolete objects */
+	private static final int HEAD_VERSION = 2;
+	private static final String DATA_HEADER = "oisafebackup-records 1";
+	private static final String SNAPSHOT = "snapshot.";
+	private static final String JOURNAL = "journal.";
+	private static final String PUT = "put";
+	private static final String DELETE = "del";
+
+	/** Outcome of an upload or restore */
+	public static class Result {
+		/** The head as it is now on the server */
+		public final RemoteEntry head;
+		public final RecordSet records;
+		public final long bytesTransferred;
+		/** True if a new snapshot was written */
+		public final boolean compacted;
+		/** True if the journal has grown enough to call compact() */
+		public final boolean compactionDue;
+
+		Result(RemoteEntry head, RecordSet records, long bytesTransferred,
+				boolean compacted, boolean compactionDue) {
+			this.head = head;
+			this.records = records;
+			this.bytesTransferred = bytesTransferred;
+			this.compacted = compacted;
+			this.compactionDue = compactionDue;
+		}
+	}
+
+	/**
+	 * Record hashes and head revision of the last upload or restore, kept in
+	 * the app's files dir.
+	 */
+	public static class State {
+		public static final String FILE_NAME = "records.properties";
+		private static final String REV_KEY = "#rev";
+
+		private final File mFile;
+		public Map<String, String> hashes;
+		public String headRev;
+
+		public State(File file) {
+			mFile = file;
+			Properties properties = new Properties();
+			PropertiesFile.load(file, properties);
+			headRev = properties.getProperty(REV_KEY);
+			properties.remove(REV_KEY);
+			if (headRev != null) {
+				hashes = new HashMap<String, String>();
+				for (String key : properties.stringPropertyNames()) {
+					hashes.put(key, properties.getProperty(key));
+				}
+			}
+		}
+
+		public void update(RecordSet records, RemoteEntry head)
+				throws IOException {
+			hashes = records.hashes();
+			headRev = head.rev;
+			Properties properties = new Properties();
+			properties.putAll(hashes);
+			properties.setProperty(REV_KEY, headRev);
+			PropertiesFile.store(mFile, properties);
+		}
+
+		public void clear() {
+			hashes = null;
+			headRev = null;
+			mFile.delete();
+		}
+	}
+
+	private static class Head {
+		long snapshot;
+		long snapshotBytes;
+		final List<long[]> segments = new ArrayList<long[]>();
+		/**
+		 * Snapshot and segments of the previous head, as "snapshot.<seq>" or
+		 * "journal.<seq>", for the next snapshot to delete
+		 */
+		final List<String> obsolete = new ArrayList<String>();
+		long next = 1;
+
+		boolean isCompactionDue() {
+			return segments.size() > MAX_SEGMENTS
+					|| journalBytes() > snapshotBytes;
+		}
+
+		long journalBytes() {
+			long bytes = 0;
+			for (long[] segment : segments) {
+				bytes += segment[1];
+			}
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(HEAD_HEADER).append(' ').append(HEAD_VERSION).append('\n');
+			sb.append("snapshot ").append(snapshot).append(' ')
+					.append(snapshotBytes).append('\n');
+			for (long[] segment : segments) {
+				sb.append("journal ").append(segment[0]).append(' ')
+						.append(segment[1]).append('\n');
+			}
+			for (String object : obsolete) {
+				sb.append("obsolete ").append(object).append('\n');
+			}
+			sb.append("next ").append(next).append('\n');
+			return sb.toString();
+		}
+
+		static Head parse(String text) throws IOException {
+			BufferedReader reader = new BufferedReader(new StringReader(text));
+			String header = reader.readLine();
+			int version = 0;
+			if (header != null && header.startsWith(HEAD_HEADER + ' ')) {
+				try {
+					version = Integer.parseInt(header.substring(HEAD_HEADER
+							.length() + 1));
+				} catch (NumberFormatException e) {
+					// Not ours
+				}
+			}
+			if (version < 1 || version > HEAD_VERSION) {
+				throw new IOException("Not a record journal head");
+			}
+			Head head = new Head();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				try {
+					if (fields.length == 3 && fields[0].equals("snapshot")) {
+						head.snapshot = Long.parseLong(fields[1]);
+						head.snapshotBytes = Long.parseLong(fields[2]);
+					} else if (fields.length == 3
+							&& fields[0].equals("journal")) {
+						head.segments.add(new long[] {
+								Long.parseLong(fields[1]),
+								Long.parseLong(fields[2]) });
+					} else if (fields.length == 2
+							&& fields[0].equals("obsolete")) {
+						head.obsolete.add(fields[1]);
+					} else if (fields.length == 2 && fields[0].equals("next")) {
+						head.next = Long.parseLong(fields[1]);
+					} else if (line.length() > 0) {
+						throw new IOException("Bad head line: " + line);
+					}
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad head line: " + line);
+				}
+			}
+			return head;
+		}
+	}
+
+	private final BackupTransport mTransport;
+	private final CancellationToken mToken = new CancellationToken();
+
+	public RecordJournal(BackupTransport transport) {
+		mTransport = new CancelableTransport(transport, mToken);
+	}
+
+	/**
+	 * @return path of the head listing the snapshot and segments of
+	 *         remotePath
+	 */
+	public static String headPath(String remotePath) {
+		return RECORD_DIR + name(remotePath) + HEAD_SUFFIX;
+	}
+
+	/**
+	 * Bring the server up to date with records. Appends a segment, or writes
+	 * a fresh snapshot if there is no journal we can extend. A journal that
+	 * grew too long is left for compact().
+	 * 
+	 * @param state
+	 *            what was uploaded or restored last, updated on success
+	 */
+	public Result upload(RecordSet records, String remotePath, State state)
+			throws TransportException, IOException {
+		String headPath = headPath(remotePath);
+		RemoteEntry headEntry = metadata(headPath);
+		Head head = null;
+		if (headEntry != null) {
+			head = Head.parse(new String(download(headPath, headEntry.rev),
+					"UTF-8"));
+		}
+		if (head == null || state.hashes == null
+				|| !headEntry.rev.equals(state.headRev)) {
+			return writeSnapshot(records, remotePath, head, state);
+		}
+		byte[] segment = encodeChanges(records, state.hashes);
+		if (segment == null) {
+			// Nothing changed since the last upload
+			return new Result(headEntry, records, 0, false,
+					head.isCompactionDue());
+		}
+		long seq = head.next++;
+		upload(segmentPath(remotePath, seq), segment);
+		head.segments.add(new long[] { seq, segment.length });
+		byte[] headData = head.toString().getBytes("UTF-8");
+		headEntry = upload(headPath, headData);
+		state.update(records, headEntry);
+		return new Result(headEntry, records, segment.length
+				+ headData.length, false, head.isCompactionDue());
+	}
+
+	/**
+	 * Replace the snapshot and segments of remotePath with a single snapshot
+	 * of records. Meant to follow an upload whose result says it is due, as
+	 * a step of its own: nothing is lost if it fails or never runs, restores
+	 * only take longer.
+	 * 
+	 * @param records
+	 *            what the journal holds, i.e. what was just uploaded
+	 * @param state
+	 *            what was uploaded last, updated on success
+	 * @return the result, or null if the journal changed since state was
+	 *         updated and was left alone
+	 */
+	public Result compact(RecordSet records, String remotePath, State state)
+			throws TransportException, IOException {
+		String headPath = headPath(remotePath);
+		RemoteEntry headEntry = metadata(headPath);
+		if (headEntry == null || !headEntry.rev.equals(state.headRev)) {
+			return null;
+		}
+		Head head = Head.parse(new String(download(headPath, headEntry.rev),
+				"UTF-8"));
+		return writeSnapshot(records, remotePath, head, state);
+	}
+
+	/**
+	 * Write records as a new snapshot and point the head at it alone. What
+	 * the old head listed becomes obsolete, what it had as obsolete is
+	 * deleted.
+	 * 
+	 * @param head
+	 *            the current head, or null if there is none
+	 */
+	private Result writeSnapshot(RecordSet records, String remotePath,
+			Head head, State state) throws TransportException, IOException {
+		List<String> delete = new ArrayList<String>();
+		if (head == null) {
+			head = new Head();
+		} else {
+			delete.addAll(head.obsolete);
+			head.obsolete.clear();
+			head.obsolete.add(SNAPSHOT + head.snapshot);
+			for (long[] segment : head.segments) {
+				head.obsolete.add(JOURNAL + segment[0]);
+			}
+		}
+		byte[] snapshot = encodeAll(records);
+		long seq = head.next++;
+		upload(snapshotPath(remotePath, seq), snapshot);
+		head.snapshot = seq;
+		head.snapshotBytes = snapshot.length;
+		head.segments.clear();
+		byte[] headData = head.toString().getBytes("UTF-8");
+		RemoteEntry headEntry = upload(headPath(remotePath), headData);
+		state.update(records, headEntry);
+
+		for (String object : delete) {
+			try {
+				mTransport.delete(objectPath(remotePath, object));
+			} catch (TransportException e) {
+				// Only wastes space, nothing refers to it any more
+			}
+		}
+		return new Result(headEntry, records, snapshot.length
+				+ headData.length, true, false);
+	}
+
+	/**
+	 * Replay the snapshot and all segments of remotePath.
+	 * 
+	 * @param state
+	 *            updated with the restored records, may be null
+	 */
+	public Result restore(String remotePath, State state)
+			throws TransportException, IOException {
+		String headPath = headPath(remotePath);
+		RemoteEntry headEntry = mTransport.metadata(headPath);
+		byte[] headData = download(headPath, headEntry.rev);
+		long received = headData.length;
+		Head head = Head.parse(new String(headData, "UTF-8"));
+
+		RecordSet records = new RecordSet();
+		byte[] snapshot = download(snapshotPath(remotePath, head.snapshot),
+				null);
+		received += snapshot.length;
+		apply(snapshot, records);
+		for (long[] segment : head.segments) {
+			byte[] data = download(segmentPath(remotePath, segment[0]), null);
+			received += data.length;
+			apply(data, records);
+		}
+		if (state != null) {
+			state.update(records, headEntry);
+		}
+		return new Result(headEntry, records, received, false,
+				head.isCompactionDue());
+	}
+
+	/**
+	 * Write the backup at remotePath out as XML, as restore() followed by
+	 * RecordSet.writeXml() would, without holding all of it: only the records
+	 * the segments changed are kept while the snapshot streams past.
+	 * 
+	 * @return the head
+	 */
+	public RemoteEntry writeXml(String remotePath, OutputStream out)
+			throws TransportException, IOException {
+		String headPath = headPath(remotePath);
+		RemoteEntry headEntry = mTransport.metadata(headPath);
+		Head head = Head.parse(new String(download(headPath, headEntry.rev),
+				"UTF-8"));
+
+		// Later segments override earlier ones
+		final Map<String, String> changes = new HashMap<String, String>();
+		for (long[] segment : head.segments) {
+			RecordReader reader = new RecordReader() {
+				@Override
+				void put(String key, String value) {
+					changes.put(key, value);
+				}
+
+				@Override
+				void delete(String key) {
+					changes.put(key, null);
+				}
+			};
+			read(segmentPath(remotePath, segment[0]), reader);
+		}
+		read(snapshotPath(remotePath, head.snapshot), new SnapshotWriter(out,
+				changes));
+		return headEntry;
+	}
+
+	/**
+	 * Stop for good and abort the transfer in flight. Only the calls of this
+	 * one are aborted, not those of others sharing the transport.
+	 */
+	public void cancel() {
+		mToken.cancel();
+	}
+
+	/**
+	 * @return a segment with the records that differ from hashes, or null if
+	 *         none do
+	 */
+	static byte[] encodeChanges(RecordSet records, Map<String, String> hashes)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		boolean changed = false;
+		for (String key : records.keys()) {
+			String value = records.get(key);
+			if (!RecordSet.hash(value).equals(hashes.get(key))) {
+				appendPut(sb, key, value);
+				changed = true;
+			}
+		}
+		for (String key : hashes.keySet()) {
+			if (records.get(key) == null) {
+				sb.append(DELETE).append(' ').append(key.length()).append('\n')
+						.append(key).append('\n');
+				changed = true;
+			}
+		}
+		if (!changed) {
+			return null;
+		}
+		return (DATA_HEADER + '\n' + sb).getBytes("UTF-8");
+	}
+
+	/**
+	 * @return a snapshot of records, in XML order so it can be turned into a
+	 *         backup while it is read
+	 */
+	static byte[] encodeAll(RecordSet records) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(DATA_HEADER).append('\n');
+		for (String key : records.xmlOrder()) {
+			appendPut(sb, key, records.get(key));
+		}
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	private static void appendPut(StringBuilder sb, String key, String value) {
+		// Lengths in chars, so keys and values may hold anything
+		sb.append(PUT).append(' ').append(key.length()).append(' ')
+				.append(value.length()).append('\n').append(key).append(value)
+				.append('\n');
+	}
+
+	/**
+	 * Apply a snapshot or segment to records.
+	 */
+	static void apply(byte[] data, final RecordSet records) throws IOException {
+		RecordReader reader = new RecordReader() {
+			@Override
+			void put(String key, String value) {
+				records.put(key, value);
+			}
+
+			@Override
+			void delete(String key) {
+				records.remove(key);
+			}
+		};
+		reader.write(data);
+		reader.close();
+	}
+
+	/**
+	 * Parses a snapshot or segment as it is written to it, one record at a
+	 * time, so it never has to be in memory as a whole.
+	 */
+	private abstract static class RecordReader extends OutputStream {
+		private final CharsetDecoder mDecoder = Charset.forName("UTF-8")
+				.newDecoder();
+		private final ByteBuffer mBytes = ByteBuffer.allocate(8192);
+		private final CharBuffer mChars = CharBuffer.allocate(8192);
+		/** Decoded text not parsed yet, never more than one record */
+		private final StringBuilder mText = new StringBuilder();
+		private boolean mHeaderSeen;
+
+		abstract void put(String key, String value) throws IOException;
+
+		abstract void delete(String key) throws IOException;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int count = Math.min(len, mBytes.remaining());
+				mBytes.put(b, off, count);
+				off += count;
+				len -= count;
+				mBytes.flip();
+				// Lengths are in chars, a char split across writes waits
+				if (mDecoder.decode(mBytes, mChars, false).isError()) {
+					throw new IOException("Record journal isn't UTF-8");
+				}
+				mBytes.compact();
+				mChars.flip();
+				mText.append(mChars);
+				mChars.clear();
+				parse();
+			}
+		}
+
+		/**
+		 * Fails if the data ended inside a record.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!mHeaderSeen || mText.length() > 0 || mBytes.position() > 0) {
+				throw new IOException("Record journal is truncated");
+			}
+		}
+
+		private void parse() throws IOException {
+			int pos = 0;
+			if (!mHeaderSeen) {
+				if (mText.length() <= DATA_HEADER.length()) {
+					return;
+				}
+				if (!mText.substring(0, DATA_HEADER.length() + 1).equals(
+						DATA_HEADER + '\n')) {
+					throw new IOException("Not a record snapshot or journal");
+				}
+				mHeaderSeen = true;
+				pos = DATA_HEADER.length() + 1;
+			}
+			try {
+				int eol;
+				while ((eol = mText.indexOf("\n", pos)) >= 0) {
+					String[] fields = mText.substring(pos, eol).split(" ");
+					int start = eol + 1;
+					if (fields[0].equals(PUT) && fields.length == 3) {
+						int keyLength = Integer.parseInt(fields[1]);
+						int valueLength = Integer.parseInt(fields[2]);
+						int end = start + keyLength + valueLength;
+						if (end >= mText.length()) {
+							break;
+						}
+						put(mText.substring(start, start + keyLength),
+								mText.substring(start + keyLength, end));
+						pos = end + 1;
+					} else if (fields[0].equals(DELETE) && fields.length == 2) {
+						int end = start + Integer.parseInt(fields[1]);
+						if (end >= mText.length()) {
+							break;
+						}
+						delete(mText.substring(start, end));
+						pos = end + 1;
+					} else {
+						throw new IOException("Bad record journal line");
+					}
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad record journal line");
+			}
+			mText.delete(0, pos);
+		}
+	}
+
+	/**
+	 * Writes a snapshot out as XML while it is read, with the changes of the
+	 * segments applied on the way. Needs the snapshot in XML order, the way
+	 * encodeAll() writes it. One written before it did is collected and
+	 * written out once complete.
+	 */
+	private static class SnapshotWriter extends RecordReader {
+		private final OutputStream mOut;
+		/** Records the segments changed, null for a deleted one */
+		private final Map<String, String> mChanges;
+		private String mHeader;
+		private String mCategories;
+		private RecordSet.XmlWriter mWriter;
+		private String mCategory;
+		private RecordSet mCollected;
+
+		SnapshotWriter(OutputStream out, Map<String, String> changes) {
+			mOut = out;
+			mChanges = changes;
+		}
+
+		@Override
+		void put(String key, String value) throws IOException {
+			if (mChanges.containsKey(key)) {
+				value = mChanges.remove(key);
+				if (value == null) {
+					return;
+				}
+			}
+			if (mCollected != null) {
+				mCollected.put(key, value);
+			} else if (!key.startsWith(RecordSet.ENTRY_PREFIX)) {
+				if (key.equals(RecordSet.HEADER_KEY)) {
+					mHeader = value;
+				} else if (key.equals(RecordSet.CATEGORIES_KEY)) {
+					mCategories = value;
+				}
+			} else if (mWriter == null
+					&& (mHeader == null || mCategories == null)) {
+				// Older snapshot with the header after the entries, nothing
+				// can be written before the end
+				mCollected = new RecordSet();
+				if (mHeader != null) {
+					mCollected.put(RecordSet.HEADER_KEY, mHeader);
+				}
+				if (mCategories != null) {
+					mCollected.put(RecordSet.CATEGORIES_KEY, mCategories);
+				}
+				mCollected.put(key, value);
+			} else {
+				if (mWriter == null) {
+					mWriter = new RecordSet.XmlWriter(mOut, changed(
+							RecordSet.HEADER_KEY, mHeader), changed(
+							RecordSet.CATEGORIES_KEY, mCategories));
+				}
+				String category = RecordSet.categoryOf(key);
+				if (mCategory != null && !category.equals(mCategory)) {
+					// The snapshot is done with that category
+					writeAdded(mCategory);
+				}
+				mCategory = category;
+				mWriter.entry(key, value);
+			}
+		}
+
+		@Override
+		void delete(String key) throws IOException {
+			throw new IOException("Snapshot deletes a record");
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			if (mCollected != null) {
+				for (Map.Entry<String, String> change : mChanges.entrySet()) {
+					if (change.getValue() != null) {
+						mCollected.put(change.getKey(), change.getValue());
+					}
+				}
+				mChanges.clear();
+				mCollected.writeXml(mOut);
+				return;
+			}
+			if (mWriter == null) {
+				mWriter = new RecordSet.XmlWriter(mOut, changed(
+						RecordSet.HEADER_KEY, mHeader), changed(
+						RecordSet.CATEGORIES_KEY, mCategories));
+			}
+			writeAdded(null);
+			mWriter.finish();
+		}
+
+		private String changed(String key, String value) {
+			String change = mChanges.remove(key);
+			return change != null ? change : value;
+		}
+
+		/**
+		 * Write the entries the segments added, in category, or all if null.
+		 */
+		private void writeAdded(String category) throws IOException {
+			RecordSet added = new RecordSet();
+			Iterator<Map.Entry<String, String>> changes = mChanges.entrySet()
+					.iterator();
+			while (changes.hasNext()) {
+				Map.Entry<String, String> change = changes.next();
+				String key = change.getKey();
+				if (key.startsWith(RecordSet.ENTRY_PREFIX)
+						&& change.getValue() != null
+						&& (category == null || category.equals(RecordSet
+								.categoryOf(key)))) {
+					added.put(key, change.getValue());
+					changes.remove();
+				}
+			}
+			for (String key : added.xmlOrder()) {
+				mWriter.entry(key, added.get(key));
+			}
+		}
+	}
+
+	private RemoteEntry metadata(String path) throws TransportException {
+		try {
+			return mTransport.metadata(path);
+		} catch (TransportException e) {
+			if (e.getStatusCode() == TransportException.NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	private byte[] download(String path, String rev) throws TransportException {
+		checkCanceled();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		mTransport.download(path, rev, buffer, null);
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Download path into reader, which fails if the data is cut short.
+	 */
+	private void read(String path, RecordReader reader)
+			throws TransportException, IOException {
+		checkCanceled();
+		mTransport.download(path, null, reader, null);
+		reader.close();
+	}
+
+	private RemoteEntry upload(String path, byte[] data)
+			throws TransportException {
+		checkCanceled();
+		return mTransport.upload(path, new ByteArrayInputStream(data),
+				data.length, null);
+	}
+
+	private void checkCanceled() throws TransportException {
+		if (mToken.isCanceled()) {
+			throw new TransportException(TransportException.Kind.CANCELED,
+					"Canceled");
+		}
+	}
+
+	private static String snapshotPath(String remotePath, long seq) {
+		return objectPath(remotePath, SNAPSHOT + seq);
+	}
+
+	private static String segmentPath(String remotePath, long seq) {
+		return objectPath(remotePath, JOURNAL + seq);
+	}
+
+	private static String objectPath(String remotePath, String object) {
+		return RECORD_DIR + name(remotePath) + "." + object;
+	}
+
+	/**
+	 * @return name of path within the shared directory, the whole path goes
+	 *         into it so that backups in different folders don't collide
+	 */
+	private static String name(String path) {
+		return RemotePaths.flatName(path);
+	}
+}
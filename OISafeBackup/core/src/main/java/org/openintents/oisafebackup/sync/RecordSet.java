@@ -0,0 +1,426 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * The OI Safe backup as a set of records instead of one blob: a header with
+ * the master key and salt, the list of categories and one record per entry.
+ * Each record is kept as a small canonical XML fragment, so an edited entry
+ * changes only its own record. The backup is read with a pull parser and
+ * never held in memory as a tree.
+ * <p/>
+ * Written back out the XML is equivalent to what OI Safe wrote, but not
+ * necessarily identical: whitespace is normalized and entries come sorted by
+ * RowID within their category.
+ */
+public class RecordSet {
+	public static final String HEADER_KEY = "header";
+	public static final String CATEGORIES_KEY = "categories";
+	/** Followed by RowID, a colon and the category name */
+	public static final String ENTRY_PREFIX = "entry:";
+
+	private static final String XML_DECLARATION = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n";
+	private static final String ROOT = "OISafe";
+	private static final String CATEGORY = "Category";
+	private static final String ENTRY = "Entry";
+	private static final String ROW_ID = "RowID";
+
+	private final Map<String, String> mRecords = new LinkedHashMap<String, String>();
+
+	public String get(String key) {
+		return mRecords.get(key);
+	}
+
+	public void put(String key, String value) {
+		mRecords.put(key, value);
+	}
+
+	public void remove(String key) {
+		mRecords.remove(key);
+	}
+
+	public Set<String> keys() {
+		return Collections.unmodifiableSet(mRecords.keySet());
+	}
+
+	public int size() {
+		return mRecords.size();
+	}
+
+	/**
+	 * @return number of password entries, leaving out header and categories
+	 */
+	public int getEntryCount() {
+		int count = 0;
+		for (String key : mRecords.keySet()) {
+			if (key.startsWith(ENTRY_PREFIX)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return SHA-1 of every record, by key
+	 */
+	public Map<String, String> hashes() {
+		Map<String, String> hashes = new HashMap<String, String>();
+		for (Map.Entry<String, String> record : mRecords.entrySet()) {
+			hashes.put(record.getKey(), hash(record.getValue()));
+		}
+		return hashes;
+	}
+
+	public static String hash(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return DeltaSync.toHex(digest.digest(value.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read a backup as written by OI Safe.
+	 */
+	public static RecordSet parse(InputStream in) throws IOException {
+		try {
+			XmlPullParser parser = XmlPullParserFactory.newInstance()
+					.newPullParser();
+			parser.setInput(in, null);
+			return parse(parser);
+		} catch (XmlPullParserException e) {
+			throw new IOException("Couldn't read backup: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read a backup from a parser that has been given its input.
+	 */
+	public static RecordSet parse(XmlPullParser parser) throws IOException {
+		try {
+			return read(parser);
+		} catch (XmlPullParserException e) {
+			throw new IOException("Couldn't read backup: " + e.getMessage());
+		}
+	}
+
+	private static RecordSet read(XmlPullParser parser)
+			throws XmlPullParserException, IOException {
+		RecordSet records = new RecordSet();
+		StringBuilder header = new StringBuilder();
+		List<String> categories = new ArrayList<String>();
+		String category = "";
+		int ordinal = 0;
+		int event = parser.getEventType();
+		while (event != XmlPullParser.END_DOCUMENT) {
+			if (event == XmlPullParser.START_TAG) {
+				String name = parser.getName();
+				if (ROOT.equals(name)) {
+					header.append('<').append(ROOT);
+					for (int i = 0; i < parser.getAttributeCount(); i++) {
+						header.append(' ').append(parser.getAttributeName(i))
+								.append("=\"")
+								.append(escape(parser.getAttributeValue(i)))
+								.append('"');
+					}
+					header.append(">\n");
+				} else if (CATEGORY.equals(name)) {
+					category = parser.getAttributeValue(null, "name");
+					if (category == null) {
+						category = "";
+					}
+					if (!categories.contains(category)) {
+						categories.add(category);
+					}
+				} else if (ENTRY.equals(name)) {
+					ordinal++;
+					readEntry(parser, records, category, ordinal);
+				} else {
+					// Master key, salt and whatever else OI Safe adds up there
+					header.append(element(name, parser.nextText()));
+				}
+			} else if (event == XmlPullParser.END_TAG
+					&& CATEGORY.equals(parser.getName())) {
+				category = "";
+			}
+			event = parser.next();
+		}
+		if (header.length() == 0) {
+			throw new IOException("Not an OI Safe backup");
+		}
+		records.put(HEADER_KEY, header.toString());
+		StringBuilder names = new StringBuilder();
+		for (String name : categories) {
+			names.append(name).append('\n');
+		}
+		records.put(CATEGORIES_KEY, names.toString());
+		return records;
+	}
+
+	private static void readEntry(XmlPullParser parser, RecordSet records,
+			String category, int ordinal) throws XmlPullParserException,
+			IOException {
+		StringBuilder entry = new StringBuilder();
+		entry.append('<').append(ENTRY).append(">\n");
+		String rowId = null;
+		while (parser.next() != XmlPullParser.END_TAG
+				|| !ENTRY.equals(parser.getName())) {
+			if (parser.getEventType() == XmlPullParser.END_DOCUMENT) {
+				throw new IOException("Backup ends inside an entry");
+			}
+			if (parser.getEventType() == XmlPullParser.START_TAG) {
+				String name = parser.getName();
+				String text = parser.nextText();
+				if (ROW_ID.equals(name)) {
+					rowId = text.trim();
+				}
+				entry.append(element(name, text));
+			}
+		}
+		entry.append("</").append(ENTRY).append(">\n");
+		String key = ENTRY_PREFIX + rowId + ":" + category;
+		if (rowId == null || rowId.indexOf(':') >= 0
+				|| records.get(key) != null) {
+			// No usable RowID, fall back to the position in the backup
+			key = ENTRY_PREFIX + "#" + ordinal + ":" + category;
+		}
+		records.put(key, entry.toString());
+	}
+
+	/**
+	 * Write the records out as an OI Safe backup.
+	 */
+	public void writeXml(OutputStream out) throws IOException {
+		XmlWriter writer = new XmlWriter(out, get(HEADER_KEY),
+				get(CATEGORIES_KEY));
+		for (String key : xmlOrder()) {
+			if (key.startsWith(ENTRY_PREFIX)) {
+				writer.entry(key, mRecords.get(key));
+			}
+		}
+		writer.finish();
+	}
+
+	/**
+	 * @return the keys in the order the backup is written in: header,
+	 *         categories, the entries outside of any category, then the
+	 *         entries of each category sorted by RowID
+	 */
+	public List<String> xmlOrder() {
+		List<String> categories = categoryNames(get(CATEGORIES_KEY));
+		Map<String, List<String>> entries = new HashMap<String, List<String>>();
+		for (String key : mRecords.keySet()) {
+			if (!key.startsWith(ENTRY_PREFIX)) {
+				continue;
+			}
+			String category = categoryOf(key);
+			List<String> keys = entries.get(category);
+			if (keys == null) {
+				keys = new ArrayList<String>();
+				entries.put(category, keys);
+				if (category.length() > 0 && !categories.contains(category)) {
+					categories.add(category);
+				}
+			}
+			keys.add(key);
+		}
+
+		List<String> order = new ArrayList<String>(mRecords.size());
+		for (String key : mRecords.keySet()) {
+			if (!key.startsWith(ENTRY_PREFIX)) {
+				order.add(key);
+			}
+		}
+		addSorted(order, entries.get(""));
+		for (String category : categories) {
+			addSorted(order, entries.get(category));
+		}
+		return order;
+	}
+
+	private static void addSorted(List<String> order, List<String> keys) {
+		if (keys != null) {
+			Collections.sort(keys, BY_ROW_ID);
+			order.addAll(keys);
+		}
+	}
+
+	/**
+	 * @return the names in a categories record, which may be null
+	 */
+	private static List<String> categoryNames(String record) {
+		List<String> categories = new ArrayList<String>();
+		if (record != null) {
+			for (String name : record.split("\n")) {
+				if (name.length() > 0) {
+					categories.add(name);
+				}
+			}
+		}
+		return categories;
+	}
+
+	/**
+	 * Writes an OI Safe backup one entry at a time, so the records needn't
+	 * all be in memory. The entries of a category have to come one after the
+	 * other: a category is closed as soon as an entry of another one comes.
+	 */
+	public static class XmlWriter {
+		private final Writer mWriter;
+		/** Listed categories that haven't been written yet */
+		private final List<String> mCategories;
+		/** Open category, "" for none */
+		private String mCategory = "";
+
+		/**
+		 * @param header
+		 *            the header record, null for a bare root
+		 * @param categories
+		 *            the categories record, lists the categories that are
+		 *            written even if they have no entries
+		 */
+		public XmlWriter(OutputStream out, String header, String categories)
+				throws IOException {
+			mWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			mCategories = categoryNames(categories);
+			mWriter.write(XML_DECLARATION);
+			mWriter.write(header != null ? header : "<" + ROOT + ">\n");
+		}
+
+		public void entry(String key, String value) throws IOException {
+			String category = categoryOf(key);
+			if (!category.equals(mCategory)) {
+				closeCategory();
+				if (category.length() > 0) {
+					// Empty categories listed before this one keep their place
+					int index = mCategories.indexOf(category);
+					for (int i = 0; i < index; i++) {
+						writeEmpty(mCategories.remove(0));
+					}
+					mCategories.remove(category);
+					mWriter.write("<" + CATEGORY + " name=\""
+							+ escape(category) + "\">\n");
+					mCategory = category;
+				}
+			}
+			mWriter.write(value);
+		}
+
+		/**
+		 * Close the backup, the underlying stream is only flushed.
+		 */
+		public void finish() throws IOException {
+			closeCategory();
+			for (String category : mCategories) {
+				writeEmpty(category);
+			}
+			mCategories.clear();
+			mWriter.write("</" + ROOT + ">\n");
+			mWriter.flush();
+		}
+
+		private void closeCategory() throws IOException {
+			if (mCategory.length() > 0) {
+				mWriter.write("</" + CATEGORY + ">\n");
+				mCategory = "";
+			}
+		}
+
+		private void writeEmpty(String category) throws IOException {
+			mWriter.write("<" + CATEGORY + " name=\"" + escape(category)
+					+ "\">\n</" + CATEGORY + ">\n");
+		}
+	}
+
+	private static final Comparator<String> BY_ROW_ID = new Comparator<String>() {
+		public int compare(String a, String b) {
+			String rowA = rowId(a);
+			String rowB = rowId(b);
+			try {
+				long diff = Long.parseLong(rowA) - Long.parseLong(rowB);
+				return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+			} catch (NumberFormatException e) {
+				return rowA.compareTo(rowB);
+			}
+		}
+	};
+
+	private static String rowId(String key) {
+		int colon = key.indexOf(':', ENTRY_PREFIX.length());
+		return key.substring(ENTRY_PREFIX.length(), colon);
+	}
+
+	/**
+	 * @return category of the entry with key, "" for none
+	 */
+	public static String categoryOf(String key) {
+		int colon = key.indexOf(':', ENTRY_PREFIX.length());
+		return key.substring(colon + 1);
+	}
+
+	private static String element(String name, String text) {
+		return "<" + name + ">" + escape(text) + "</" + name + ">\n";
+	}
+
+	private static String escape(String text) {
+		StringBuilder sb = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
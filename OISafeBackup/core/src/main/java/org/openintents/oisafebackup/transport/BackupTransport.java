@@ -0,0 +1,83 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The remote side of a backup. UploadBackup, GetBackup and CheckForBackups
+ * only talk to this interface, so the Dropbox implementation can be swapped
+ * for a stand-in when measuring throughput and latency without a network.
+ */
+public interface BackupTransport {
+
+	/**
+	 * Get the metadata of a single remote file.
+	 */
+	RemoteEntry metadata(String path) throws TransportException;
+
+	/**
+	 * Upload length bytes from the stream, overwriting whatever is at path.
+	 */
+	RemoteEntry upload(String path, InputStream in, long length,
+			TransferListener listener) throws TransportException;
+
+	/**
+	 * Download the remote file into the stream.
+	 * 
+	 * @param rev
+	 *            revision to download, or null for the latest one
+	 */
+	RemoteEntry download(String path, String rev, OutputStream out,
+			TransferListener listener) throws TransportException;
+
+	/**
+	 * Send one chunk of a chunked upload.
+	 * 
+	 * @param uploadId
+	 *            session to append to, or null to start a new one
+	 * @param offset
+	 *            position of the chunk in the file, must match the offset the
+	 *            server acknowledged last
+	 * @return the session and the offset the server has now acknowledged.
+	 *         That offset can differ from offset + length if the server
+	 *         already had (or was missing) part of the data.
+	 */
+	UploadSession appendChunk(String uploadId, long offset, InputStream in,
+			int length, TransferListener listener) throws TransportException;
+
+	/**
+	 * Turn a finished upload session into the file at path, overwriting it.
+	 */
+	RemoteEntry commitSession(String path, String uploadId)
+			throws TransportException;
+
+	/**
+	 * Copy a remote file on the server, without sending it again. Fails if
+	 * toPath already exists.
+	 */
+	RemoteEntry copy(String fromPath, String toPath) throws TransportException;
+
+	void delete(String path) throws TransportException;
+
+	/**
+	 * Abort the transfer thread has in flight, if there is one. It will fail
+	 * with {@link TransportException.Kind#CANCELED}. Calls of other threads
+	 * go on, one transport is shared by all operations.
+	 */
+	void abort(Thread thread);
+}
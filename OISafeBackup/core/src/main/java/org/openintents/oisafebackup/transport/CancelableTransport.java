@@ -0,0 +1,166 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.oisafebackup.transport;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transport that stops as soon as its token is canceled: no further call is
+ * started, the streams of the call in flight fail on their next read or
+ * write, and the call itself is aborted. Whatever the call fails with then
+ * is reported as {@link TransportException.Kind#CANCELED}, so it isn't
+ * retried or shown as a network error. Only the calls made through this
+ * wrapper are aborted, other operations sharing the transport go on.
+ * <p/>
+ * A call that can't be aborted, like fetching metadata, runs to its end but
+ * its result is dropped.
+ */
+public class CancelableTransport implements BackupTransport {
+	private final BackupTransport mTransport;
+	private final CancellationToken mToken;
+
+	public CancelableTransport(BackupTransport transport,
+			CancellationToken token) {
+		mTransport = transport;
+		mToken = token;
+	}
+
+	public RemoteEntry metadata(String path) throws TransportException {
+		Runnable abort = begin();
+		try {
+			return done(mTransport.metadata(path));
+		} catch (TransportException e) {
+			throw failed(e);
+		} finally {
+			end(abort);
+		}
+	}
+
+	public RemoteEntry upload(String path, InputStream in, long length,
+			TransferListener listener) throws TransportException {
+		Runnable abort = begin();
+		try {
+			return done(mTransport.upload(path, mToken.wrap(in), length,
+					listener));
+		} catch (TransportException e) {
+			throw failed(e);
+		} finally {
+			end(abort);
+		}
+	}
+
+	public RemoteEntry download(String path, String rev, OutputStream out,
+			TransferListener listener) throws TransportException {
+		Runnable abort = begin();
+		try {
+			return done(mTransport.download(path, rev, mToken.wrap(out),
+					listener));
+		} catch (TransportException e) {
+			throw failed(e);
+		} finally {
+			end(abort);
+		}
+	}
+
+	public UploadSession appendChunk(String uploadId, long offset,
+			InputStream in, int length, TransferListener listener)
+			throws TransportException {
+		Runnable abort = begin();
+		try {
+			return done(mTransport.appendChunk(uploadId, offset,
+					mToken.wrap(in), length, listener));
+		} catch (TransportException e) {
+			throw failed(e);
+		} finally {
+			end(abort);
+		}
+	}
+
+	public RemoteEntry commitSession(String path, String uploadId)
+			throws TransportException {
+		Runnable abort = begin();
+		try {
+			return done(mTransport.commitSession(path, uploadId));
+		} catch (TransportException e) {
+			throw failed(e);
+		} finally {
+			end(abort);
+		}
+	}
+
+	public RemoteEntry copy(String fromPath, String toPath)
+			throws TransportException {
+		Runnable abort = begin();
+		try {
+			return done(mTransport.copy(fromPath, toPath));
+		} catch (TransportException e) {
+			throw failed(e);
+		} finally {
+			end(abort);
+		}
+	}
+
+	public void delete(String path) throws TransportException {
+		Runnable abort = begin();
+		try {
+			mTransport.delete(path);
+		} catch (TransportException e) {
+			throw failed(e);
+		} finally {
+			end(abort);
+		}
+	}
+
+	public void abort(Thread thread) {
+		mTransport.abort(thread);
+	}
+
+	/**
+	 * @return what aborts the call the current thread is about to make, and
+	 *         only that one
+	 */
+	private Runnable begin() throws TransportException {
+		mToken.throwIfCanceled();
+		final Thread thread = Thread.currentThread();
+		Runnable abort = new Runnable() {
+			public void run() {
+				mTransport.abort(thread);
+			}
+		};
+		mToken.register(abort);
+		return abort;
+	}
+
+	private void end(Runnable abort) {
+		mToken.unregister(abort);
+	}
+
+	private <T> T done(T result) throws TransportException {
+		mToken.throwIfCanceled();
+		return result;
+	}
+
+	private TransportException failed(TransportException e) {
+		if (!mToken.isCanceled()
+				|| e.getKind() == TransportException.Kind.CANCELED) {
+			return e;
+		}
+		return new TransportException(TransportException.Kind.CANCELED,
+				"Canceled", e);
+	}
+}
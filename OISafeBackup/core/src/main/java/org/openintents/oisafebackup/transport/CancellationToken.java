@@ -0,0 +1,138 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.oisafebackup.transport;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cancels an operation from another thread, e.g. from the Cancel button of
+ * its dialog. Whatever the operation is blocked in registers how to get it
+ * out, like aborting the request in flight or waking up the retry wait, and
+ * the streams it copies check the token on every read and write. A canceled
+ * operation stops within one buffer instead of running to completion.
+ */
+public class CancellationToken {
+	private volatile boolean mCanceled;
+	private final List<Runnable> mActions = new ArrayList<Runnable>();
+
+	/**
+	 * Cancel for good and run the registered actions, on this thread.
+	 */
+	public void cancel() {
+		List<Runnable> actions;
+		synchronized (this) {
+			if (mCanceled) {
+				return;
+			}
+			mCanceled = true;
+			actions = new ArrayList<Runnable>(mActions);
+		}
+		for (Runnable action : actions) {
+			action.run();
+		}
+	}
+
+	public boolean isCanceled() {
+		return mCanceled;
+	}
+
+	/**
+	 * @throws TransportException
+	 *             of kind {@link TransportException.Kind#CANCELED} if the
+	 *             token has been canceled
+	 */
+	public void throwIfCanceled() throws TransportException {
+		if (mCanceled) {
+			throw new TransportException(TransportException.Kind.CANCELED,
+					"Canceled");
+		}
+	}
+
+	/**
+	 * Run action when the token is canceled, right away if it already is.
+	 */
+	public void register(Runnable action) {
+		synchronized (this) {
+			if (!mCanceled) {
+				mActions.add(action);
+				return;
+			}
+		}
+		action.run();
+	}
+
+	public synchronized void unregister(Runnable action) {
+		mActions.remove(action);
+	}
+
+	/**
+	 * @return stream whose reads fail once the token is canceled
+	 */
+	public InputStream wrap(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				check();
+				return in.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				check();
+				return in.read(b, off, len);
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				check();
+				return in.skip(n);
+			}
+		};
+	}
+
+	/**
+	 * @return stream whose writes fail once the token is canceled
+	 */
+	public OutputStream wrap(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				check();
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				check();
+				out.write(b, off, len);
+			}
+		};
+	}
+
+	private void check() throws InterruptedIOException {
+		if (mCanceled) {
+			throw new InterruptedIOException("Canceled");
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.openintents.oisafebackup.stream.UploadSource;
+
+/**
+ * Uploads a file in fixed-size chunks through an upload session. The offset
+ * acknowledged after every chunk is saved in an UploadSessionStore, so when
+ * the connection drops the next attempt, even from a new process, only sends
+ * what the server hasn't got yet.
+ */
+public class ChunkedUpload {
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+	private final BackupTransport mTransport;
+	private final UploadSessionStore mStore;
+	private final int mChunkSize;
+
+	private final CancellationToken mToken = new CancellationToken();
+
+	public ChunkedUpload(BackupTransport transport, UploadSessionStore store,
+			int chunkSize) {
+		mTransport = new CancelableTransport(transport, mToken);
+		mStore = store;
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * Upload file to remotePath, resuming an earlier session if there is one
+	 * for the same version of the file.
+	 */
+	public RemoteEntry upload(File file, String remotePath,
+			TransferListener listener) throws TransportException,
+			FileNotFoundException {
+		if (!file.exists()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		try {
+			return upload(UploadSource.fromFile(file), remotePath, listener);
+		} catch (IOException e) {
+			throw new TransportException(TransportException.Kind.UNKNOWN,
+					e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Upload the data of source to remotePath, resuming an earlier session if
+	 * there is one for the same length and last modified time.
+	 */
+	public RemoteEntry upload(UploadSource source, String remotePath,
+			final TransferListener listener) throws TransportException,
+			IOException {
+		final long length = source.length();
+		long modified = source.lastModified();
+
+		UploadSession session = null;
+		UploadSessionStore.State state = mStore.load(remotePath);
+		if (state != null && state.fileLength == length
+				&& state.fileModified == modified) {
+			session = state.session;
+		} else if (state != null) {
+			// The file changed since, so the uploaded part is useless
+			mStore.clear(remotePath);
+		}
+
+		InputStream in = null;
+		try {
+			byte[] buffer = new byte[mChunkSize];
+			long position = 0;
+			long offset = session == null ? 0 : session.offset;
+			while (offset < length) {
+				if (mToken.isCanceled()) {
+					throw new TransportException(
+							TransportException.Kind.CANCELED, "Upload canceled");
+				}
+				if (in == null || offset < position) {
+					close(in);
+					in = source.open();
+					position = 0;
+				}
+				position += skipFully(in, offset - position);
+				int count = readFully(in, buffer,
+						(int) Math.min(buffer.length, length - offset));
+				position += count;
+				if (count == 0) {
+					throw new IOException("Source ended after " + offset
+							+ " of " + length + " bytes");
+				}
+
+				final long chunkStart = offset;
+				TransferListener chunkListener = null;
+				if (listener != null) {
+					chunkListener = new TransferListener() {
+						@Override
+						public long progressInterval() {
+							return listener.progressInterval();
+						}
+
+						@Override
+						public void onProgress(long bytes, long total) {
+							listener.onProgress(chunkStart + bytes, length);
+						}
+					};
+				}
+				try {
+					session = mTransport.appendChunk(
+							session == null ? null : session.uploadId, offset,
+							new ByteArrayInputStream(buffer, 0, count), count,
+							chunkListener);
+				} catch (TransportException e) {
+					if (session != null && isSessionGone(e)) {
+						// Session expired on the server, start over next time
+						mStore.clear(remotePath);
+					}
+					throw e;
+				}
+				if (session.offset > length) {
+					mStore.clear(remotePath);
+					throw new TransportException(TransportException.Kind.PARSE,
+							"Server acknowledged " + session.offset + " of "
+									+ length + " bytes");
+				}
+				offset = session.offset;
+				mStore.save(remotePath, new UploadSessionStore.State(session,
+						length, modified));
+			}
+		} finally {
+			close(in);
+		}
+
+		if (session == null) {
+			// Empty file, there is nothing to chunk
+			mStore.clear(remotePath);
+			return mTransport.upload(remotePath, new ByteArrayInputStream(
+					new byte[0]), 0, listener);
+		}
+		RemoteEntry entry;
+		try {
+			entry = mTransport.commitSession(remotePath, session.uploadId);
+		} catch (TransportException e) {
+			if (isSessionGone(e)) {
+				mStore.clear(remotePath);
+			}
+			throw e;
+		}
+		mStore.clear(remotePath);
+		return entry;
+	}
+
+	/**
+	 * Stop for good after the chunk in flight and abort it. The acknowledged
+	 * offset stays in the store, so the upload can be resumed later by
+	 * another ChunkedUpload.
+	 */
+	public void cancel() {
+		mToken.cancel();
+	}
+
+	private static long skipFully(InputStream in, long count)
+			throws IOException {
+		long skipped = 0;
+		while (skipped < count) {
+			long n = in.skip(count - skipped);
+			if (n <= 0) {
+				if (in.read() < 0) {
+					break;
+				}
+				n = 1;
+			}
+			skipped += n;
+		}
+		return skipped;
+	}
+
+	private static int readFully(InputStream in, byte[] buffer, int length)
+			throws IOException {
+		int total = 0;
+		while (total < length) {
+			int count = in.read(buffer, total, length - total);
+			if (count < 0) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	private static void close(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private static boolean isSessionGone(TransportException e) {
+		return e.getKind() == TransportException.Kind.SERVER
+				&& e.getStatusCode() == TransportException.NOT_FOUND;
+	}
+}
@@ -0,0 +1,359 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openintents.oisafebackup.stream.UploadSource;
+
+/**
+ * Uploads one file to several destinations at the same time. The file is read
+ * once and every block goes to all destinations that take a stream, each on
+ * its own thread. A slow destination holds the reading back once a few
+ * blocks are queued for it, so the whole upload takes about as long as the
+ * slowest destination. Destinations that read the file by themselves, e.g. a
+ * resumable chunked upload, run next to the others.
+ */
+public class FanOutUpload {
+	public static final int BLOCK_SIZE = 64 * 1024;
+	/** Blocks queued per destination before reading waits for it */
+	private static final int QUEUE_BLOCKS = 8;
+	private static final long OFFER_TIMEOUT = 100;
+
+	/** Upload of one destination */
+	public static class Result {
+		public final String name;
+		public RemoteEntry entry;
+		/** Why it failed, null if it succeeded */
+		public TransportException error;
+
+		Result(String name) {
+			this.name = name;
+		}
+	}
+
+	private abstract class Job implements Runnable {
+		final Result mResult;
+		/** Runs the upload, null until it started */
+		volatile Thread mThread;
+
+		Job(String name) {
+			mResult = new Result(name);
+		}
+
+		abstract RemoteEntry upload() throws TransportException, IOException;
+
+		abstract void abort();
+
+		public void run() {
+			mThread = Thread.currentThread();
+			try {
+				mResult.entry = upload();
+			} catch (TransportException e) {
+				mResult.error = e;
+			} catch (IOException e) {
+				mResult.error = new TransportException(
+						TransportException.Kind.UNKNOWN, e.getMessage(), e);
+			} catch (RuntimeException e) {
+				mResult.error = new TransportException(
+						TransportException.Kind.UNKNOWN, e.toString(), e);
+			} finally {
+				finished();
+			}
+		}
+
+		void finished() {
+		}
+	}
+
+	private class StreamJob extends Job {
+		final BackupTransport mTransport;
+		final String mPath;
+		final TransferListener mListener;
+		final Pipe mPipe = new Pipe();
+		long mLength;
+
+		StreamJob(String name, BackupTransport transport, String path,
+				TransferListener listener) {
+			super(name);
+			mTransport = transport;
+			mPath = path;
+			mListener = listener;
+		}
+
+		@Override
+		RemoteEntry upload() throws TransportException {
+			return mTransport.upload(mPath, mPipe, mLength, mListener);
+		}
+
+		@Override
+		void abort() {
+			Thread thread = mThread;
+			if (thread != null) {
+				mTransport.abort(thread);
+			}
+		}
+
+		@Override
+		void finished() {
+			// Don't let the reader wait for a destination that stopped
+			mPipe.close();
+		}
+	}
+
+	private class OperationJob extends Job {
+		final RetryPolicy.Operation<RemoteEntry> mOperation;
+		final Runnable mAbort;
+
+		OperationJob(String name, RetryPolicy.Operation<RemoteEntry> operation,
+				Runnable abort) {
+			super(name);
+			mOperation = operation;
+			mAbort = abort;
+		}
+
+		@Override
+		RemoteEntry upload() throws TransportException, IOException {
+			return mOperation.run();
+		}
+
+		@Override
+		void abort() {
+			if (mAbort != null) {
+				mAbort.run();
+			}
+		}
+	}
+
+	private final List<Job> mJobs = new ArrayList<Job>();
+	private volatile boolean mCanceled;
+
+	/**
+	 * Send the shared stream to path on transport.
+	 */
+	public void add(String name, BackupTransport transport, String path,
+			TransferListener listener) {
+		mJobs.add(new StreamJob(name, transport, path, listener));
+	}
+
+	/**
+	 * Run an upload that reads the file by itself next to the others.
+	 * 
+	 * @param abort
+	 *            stops operation when the fan-out is canceled, may be null
+	 */
+	public void add(String name, RetryPolicy.Operation<RemoteEntry> operation,
+			Runnable abort) {
+		mJobs.add(new OperationJob(name, operation, abort));
+	}
+
+	/**
+	 * Upload source to all destinations and wait for all of them.
+	 * 
+	 * @return one result per destination, in the order they were added
+	 */
+	public List<Result> upload(UploadSource source) throws IOException {
+		List<StreamJob> streams = new ArrayList<StreamJob>();
+		for (Job job : mJobs) {
+			if (job instanceof StreamJob) {
+				streams.add((StreamJob) job);
+			}
+		}
+		long length = streams.isEmpty() ? 0 : source.length();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (Job job : mJobs) {
+			if (job instanceof StreamJob) {
+				((StreamJob) job).mLength = length;
+			}
+			Thread thread = new Thread(job, "Upload to " + job.mResult.name);
+			threads.add(thread);
+			thread.start();
+		}
+		try {
+			if (!streams.isEmpty()) {
+				feed(source, streams);
+			}
+		} finally {
+			for (Thread thread : threads) {
+				join(thread);
+			}
+		}
+		List<Result> results = new ArrayList<Result>();
+		for (Job job : mJobs) {
+			results.add(job.mResult);
+		}
+		return results;
+	}
+
+	public void cancel() {
+		mCanceled = true;
+		for (Job job : mJobs) {
+			job.abort();
+		}
+	}
+
+	/**
+	 * Read source once, handing every block to each destination.
+	 */
+	private void feed(UploadSource source, List<StreamJob> streams) {
+		InputStream in = null;
+		IOException error = null;
+		try {
+			in = source.open();
+			byte[] buffer = new byte[BLOCK_SIZE];
+			int count;
+			while (!mCanceled && (count = fill(in, buffer)) > 0) {
+				// Blocks are shared, so each one gets a buffer of its own
+				byte[] block = new byte[count];
+				System.arraycopy(buffer, 0, block, 0, count);
+				for (StreamJob job : streams) {
+					job.mPipe.put(block);
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		if (mCanceled && error == null) {
+			error = new IOException("Canceled");
+		}
+		for (StreamJob job : streams) {
+			job.mPipe.finish(error);
+		}
+	}
+
+	private static int fill(InputStream in, byte[] buffer) throws IOException {
+		int filled = 0;
+		while (filled < buffer.length) {
+			int count = in.read(buffer, filled, buffer.length - filled);
+			if (count < 0) {
+				break;
+			}
+			filled += count;
+		}
+		return filled;
+	}
+
+	private static void join(Thread thread) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stream of the blocks queued for one destination.
+	 */
+	private static class Pipe extends InputStream {
+		private static final byte[] END = new byte[0];
+
+		private final BlockingQueue<byte[]> mQueue = new ArrayBlockingQueue<byte[]>(
+				QUEUE_BLOCKS);
+		private volatile boolean mClosed;
+		private volatile IOException mError;
+		private byte[] mBlock;
+		private int mPos;
+
+		/**
+		 * Called by the reader, waits while the queue is full.
+		 */
+		void put(byte[] block) {
+			try {
+				while (!mClosed) {
+					if (mQueue.offer(block, OFFER_TIMEOUT,
+							TimeUnit.MILLISECONDS)) {
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				mClosed = true;
+			}
+		}
+
+		/**
+		 * Called by the reader after the last block.
+		 * 
+		 * @param error
+		 *            why reading stopped early, or null
+		 */
+		void finish(IOException error) {
+			mError = error;
+			put(END);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (mBlock == null || mPos == mBlock.length) {
+				if (mBlock == END) {
+					return -1;
+				}
+				try {
+					mBlock = mQueue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted");
+				}
+				mPos = 0;
+				if (mBlock == END) {
+					if (mError != null) {
+						throw mError;
+					}
+					return -1;
+				}
+			}
+			int count = Math.min(len, mBlock.length - mPos);
+			System.arraycopy(mBlock, mPos, b, off, count);
+			mPos += count;
+			return count;
+		}
+
+		@Override
+		public void close() {
+			mClosed = true;
+			mQueue.clear();
+		}
+	}
+}
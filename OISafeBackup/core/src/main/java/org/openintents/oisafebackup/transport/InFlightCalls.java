@@ -0,0 +1,106 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The calls a transport has in flight, one per thread. A transport is shared
+ * by every operation that runs at the same time, so aborting has to stop the
+ * one call it is meant for and leave the others alone.
+ */
+public class InFlightCalls {
+
+	/**
+	 * One call of one thread.
+	 */
+	public static class Call {
+		private boolean mAborted;
+		private Runnable mAbort;
+		/** Call this one was made from, on the same thread */
+		private Call mOuter;
+
+		public synchronized boolean isAborted() {
+			return mAborted;
+		}
+
+		/**
+		 * Run abort when the call is aborted, right away if it already is.
+		 * 
+		 * @param abort
+		 *            gets the call out of whatever it is blocked in, null
+		 *            once there is nothing left to abort
+		 */
+		public void onAbort(Runnable abort) {
+			synchronized (this) {
+				mAbort = abort;
+				if (!mAborted || abort == null) {
+					return;
+				}
+			}
+			abort.run();
+		}
+
+		void abort() {
+			Runnable abort;
+			synchronized (this) {
+				mAborted = true;
+				abort = mAbort;
+			}
+			if (abort != null) {
+				abort.run();
+			}
+		}
+	}
+
+	private final Map<Thread, Call> mCalls = new HashMap<Thread, Call>();
+
+	/**
+	 * Start a call on the current thread. It has to be ended in a finally
+	 * block.
+	 */
+	public synchronized Call begin() {
+		Call call = new Call();
+		call.mOuter = mCalls.put(Thread.currentThread(), call);
+		return call;
+	}
+
+	public synchronized void end(Call call) {
+		Thread thread = Thread.currentThread();
+		if (mCalls.get(thread) != call) {
+			return;
+		}
+		if (call.mOuter != null) {
+			mCalls.put(thread, call.mOuter);
+		} else {
+			mCalls.remove(thread);
+		}
+	}
+
+	/**
+	 * Abort the call thread has in flight, if there is one.
+	 */
+	public void abort(Thread thread) {
+		Call call;
+		synchronized (this) {
+			call = mCalls.get(thread);
+		}
+		if (call != null) {
+			call.abort();
+		}
+	}
+}
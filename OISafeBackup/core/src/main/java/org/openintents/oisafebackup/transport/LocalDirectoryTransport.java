@@ -0,0 +1,274 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Keeps the backup in a local directory, e.g. on an SD card, for an offline
+ * copy next to the one in the cloud. Remote paths are taken relative to the
+ * directory. Files are written next to their final name and renamed when
+ * complete, so an interrupted copy never replaces a good one.
+ */
+public class LocalDirectoryTransport implements BackupTransport {
+	private static final int BUFFER_SIZE = 8192;
+	private static final int FORBIDDEN = 403;
+	/** No space left */
+	private static final int INSUFFICIENT_STORAGE = 507;
+	private static final String PART_SUFFIX = ".part";
+	private static final String SESSION_DIR = ".sessions";
+
+	private final File mRoot;
+	private final InFlightCalls mCalls = new InFlightCalls();
+	private final SimpleDateFormat mDateFormat = new SimpleDateFormat(
+			"EEE, dd MMM yyyy HH:mm:ss ZZZZZ", Locale.US);
+
+	public LocalDirectoryTransport(File root) {
+		mRoot = root;
+	}
+
+	public File getRoot() {
+		return mRoot;
+	}
+
+	public RemoteEntry metadata(String path) throws TransportException {
+		return entry(path, existing(path));
+	}
+
+	public RemoteEntry upload(String path, InputStream in, long length,
+			TransferListener listener) throws TransportException {
+		InFlightCalls.Call call = mCalls.begin();
+		File file = file(path);
+		File part = new File(file.getPath() + PART_SUFFIX);
+		try {
+			file.getParentFile().mkdirs();
+			OutputStream out = new FileOutputStream(part);
+			try {
+				long copied = transfer(call, in, out, length, listener);
+				if (copied < length) {
+					throw new TransportException(
+							TransportException.Kind.NETWORK,
+							"Stream ended after " + copied + " of " + length
+									+ " bytes");
+				}
+			} finally {
+				out.close();
+			}
+			replace(part, file);
+		} catch (IOException e) {
+			throw ioError(e);
+		} finally {
+			part.delete();
+			mCalls.end(call);
+		}
+		return entry(path, file);
+	}
+
+	public RemoteEntry download(String path, String rev, OutputStream out,
+			TransferListener listener) throws TransportException {
+		File file = existing(path);
+		RemoteEntry entry = entry(path, file);
+		if (rev != null && !rev.equals(entry.rev)) {
+			throw notFound(path + " rev " + rev);
+		}
+		InFlightCalls.Call call = mCalls.begin();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				transfer(call, in, out, file.length(), listener);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		} finally {
+			mCalls.end(call);
+		}
+		return entry;
+	}
+
+	public UploadSession appendChunk(String uploadId, long offset,
+			InputStream in, int length, TransferListener listener)
+			throws TransportException {
+		File sessions = new File(mRoot, SESSION_DIR);
+		File session;
+		if (uploadId == null) {
+			sessions.mkdirs();
+			try {
+				session = File.createTempFile("upload", "", sessions);
+			} catch (IOException e) {
+				throw ioError(e);
+			}
+			uploadId = session.getName();
+		} else {
+			session = new File(sessions, uploadId);
+			if (!session.exists()) {
+				throw notFound(uploadId);
+			}
+		}
+		if (offset != session.length()) {
+			// Tell the caller where to continue
+			return new UploadSession(uploadId, session.length());
+		}
+		InFlightCalls.Call call = mCalls.begin();
+		try {
+			OutputStream out = new FileOutputStream(session, true);
+			try {
+				transfer(call, in, out, length, listener);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		} finally {
+			mCalls.end(call);
+		}
+		return new UploadSession(uploadId, session.length());
+	}
+
+	public RemoteEntry commitSession(String path, String uploadId)
+			throws TransportException {
+		File session = new File(new File(mRoot, SESSION_DIR), uploadId);
+		if (!session.exists()) {
+			throw notFound(uploadId);
+		}
+		File file = file(path);
+		file.getParentFile().mkdirs();
+		try {
+			replace(session, file);
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+		return entry(path, file);
+	}
+
+	public RemoteEntry copy(String fromPath, String toPath)
+			throws TransportException {
+		File from = existing(fromPath);
+		File to = file(toPath);
+		if (to.exists()) {
+			throw new TransportException(TransportException.Kind.SERVER,
+					FORBIDDEN, "Already exists: " + toPath, null, null);
+		}
+		try {
+			InputStream in = new FileInputStream(from);
+			try {
+				upload(toPath, in, from.length(), null);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw ioError(e);
+		}
+		return entry(toPath, to);
+	}
+
+	public void delete(String path) throws TransportException {
+		if (!existing(path).delete()) {
+			throw ioError(new IOException("Couldn't delete " + path));
+		}
+	}
+
+	public void abort(Thread thread) {
+		mCalls.abort(thread);
+	}
+
+	private File file(String path) {
+		return new File(mRoot, path);
+	}
+
+	private File existing(String path) throws TransportException {
+		File file = file(path);
+		if (!file.isFile()) {
+			throw notFound(path);
+		}
+		return file;
+	}
+
+	/**
+	 * The revision changes whenever the file is written.
+	 */
+	private RemoteEntry entry(String path, File file) {
+		String rev = Long.toHexString(file.lastModified()) + "-"
+				+ Long.toHexString(file.length());
+		String modified;
+		synchronized (mDateFormat) {
+			modified = mDateFormat.format(new Date(file.lastModified()));
+		}
+		return new RemoteEntry(path, rev, file.length(), modified);
+	}
+
+	private static void replace(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			// Some file systems don't rename over an existing file
+			to.delete();
+			if (!from.renameTo(to)) {
+				throw new IOException("Couldn't replace " + to);
+			}
+		}
+	}
+
+	private long transfer(InFlightCalls.Call call, InputStream in,
+			OutputStream out, long length, TransferListener listener)
+			throws TransportException, IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long copied = 0;
+		long lastProgress = 0;
+		while (copied < length) {
+			if (call.isAborted()) {
+				throw new TransportException(TransportException.Kind.CANCELED,
+						"Aborted after " + copied + " bytes");
+			}
+			int count = in.read(buffer, 0,
+					(int) Math.min(buffer.length, length - copied));
+			if (count < 0) {
+				break;
+			}
+			out.write(buffer, 0, count);
+			copied += count;
+			long now = System.currentTimeMillis();
+			if (listener != null
+					&& (copied == length || now - lastProgress >= listener
+							.progressInterval())) {
+				lastProgress = now;
+				listener.onProgress(copied, length);
+			}
+		}
+		return copied;
+	}
+
+	private TransportException ioError(IOException e) {
+		if (mRoot.getUsableSpace() == 0) {
+			return new TransportException(TransportException.Kind.SERVER,
+					INSUFFICIENT_STORAGE, e.getMessage(), null, e);
+		}
+		return new TransportException(TransportException.Kind.UNKNOWN,
+				e.getMessage(), e);
+	}
+
+	private static TransportException notFound(String path) {
+		return new TransportException(TransportException.Kind.SERVER,
+				TransportException.NOT_FOUND, "Not found: " + path, null, null);
+	}
+}
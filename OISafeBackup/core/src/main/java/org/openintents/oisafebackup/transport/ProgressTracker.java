@@ -0,0 +1,194 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.openintents.oisafebackup.metrics.OperationMetrics;
+
+/**
+ * Collects progress of one or more parallel transfers (channels) in
+ * primitive counters, so transfer threads never allocate or post anything.
+ * The UI samples it at its own fixed rate and gets the progress of the
+ * slowest channel, a smoothed throughput and the time left.
+ * <p/>
+ * The listeners also feed the metrics recording of the operation, if there
+ * is one, so progress is only reported once.
+ */
+public class ProgressTracker {
+	/** Milliseconds between two samples the UI should take */
+	public static final long SAMPLE_INTERVAL = 250;
+	/** Transports may report this often, it only costs two atomic writes */
+	private static final long LISTENER_INTERVAL = 100;
+	/** Weight of the newest sample in the smoothed throughput */
+	private static final double SMOOTHING = 0.2;
+
+	private final AtomicLongArray mBytes;
+	private final AtomicLongArray mTotals;
+	private final String[] mNames;
+	private volatile OperationMetrics.Recording mRecording;
+
+	// Only touched by the thread that samples
+	private final long[] mSampledBytes;
+	private final double[] mRates;
+	private long mSampleTime = -1;
+	private int mPercent;
+	private long mBytesPerSecond;
+	private long mEtaMillis = -1;
+
+	public ProgressTracker(int channels) {
+		mBytes = new AtomicLongArray(channels);
+		mTotals = new AtomicLongArray(channels);
+		mNames = new String[channels];
+		mSampledBytes = new long[channels];
+		mRates = new double[channels];
+	}
+
+	public int getChannelCount() {
+		return mNames.length;
+	}
+
+	/**
+	 * Progress from now on also goes to recording.
+	 */
+	public void setRecording(OperationMetrics.Recording recording) {
+		mRecording = recording;
+	}
+
+	/**
+	 * Announce a transfer before it reports progress. Channels that are
+	 * never started are left out of the samples.
+	 * 
+	 * @param total
+	 *            expected number of bytes, corrected by the first progress
+	 */
+	public void start(int channel, String name, long total) {
+		mNames[channel] = name;
+		mBytes.set(channel, 0);
+		// Written last, makes the name visible to whoever sees the total
+		mTotals.set(channel, Math.max(total, 1));
+	}
+
+	/**
+	 * @return listener for the transfer on channel, create it once per
+	 *         transfer and not per callback
+	 */
+	public TransferListener listener(final int channel) {
+		return new TransferListener() {
+			@Override
+			public long progressInterval() {
+				return LISTENER_INTERVAL;
+			}
+
+			@Override
+			public void onProgress(long bytes, long total) {
+				mBytes.set(channel, bytes);
+				if (total > 0 && mTotals.get(channel) != total) {
+					mTotals.set(channel, total);
+				}
+				OperationMetrics.Recording recording = mRecording;
+				if (recording != null) {
+					recording.progress(channel, bytes);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Take a sample, from one thread only. Afterwards the getters describe
+	 * the slowest channel as of now.
+	 * 
+	 * @param now
+	 *            a monotonic clock in milliseconds
+	 */
+	public void sample(long now) {
+		long elapsed = mSampleTime < 0 ? 0 : now - mSampleTime;
+		mSampleTime = now;
+		int slowest = -1;
+		double slowestFraction = 2;
+		for (int i = 0; i < mNames.length; i++) {
+			long total = mTotals.get(i);
+			if (total == 0) {
+				continue;
+			}
+			long bytes = mBytes.get(i);
+			if (elapsed > 0) {
+				double rate = 0;
+				// A retry starts from zero, that isn't negative speed
+				if (bytes >= mSampledBytes[i]) {
+					rate = (bytes - mSampledBytes[i]) * 1000.0 / elapsed;
+				}
+				mRates[i] = mRates[i] == 0 ? rate : mRates[i] + SMOOTHING
+						* (rate - mRates[i]);
+			}
+			mSampledBytes[i] = bytes;
+			double fraction = Math.min(1, (double) bytes / total);
+			if (fraction < slowestFraction) {
+				slowestFraction = fraction;
+				slowest = i;
+			}
+		}
+		if (slowest < 0) {
+			mPercent = 0;
+			mBytesPerSecond = 0;
+			mEtaMillis = -1;
+			return;
+		}
+		mPercent = (int) (100 * slowestFraction + 0.5);
+		mBytesPerSecond = (long) mRates[slowest];
+		long left = mTotals.get(slowest) - mSampledBytes[slowest];
+		mEtaMillis = mBytesPerSecond > 0 ? Math.max(left, 0) * 1000
+				/ mBytesPerSecond : -1;
+	}
+
+	/**
+	 * @return percent done of the slowest channel at the last sample
+	 */
+	public int getPercent() {
+		return mPercent;
+	}
+
+	/**
+	 * @return smoothed bytes per second of the slowest channel
+	 */
+	public long getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/**
+	 * @return estimated milliseconds left for the slowest channel, -1 while
+	 *         unknown
+	 */
+	public long getEtaMillis() {
+		return mEtaMillis;
+	}
+
+	/**
+	 * @return name of channel, or null if it hasn't started
+	 */
+	public String getName(int channel) {
+		return mTotals.get(channel) == 0 ? null : mNames[channel];
+	}
+
+	/**
+	 * @return percent done of channel at the last sample
+	 */
+	public int getPercent(int channel) {
+		long total = mTotals.get(channel);
+		return total == 0 ? 0 : (int) Math.min(100,
+				100 * mSampledBytes[channel] / total);
+	}
+}
@@ -0,0 +1,75 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Metadata of a remote file, independent of the transport that produced it.
+ */
+public class RemoteEntry {
+	/** Format of modified, as Dropbox sends it */
+	public static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss Z";
+
+	public String path;
+	public String rev;
+	public long bytes;
+	/** Last modified date as reported by the server */
+	public String modified;
+	public boolean isDeleted;
+	/**
+	 * Dropbox content hash of the data, null if the server doesn't report
+	 * one. Dropbox API v1 never does, so with DropboxTransport this is
+	 * always null and whoever compares content falls back to rev; only
+	 * StandInTransport fills it in for now.
+	 */
+	public String contentHash;
+
+	public RemoteEntry() {
+	}
+
+	public RemoteEntry(String path, String rev, long bytes, String modified) {
+		this.path = path;
+		this.rev = rev;
+		this.bytes = bytes;
+		this.modified = modified;
+	}
+
+	/**
+	 * @return modified in milliseconds since the epoch, or -1 if it is
+	 *         missing or not in the format Dropbox uses
+	 */
+	public long getModifiedTime() {
+		if (modified == null) {
+			return -1;
+		}
+		try {
+			return new SimpleDateFormat(DATE_FORMAT, Locale.US).parse(modified)
+					.getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteEntry[path=" + path + ", rev=" + rev + ", bytes="
+				+ bytes + ", modified=" + modified + ", isDeleted="
+				+ isDeleted + "]";
+	}
+}
@@ -0,0 +1,38 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+/**
+ * Helpers for the remote paths of backups.
+ */
+public final class RemotePaths {
+	private RemotePaths() {
+	}
+
+	/**
+	 * Turn a remote path into a single file name that tells it apart from
+	 * every other path, for files that belong to a backup but live in a
+	 * shared directory. A backup in the root keeps its plain name, so
+	 * "/oisafe.xml" gives "oisafe.xml" and "/team/oisafe.xml" gives
+	 * "team%2Foisafe.xml".
+	 */
+	public static String flatName(String path) {
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		return path.replace("%", "%25").replace("/", "%2F");
+	}
+}
@@ -0,0 +1,215 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.openintents.oisafebackup.stream.InvalidBackupException;
+
+/**
+ * Runs a remote operation again when it fails for a reason that is likely to
+ * go away, waiting exponentially longer between attempts. Each wait is picked
+ * at random up to the current limit ("full jitter"), so clients that failed
+ * together don't retry together. Gives up after a number of attempts or once
+ * the next attempt would start after the deadline.
+ */
+public class RetryPolicy {
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_BASE_DELAY = 500;
+	public static final long DEFAULT_MAX_DELAY = 30000;
+	public static final long DEFAULT_DEADLINE = 120000;
+
+	/** Too many requests */
+	private static final int RATE_LIMITED = 429;
+	private static final int INSUFFICIENT_STORAGE = 507;
+
+	public interface Operation<T> {
+		/**
+		 * Called once per attempt, must start from scratch every time.
+		 */
+		T run() throws TransportException, IOException;
+	}
+
+	private final int mMaxAttempts;
+	private final long mBaseDelay;
+	private final long mMaxDelay;
+	private final long mDeadline;
+	private final Random mRandom = new Random();
+	private final Object mSleepLock = new Object();
+
+	private volatile boolean mCanceled;
+	private volatile int mAttempts;
+	private int mTotalAttempts;
+	private int mTotalRetries;
+
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY,
+				DEFAULT_DEADLINE);
+	}
+
+	/**
+	 * Retry with the defaults until token is canceled, a wait in progress
+	 * then ends at once.
+	 */
+	public RetryPolicy(CancellationToken token) {
+		this();
+		token.register(new Runnable() {
+			public void run() {
+				cancel();
+			}
+		});
+	}
+
+	/**
+	 * @param deadline
+	 *            milliseconds after the first attempt by which the last one
+	 *            has to start
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay,
+			long deadline) {
+		mMaxAttempts = maxAttempts;
+		mBaseDelay = baseDelay;
+		mMaxDelay = maxDelay;
+		mDeadline = deadline;
+	}
+
+	/**
+	 * Run operation until it succeeds, fails with an error that isn't
+	 * retryable, or attempts or time run out. The last error is thrown. May
+	 * be called from several threads at once.
+	 */
+	public <T> T execute(Operation<T> operation) throws TransportException,
+			IOException {
+		int attempts = 0;
+		long start = System.currentTimeMillis();
+		while (true) {
+			if (mCanceled) {
+				throw new TransportException(TransportException.Kind.CANCELED,
+						"Canceled");
+			}
+			mAttempts = ++attempts;
+			synchronized (this) {
+				mTotalAttempts++;
+			}
+			try {
+				return operation.run();
+			} catch (TransportException e) {
+				if (mCanceled || !isRetryable(e) || attempts >= mMaxAttempts) {
+					throw e;
+				}
+				long delay = nextDelay(attempts);
+				if (System.currentTimeMillis() + delay - start > mDeadline) {
+					throw e;
+				}
+				synchronized (this) {
+					mTotalRetries++;
+				}
+				sleep(delay, e);
+			}
+		}
+	}
+
+	/**
+	 * Stop retrying, for good. The attempt in flight is not interrupted,
+	 * abort the transport for that.
+	 */
+	public void cancel() {
+		mCanceled = true;
+		synchronized (mSleepLock) {
+			mSleepLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return number of attempts the last call to execute() took
+	 */
+	public int getAttempts() {
+		return mAttempts;
+	}
+
+	/**
+	 * @return attempts made by this policy since it was created
+	 */
+	public synchronized int getTotalAttempts() {
+		return mTotalAttempts;
+	}
+
+	/**
+	 * @return attempts that were retries of a failed one
+	 */
+	public synchronized int getTotalRetries() {
+		return mTotalRetries;
+	}
+
+	/**
+	 * Sort errors into transient ones worth another try and fatal ones.
+	 */
+	public static boolean isRetryable(TransportException e) {
+		if (InvalidBackupException.find(e) != null) {
+			// The data is broken, sending it again won't fix it
+			return false;
+		}
+		switch (e.getKind()) {
+		case NETWORK:
+			// Connection dropped, timed out or couldn't be made
+		case PARSE:
+			// Garbled answer, usually a server restarting
+			return true;
+		case SERVER:
+			int status = e.getStatusCode();
+			if (status == RATE_LIMITED) {
+				return true;
+			}
+			// 5xx are the server's fault, except being over quota
+			return status >= 500 && status != INSUFFICIENT_STORAGE;
+		default:
+			// Unlinked, too big, canceled, unknown: trying again won't help
+			return false;
+		}
+	}
+
+	/**
+	 * @return milliseconds to wait after the given number of attempts
+	 */
+	long nextDelay(int attempts) {
+		long limit = mBaseDelay << Math.min(attempts - 1, 20);
+		limit = Math.min(limit, mMaxDelay);
+		synchronized (mRandom) {
+			return (long) (mRandom.nextDouble() * limit);
+		}
+	}
+
+	private void sleep(long delay, TransportException cause)
+			throws TransportException {
+		long end = System.currentTimeMillis() + delay;
+		synchronized (mSleepLock) {
+			long left;
+			while (!mCanceled && (left = end - System.currentTimeMillis()) > 0) {
+				try {
+					mSleepLock.wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					mCanceled = true;
+				}
+			}
+		}
+		if (mCanceled) {
+			throw new TransportException(TransportException.Kind.CANCELED,
+					"Canceled while waiting to retry", cause);
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.openintents.oisafebackup.stream.ContentHash;
+
+/**
+ * In-process stand-in for the Dropbox server. Files are kept in memory and
+ * every call can be slowed down by a fixed latency, throttled to a bandwidth
+ * and made to fail at a given rate. The random generator is seeded, so a run
+ * with the same settings fails the same way every time, which makes it
+ * usable for throughput and latency regression tests without a network.
+ */
+public class StandInTransport implements BackupTransport {
+	private static final int BUFFER_SIZE = 8192;
+	private static final int FORBIDDEN = 403;
+
+	private final Map<String, RemoteEntry> mEntries = new HashMap<String, RemoteEntry>();
+	private final Map<String, byte[]> mContents = new HashMap<String, byte[]>();
+	private final Map<String, ByteArrayOutputStream> mSessions = new HashMap<String, ByteArrayOutputStream>();
+	private final Random mRandom;
+	private final SimpleDateFormat mDateFormat;
+
+	private long mLatencyMillis;
+	private long mBytesPerSecond;
+	private double mErrorRate;
+
+	private long mNextRev = 1;
+	private long mNextUploadId = 1;
+	private final InFlightCalls mCalls = new InFlightCalls();
+
+	private long mRequestCount;
+	private long mFailureCount;
+	private long mBytesUploaded;
+	private long mBytesDownloaded;
+
+	public StandInTransport() {
+		this(0);
+	}
+
+	public StandInTransport(long seed) {
+		mRandom = new Random(seed);
+		mDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z",
+				Locale.US);
+		mDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * Round trip time added to every request before any data moves.
+	 */
+	public void setLatency(long millis) {
+		mLatencyMillis = millis;
+	}
+
+	/**
+	 * Throttle transfers to this many bytes per second, 0 for unlimited.
+	 */
+	public void setBandwidth(long bytesPerSecond) {
+		mBytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Fraction of requests, between 0 and 1, that fail with a network error.
+	 * Transfers that fail do so part way through the data.
+	 */
+	public void setErrorRate(double errorRate) {
+		mErrorRate = errorRate;
+	}
+
+	/**
+	 * Store a file without going through latency, bandwidth or errors.
+	 */
+	public synchronized RemoteEntry put(String path, byte[] data) {
+		RemoteEntry entry = new RemoteEntry(path, nextRev(), data.length,
+				mDateFormat.format(new Date()));
+		entry.contentHash = ContentHash.of(data);
+		mEntries.put(path, entry);
+		mContents.put(path, data);
+		return entry;
+	}
+
+	/**
+	 * @return the stored contents of path, or null
+	 */
+	public synchronized byte[] get(String path) {
+		return mContents.get(path);
+	}
+
+	public synchronized long getRequestCount() {
+		return mRequestCount;
+	}
+
+	public synchronized long getFailureCount() {
+		return mFailureCount;
+	}
+
+	public synchronized long getBytesUploaded() {
+		return mBytesUploaded;
+	}
+
+	public synchronized long getBytesDownloaded() {
+		return mBytesDownloaded;
+	}
+
+	public synchronized void resetCounters() {
+		mRequestCount = 0;
+		mFailureCount = 0;
+		mBytesUploaded = 0;
+		mBytesDownloaded = 0;
+	}
+
+	public RemoteEntry metadata(String path) throws TransportException {
+		long failAt = beginRequest(0);
+		if (failAt >= 0) {
+			throw networkError();
+		}
+		synchronized (this) {
+			RemoteEntry entry = mEntries.get(path);
+			if (entry == null) {
+				throw notFound(path);
+			}
+			return copy(entry);
+		}
+	}
+
+	public RemoteEntry upload(String path, InputStream in, long length,
+			TransferListener listener) throws TransportException {
+		long failAt = beginRequest(length);
+		ByteArrayOutputStream received = new ByteArrayOutputStream(
+				(int) Math.min(length, Integer.MAX_VALUE));
+		long copied = transfer(in, received, length, failAt, listener);
+		if (copied < length) {
+			throw new TransportException(TransportException.Kind.NETWORK,
+					"Stream ended after " + copied + " of " + length + " bytes");
+		}
+		synchronized (this) {
+			mBytesUploaded += copied;
+			return copy(put(path, received.toByteArray()));
+		}
+	}
+
+	public RemoteEntry download(String path, String rev, OutputStream out,
+			TransferListener listener) throws TransportException {
+		RemoteEntry entry;
+		byte[] data;
+		synchronized (this) {
+			entry = mEntries.get(path);
+			data = mContents.get(path);
+		}
+		long failAt = beginRequest(data == null ? 0 : data.length);
+		if (entry == null || (rev != null && !rev.equals(entry.rev))) {
+			throw notFound(path);
+		}
+		long copied = transfer(new ByteArrayInputStream(data), out,
+				data.length, failAt, listener);
+		synchronized (this) {
+			mBytesDownloaded += copied;
+		}
+		return copy(entry);
+	}
+
+	public UploadSession appendChunk(String uploadId, long offset,
+			InputStream in, int length, TransferListener listener)
+			throws TransportException {
+		long failAt = beginRequest(length);
+		ByteArrayOutputStream session;
+		synchronized (this) {
+			if (uploadId == null) {
+				uploadId = "stand" + (mNextUploadId++);
+				session = new ByteArrayOutputStream();
+				mSessions.put(uploadId, session);
+			} else {
+				session = mSessions.get(uploadId);
+				if (session == null) {
+					throw notFound(uploadId);
+				}
+			}
+			if (offset != session.size()) {
+				// Like Dropbox, tell the client where to continue
+				return new UploadSession(uploadId, session.size());
+			}
+		}
+		ByteArrayOutputStream received = new ByteArrayOutputStream(length);
+		long copied = transfer(in, received, length, failAt, listener);
+		synchronized (this) {
+			mBytesUploaded += copied;
+			// Only whole chunks are acknowledged
+			if (copied == length) {
+				session.write(received.toByteArray(), 0, received.size());
+			}
+			return new UploadSession(uploadId, session.size());
+		}
+	}
+
+	public RemoteEntry commitSession(String path, String uploadId)
+			throws TransportException {
+		if (beginRequest(0) >= 0) {
+			throw networkError();
+		}
+		synchronized (this) {
+			ByteArrayOutputStream session = mSessions.remove(uploadId);
+			if (session == null) {
+				throw notFound(uploadId);
+			}
+			return copy(put(path, session.toByteArray()));
+		}
+	}
+
+	public RemoteEntry copy(String fromPath, String toPath)
+			throws TransportException {
+		if (beginRequest(0) >= 0) {
+			throw networkError();
+		}
+		synchronized (this) {
+			byte[] data = mContents.get(fromPath);
+			if (data == null) {
+				throw notFound(fromPath);
+			}
+			if (mEntries.containsKey(toPath)) {
+				throw new TransportException(TransportException.Kind.SERVER,
+						FORBIDDEN, "Already exists: " + toPath, null, null);
+			}
+			return copy(put(toPath, data));
+		}
+	}
+
+	public void delete(String path) throws TransportException {
+		if (beginRequest(0) >= 0) {
+			throw networkError();
+		}
+		synchronized (this) {
+			if (mEntries.remove(path) == null) {
+				throw notFound(path);
+			}
+			mContents.remove(path);
+		}
+	}
+
+	public void abort(Thread thread) {
+		mCalls.abort(thread);
+	}
+
+	/**
+	 * Count the request, wait out the latency and decide whether it fails.
+	 * 
+	 * @return offset at which the request fails, or -1 if it succeeds
+	 */
+	private long beginRequest(long length) throws TransportException {
+		long failAt = -1;
+		synchronized (this) {
+			mRequestCount++;
+			if (mErrorRate > 0 && mRandom.nextDouble() < mErrorRate) {
+				mFailureCount++;
+				failAt = length > 0 ? (long) (mRandom.nextDouble() * length) : 0;
+			}
+		}
+		sleep(mLatencyMillis);
+		return failAt;
+	}
+
+	private long transfer(InputStream in, OutputStream out, long length,
+			long failAt, TransferListener listener) throws TransportException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long copied = 0;
+		long start = System.currentTimeMillis();
+		long lastProgress = 0;
+		InFlightCalls.Call call = mCalls.begin();
+		try {
+			while (copied < length) {
+				if (call.isAborted()) {
+					throw new TransportException(
+							TransportException.Kind.CANCELED, "Aborted after "
+									+ copied + " bytes");
+				}
+				if (failAt >= 0 && copied >= failAt) {
+					throw networkError();
+				}
+				int count = in.read(buffer, 0,
+						(int) Math.min(buffer.length, length - copied));
+				if (count < 0) {
+					break;
+				}
+				out.write(buffer, 0, count);
+				copied += count;
+
+				long now = System.currentTimeMillis();
+				if (mBytesPerSecond > 0) {
+					sleep(copied * 1000 / mBytesPerSecond - (now - start));
+				}
+				if (listener != null
+						&& (copied == length || now - lastProgress >= listener
+								.progressInterval())) {
+					lastProgress = now;
+					listener.onProgress(copied, length);
+				}
+			}
+			if (failAt >= 0) {
+				// Failures planned for an empty transfer
+				throw networkError();
+			}
+		} catch (IOException e) {
+			throw new TransportException(TransportException.Kind.NETWORK,
+					e.getMessage(), e);
+		} finally {
+			mCalls.end(call);
+		}
+		return copied;
+	}
+
+	private void sleep(long millis) throws TransportException {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransportException(TransportException.Kind.CANCELED,
+					"Interrupted", e);
+		}
+	}
+
+	private synchronized String nextRev() {
+		return Long.toHexString(mNextRev++) + "0stand";
+	}
+
+	private static RemoteEntry copy(RemoteEntry entry) {
+		RemoteEntry copy = new RemoteEntry(entry.path, entry.rev, entry.bytes,
+				entry.modified);
+		copy.isDeleted = entry.isDeleted;
+		copy.contentHash = entry.contentHash;
+		return copy;
+	}
+
+	private static TransportException networkError() {
+		return new TransportException(TransportException.Kind.NETWORK,
+				"Simulated network error");
+	}
+
+	private static TransportException notFound(String path) {
+		return new TransportException(TransportException.Kind.SERVER,
+				TransportException.NOT_FOUND, "Not found: " + path, null, null);
+	}
+}
@@ -0,0 +1,81 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+/**
+ * Failure of a remote operation. The transport translates its own errors
+ * into one of the kinds below so the tasks don't depend on a particular SDK.
+ */
+public class TransportException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public enum Kind {
+		/** Session wasn't authenticated or the user unlinked */
+		UNLINKED,
+		/** File is too big for the API */
+		FILE_SIZE,
+		/** We aborted the transfer */
+		CANCELED,
+		/** Server answered with an error status, see getStatusCode() */
+		SERVER,
+		/** Connection failed or dropped */
+		NETWORK,
+		/** Couldn't understand the server response */
+		PARSE,
+		UNKNOWN
+	}
+
+	public static final int NOT_FOUND = 404;
+
+	private final Kind mKind;
+	private final int mStatusCode;
+	private final String mUserError;
+
+	public TransportException(Kind kind, String message) {
+		this(kind, 0, message, null, null);
+	}
+
+	public TransportException(Kind kind, String message, Throwable cause) {
+		this(kind, 0, message, null, cause);
+	}
+
+	public TransportException(Kind kind, int statusCode, String message,
+			String userError, Throwable cause) {
+		super(message, cause);
+		mKind = kind;
+		mStatusCode = statusCode;
+		mUserError = userError;
+	}
+
+	public Kind getKind() {
+		return mKind;
+	}
+
+	/**
+	 * @return HTTP status for {@link Kind#SERVER}, otherwise 0
+	 */
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+
+	/**
+	 * @return error message from the server, translated into the user's
+	 *         language, or null
+	 */
+	public String getUserError() {
+		return mUserError;
+	}
+}
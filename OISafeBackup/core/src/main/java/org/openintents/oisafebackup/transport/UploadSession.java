@@ -0,0 +1,35 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+/**
+ * State of a chunked upload as acknowledged by the server.
+ */
+public class UploadSession {
+	public final String uploadId;
+	/** Number of bytes the server has received so far */
+	public final long offset;
+
+	public UploadSession(String uploadId, long offset) {
+		this.uploadId = uploadId;
+		this.offset = offset;
+	}
+
+	@Override
+	public String toString() {
+		return "UploadSession[uploadId=" + uploadId + ", offset=" + offset + "]";
+	}
+}
@@ -0,0 +1,49 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+/**
+ * Persists the progress of a chunked upload so it can be resumed after a
+ * failure or after the process was killed.
+ */
+public interface UploadSessionStore {
+
+	/**
+	 * State of an unfinished upload.
+	 */
+	class State {
+		public final UploadSession session;
+		/** Length of the local file when the session was started */
+		public final long fileLength;
+		/** Last modified time of the local file when the session was started */
+		public final long fileModified;
+
+		public State(UploadSession session, long fileLength, long fileModified) {
+			this.session = session;
+			this.fileLength = fileLength;
+			this.fileModified = fileModified;
+		}
+	}
+
+	/**
+	 * @return the unfinished upload to remotePath, or null
+	 */
+	State load(String remotePath);
+
+	void save(String remotePath, State state);
+
+	void clear(String remotePath);
+}
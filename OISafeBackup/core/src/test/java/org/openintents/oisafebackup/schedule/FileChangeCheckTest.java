@@ -0,0 +1,86 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileChangeCheckTest {
+	private File mFile;
+	private int mAgain;
+	private final Runnable mCount = new Runnable() {
+		public void run() {
+			mAgain++;
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("oisafe", ".xml");
+		write(mFile, "first");
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Test
+	public void unchangedFileIsLeftAlone() {
+		FileChangeCheck check = new FileChangeCheck(mFile, mCount);
+		assertFalse(check.changed());
+		check.run();
+		assertEquals(0, mAgain);
+	}
+
+	@Test
+	public void writeOfTheSameSizeAsksAgain() throws IOException {
+		FileChangeCheck check = new FileChangeCheck(mFile, mCount);
+		long modified = mFile.lastModified();
+		write(mFile, "other");
+		mFile.setLastModified(modified + 2000);
+		assertTrue(check.changed());
+		check.run();
+		assertEquals(1, mAgain);
+	}
+
+	@Test
+	public void deletedFileIsLeftAlone() {
+		FileChangeCheck check = new FileChangeCheck(mFile, mCount);
+		mFile.delete();
+		assertFalse(check.changed());
+		check.run();
+		assertEquals(0, mAgain);
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OperationSchedulerTest {
+	private static final String UPLOAD = "upload";
+	private static final String PATH = "/oisafe.xml";
+
+	private File mFile;
+	private OperationScheduler mScheduler;
+	/** Contents each upload read, in the order they ran */
+	private final List<String> mUploaded = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void setUp() throws IOException {
+		mFile = File.createTempFile("oisafe", ".xml");
+		write(mFile, "first");
+		mScheduler = new OperationScheduler();
+	}
+
+	@After
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Test
+	public void waitingRequestsAreCoalesced() throws Exception {
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		assertTrue(mScheduler.execute(UPLOAD, PATH, new Upload(running,
+				release)));
+		running.await(5, TimeUnit.SECONDS);
+		assertFalse(mScheduler.isScheduled(UPLOAD, PATH));
+
+		CountDownLatch done = new CountDownLatch(1);
+		assertTrue(mScheduler.execute(UPLOAD, PATH, new Upload(null, null,
+				done)));
+		assertTrue(mScheduler.isScheduled(UPLOAD, PATH));
+		// Same request again while the follow-up still waits
+		assertFalse(mScheduler.execute(UPLOAD, PATH, new Upload(null, null)));
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(2, mUploaded.size());
+	}
+
+	@Test
+	public void fileChangedDuringUpload() throws Exception {
+		CountDownLatch running = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch again = new CountDownLatch(1);
+		// As in AutoBackupService, the check runs once the upload is done
+		final FileChangeCheck check = new FileChangeCheck(mFile,
+				new Runnable() {
+					public void run() {
+						mScheduler.execute(UPLOAD, PATH, new Upload(null,
+								null, again));
+					}
+				});
+		Upload first = new Upload(running, release) {
+			@Override
+			public void run() {
+				super.run();
+				check.run();
+			}
+		};
+		assertTrue(mScheduler.execute(UPLOAD, PATH, first));
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+
+		// OI Safe writes while the old contents are on their way
+		write(mFile, "second, longer");
+		release.countDown();
+
+		assertTrue(again.await(5, TimeUnit.SECONDS));
+		assertEquals(2, mUploaded.size());
+		assertEquals("first", mUploaded.get(0));
+		assertEquals("second, longer", mUploaded.get(1));
+	}
+
+	/**
+	 * Reads the file, then optionally waits until released.
+	 */
+	private class Upload implements Runnable {
+		private final CountDownLatch mRunning;
+		private final CountDownLatch mRelease;
+		private final CountDownLatch mDone;
+
+		Upload(CountDownLatch running, CountDownLatch release) {
+			this(running, release, null);
+		}
+
+		Upload(CountDownLatch running, CountDownLatch release,
+				CountDownLatch done) {
+			mRunning = running;
+			mRelease = release;
+			mDone = done;
+		}
+
+		public void run() {
+			try {
+				mUploaded.add(read(mFile));
+				if (mRunning != null) {
+					mRunning.countDown();
+				}
+				if (mRelease != null) {
+					mRelease.await(5, TimeUnit.SECONDS);
+				}
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			if (mDone != null) {
+				mDone.countDown();
+			}
+		}
+	}
+
+	private static void write(File file, String contents) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		byte[] buf = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < buf.length) {
+				int r = in.read(buf, n, buf.length - n);
+				if (r < 0) {
+					break;
+				}
+				n += r;
+			}
+			return new String(buf, 0, n, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
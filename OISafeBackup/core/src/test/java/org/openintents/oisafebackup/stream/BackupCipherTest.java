@@ -0,0 +1,155 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BackupCipherTest {
+	private static final int CHUNK = 1 << BackupCipher.DEFAULT_CHUNK_SHIFT;
+	private static final char[] PASSPHRASE = "correct horse".toCharArray();
+
+	@Test
+	public void roundTripAtChunkBoundaries() throws Exception {
+		int[] lengths = { 0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 2 * CHUNK,
+				2 * CHUNK + 17 };
+		for (int length : lengths) {
+			byte[] plain = random(length);
+			UploadSource source = BackupCipher.encrypt(source(plain),
+					PASSPHRASE);
+			byte[] sealed = read(source);
+			assertEquals(source.length(), sealed.length);
+			assertTrue("length " + length,
+					Arrays.equals(plain, decrypt(sealed, PASSPHRASE)));
+		}
+	}
+
+	@Test
+	public void plainBackupsPassThrough() throws Exception {
+		byte[] plain = "<?xml version='1.0'?><OISafe/>".getBytes("UTF-8");
+		assertTrue(Arrays.equals(plain, decrypt(plain, null)));
+	}
+
+	@Test
+	public void wrongPassphraseIsTold() throws Exception {
+		byte[] sealed = encrypt(random(100));
+		assertFails(sealed, "wrong".toCharArray(),
+				BackupCipher.PassphraseException.class);
+		assertFails(sealed, null, BackupCipher.PassphraseException.class);
+	}
+
+	@Test
+	public void flippedByteFails() throws Exception {
+		byte[] sealed = encrypt(random(CHUNK + 100));
+		// In the first chunk, after the header
+		sealed[BackupCipher.HEADER_LENGTH + 10] ^= 1;
+		assertFails(sealed, PASSPHRASE, InvalidBackupException.class);
+	}
+
+	@Test
+	public void truncatedLastChunkFails() throws Exception {
+		byte[] sealed = encrypt(random(CHUNK + 100));
+		assertFails(Arrays.copyOf(sealed, sealed.length - 1), PASSPHRASE,
+				InvalidBackupException.class);
+	}
+
+	@Test
+	public void missingLastChunkFails() throws Exception {
+		byte[] sealed = encrypt(random(2 * CHUNK));
+		// Cut off right after the first chunk and its tag
+		int firstChunk = BackupCipher.HEADER_LENGTH + CHUNK
+				+ BackupCipher.TAG_LENGTH;
+		assertFails(Arrays.copyOf(sealed, firstChunk), PASSPHRASE,
+				InvalidBackupException.class);
+	}
+
+	private static void assertFails(byte[] sealed, char[] passphrase,
+			Class<? extends IOException> expected) {
+		try {
+			decrypt(sealed, passphrase);
+			fail("Expected " + expected.getSimpleName());
+		} catch (IOException e) {
+			assertTrue(e.toString(), expected.isInstance(e));
+		}
+	}
+
+	private static byte[] encrypt(byte[] plain) throws IOException {
+		return read(BackupCipher.encrypt(source(plain), PASSPHRASE));
+	}
+
+	private static byte[] decrypt(byte[] sealed, char[] passphrase)
+			throws IOException {
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		OutputStream out = BackupCipher.decrypter(plain, passphrase);
+		// Odd writes, so chunks straddle them
+		for (int off = 0; off < sealed.length; off += 1000) {
+			out.write(sealed, off, Math.min(1000, sealed.length - off));
+		}
+		out.close();
+		return plain.toByteArray();
+	}
+
+	private static byte[] read(UploadSource source) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = source.open();
+		try {
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static UploadSource source(final byte[] data) {
+		return new UploadSource() {
+			@Override
+			public long length() {
+				return data.length;
+			}
+
+			@Override
+			public long lastModified() {
+				return 1;
+			}
+
+			@Override
+			public InputStream open() {
+				return new ByteArrayInputStream(data);
+			}
+		};
+	}
+
+	private static byte[] random(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,134 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressedSourceTest {
+	@Test
+	public void uploadCompressesOnce() throws IOException {
+		CountingSource plain = new CountingSource(backup(1000));
+		UploadSource compressed = BackupFormat.compress(plain);
+		long length = compressed.length();
+		byte[] data = read(compressed);
+		assertEquals(length, data.length);
+		assertEquals(1, plain.opened);
+		assertTrue(Arrays.equals(plain.data, decode(data)));
+	}
+
+	@Test
+	public void changedSourceIsCompressedAgain() throws IOException {
+		CountingSource plain = new CountingSource(backup(1000));
+		UploadSource compressed = BackupFormat.compress(plain);
+		compressed.length();
+
+		plain.data = backup(2000);
+		plain.modified++;
+		long length = compressed.length();
+		byte[] data = read(compressed);
+		assertEquals(length, data.length);
+		assertEquals(2, plain.opened);
+		assertTrue(Arrays.equals(plain.data, decode(data)));
+	}
+
+	/**
+	 * A backup that compresses to more than MAX_KEPT is compressed anew by
+	 * open(), to the same bytes.
+	 */
+	@Test
+	public void bigBackupIsNotKept() throws IOException {
+		byte[] random = new byte[CompressedSource.MAX_KEPT + 1];
+		new Random(1).nextBytes(random);
+		CountingSource plain = new CountingSource(random);
+		UploadSource compressed = BackupFormat.compress(plain);
+		long length = compressed.length();
+		assertEquals(length, read(compressed).length);
+		assertEquals(2, plain.opened);
+	}
+
+	private static class CountingSource extends UploadSource {
+		byte[] data;
+		long modified = 1000;
+		int opened;
+
+		CountingSource(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public long length() {
+			return data.length;
+		}
+
+		@Override
+		public long lastModified() {
+			return modified;
+		}
+
+		@Override
+		public InputStream open() {
+			opened++;
+			return new ByteArrayInputStream(data);
+		}
+	}
+
+	private static byte[] backup(int entries) throws IOException {
+		StringBuilder xml = new StringBuilder(
+				"<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+						+ "<OISafe version=\"1\" date=\"\">\n");
+		for (int i = 0; i < entries; i++) {
+			xml.append("<Entry>\n<RowID>").append(i)
+					.append("</RowID>\n<Description>site ").append(i)
+					.append("</Description>\n</Entry>\n");
+		}
+		xml.append("</OISafe>\n");
+		return xml.toString().getBytes("UTF-8");
+	}
+
+	private static byte[] decode(byte[] compressed) throws IOException {
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		OutputStream out = BackupFormat.decoder(plain);
+		out.write(compressed);
+		out.close();
+		return plain.toByteArray();
+	}
+
+	private static byte[] read(UploadSource source) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = source.open();
+		try {
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,97 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.stream;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ContentHashTest {
+	private static final int BLOCK = ContentHash.BLOCK_SIZE;
+
+	/**
+	 * Lengths around the 4 MB block size with the content hash of
+	 * data(length), worked out with Dropbox's published algorithm: SHA-256
+	 * of the concatenated SHA-256 of every 4 MB block.
+	 */
+	private static final Object[][] VECTORS = {
+			{ 0,
+					"e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855" },
+			{ 1000,
+					"c88e98bd565d6e001a0a37ac287032e1183923f35f6fde42c14210cbe2098d7c" },
+			{ BLOCK - 1,
+					"e1d05b9adf4293b7fec11b099ce74116fc06dfa733a9833be9166ab4c769da43" },
+			{ BLOCK,
+					"b9654428408015906b44a00935b70af33830aa344b780b0eabd535a133150d04" },
+			{ BLOCK + 1,
+					"4a6cc0a344febaa07772e7c974834b2fb1d24594d4ba15f27c97a54699709f44" },
+			{ 2 * BLOCK + 12345,
+					"1e4187d74c09ac5ecba418360e3aff8c86fed9e00ece62a4b8383a72b85f2cee" } };
+
+	@Test
+	public void matchesTheReferenceHash() {
+		for (Object[] vector : VECTORS) {
+			int length = (Integer) vector[0];
+			assertEquals("length " + length, vector[1],
+					ContentHash.of(data(length)));
+		}
+	}
+
+	@Test
+	public void updatesInPiecesGiveTheSameHash() {
+		for (Object[] vector : VECTORS) {
+			byte[] data = data((Integer) vector[0]);
+			ContentHash hash = new ContentHash();
+			// Odd sized pieces, so some straddle a block boundary
+			for (int off = 0; off < data.length; off += 65537) {
+				hash.update(data, off, Math.min(65537, data.length - off));
+			}
+			assertEquals("length " + data.length, vector[1], hash.digest());
+		}
+	}
+
+	@Test
+	public void hashingAFileGivesTheSameHash() throws IOException {
+		for (Object[] vector : VECTORS) {
+			byte[] data = data((Integer) vector[0]);
+			File file = File.createTempFile("content", ".hash");
+			try {
+				FileOutputStream out = new FileOutputStream(file);
+				try {
+					out.write(data);
+				} finally {
+					out.close();
+				}
+				assertEquals("length " + data.length, vector[1],
+						ContentHash.hash(file));
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i % 251);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,141 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openintents.oisafebackup.transport.StandInTransport;
+
+public class DeltaSyncTest {
+	private static final String PATH = "/oisafe.xml";
+	private static final int SIZE = 3 * DeltaSync.PACK_SIZE / 2;
+
+	private StandInTransport mTransport;
+	private DeltaSync mSync;
+
+	@Before
+	public void setUp() {
+		mTransport = new StandInTransport();
+		mSync = new DeltaSync(mTransport);
+	}
+
+	@Test
+	public void firstUploadAndRestoreTakeARequestPerPack() throws Exception {
+		byte[] data = random(SIZE, 1);
+		DeltaSync.Result uploaded = upload(data, null);
+		// Two packs and the manifest, not one request per chunk
+		assertEquals(3, mTransport.getRequestCount());
+		assertEquals(2, uploaded.manifest.getPacks().size());
+
+		mTransport.resetCounters();
+		assertTrue(Arrays.equals(data, restore()));
+		assertEquals(3, mTransport.getRequestCount());
+	}
+
+	@Test
+	public void smallEditOnlySendsTheEditedChunks() throws Exception {
+		byte[] data = random(SIZE, 1);
+		DeltaSync.Result first = upload(data, null);
+		data[SIZE / 2] ^= 1;
+		DeltaSync.Result second = upload(data, first);
+		assertTrue(second.bytesTransferred < 64 * 1024);
+		assertTrue(Arrays.equals(data, restore()));
+	}
+
+	@Test
+	public void droppedPacksOutliveOneUpload() throws Exception {
+		DeltaSync.Result first = upload(random(SIZE, 1), null);
+		String dir = DeltaSync.chunkDir(PATH, first.manifest);
+		String pack = first.manifest.getPacks().iterator().next();
+
+		DeltaSync.Result second = upload(random(SIZE, 2), first);
+		assertTrue(second.manifest.getObsolete().contains(pack));
+		// A restore that read the first manifest can still finish
+		assertNotNull(mTransport.get(dir + pack));
+
+		upload(random(SIZE, 3), second);
+		assertNull(mTransport.get(dir + pack));
+	}
+
+	@Test
+	public void mostlyUnusedPacksAreRepacked() throws Exception {
+		byte[] data = random(SIZE, 1);
+		DeltaSync.Result first = upload(data, null);
+		// Keep a small part of the file, the first pack is mostly dead then
+		byte[] rest = Arrays.copyOfRange(data, DeltaSync.PACK_SIZE - 4096,
+				SIZE);
+		DeltaSync.Result second = upload(rest, first);
+		String head = first.manifest.getChunks().get(0).pack;
+		assertTrue(second.manifest.getObsolete().contains(head));
+		assertTrue(Arrays.equals(rest, restore()));
+	}
+
+	@Test
+	public void readsVersion2Manifests() throws Exception {
+		byte[] data = random(32 * 1024, 1);
+		ChunkManifest manifest = new ChunkManifest();
+		ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(
+				data));
+		byte[] buffer = new byte[chunker.getMaxSize()];
+		String dir = DeltaSync.CHUNK_DIR + "oisafe.xml/";
+		int count;
+		while ((count = chunker.next(buffer)) > 0) {
+			byte[] chunk = Arrays.copyOf(buffer, count);
+			String hash = sha1(chunk);
+			mTransport.put(dir + hash, chunk);
+			manifest.add(hash, count);
+		}
+		manifest.setFileHash(sha1(data));
+		String text = manifest.toString().replaceFirst(
+				"manifest " + ChunkManifest.VERSION, "manifest 2");
+		mTransport.put(DeltaSync.manifestPath(PATH), text.getBytes("UTF-8"));
+		assertTrue(Arrays.equals(data, restore()));
+	}
+
+	private DeltaSync.Result upload(byte[] data, DeltaSync.Result previous)
+			throws Exception {
+		return mSync.upload(new ByteArrayInputStream(data), data.length, PATH,
+				previous == null ? null : previous.manifest,
+				previous == null ? null : previous.entry.rev, null);
+	}
+
+	private byte[] restore() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DeltaSync(mTransport).restore(PATH, out, null);
+		return out.toByteArray();
+	}
+
+	private static String sha1(byte[] data) throws Exception {
+		return DeltaSync.toHex(MessageDigest.getInstance("SHA-1").digest(data));
+	}
+
+	private static byte[] random(int size, long seed) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
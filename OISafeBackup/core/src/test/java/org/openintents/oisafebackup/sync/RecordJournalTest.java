@@ -0,0 +1,234 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openintents.oisafebackup.transport.LocalDirectoryTransport;
+import org.openintents.oisafebackup.transport.TransportException;
+
+public class RecordJournalTest {
+	private static final String PATH = "/oisafe.xml";
+	private static final int ENTRIES = 100;
+
+	private File mDir;
+	private RecordJournal mJournal;
+	private RecordJournal.State mState;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("journal", "");
+		mDir.delete();
+		mDir.mkdirs();
+		mJournal = new RecordJournal(new LocalDirectoryTransport(new File(
+				mDir, "remote")));
+		mState = new RecordJournal.State(new File(mDir, "records.properties"));
+	}
+
+	@After
+	public void tearDown() {
+		delete(mDir);
+	}
+
+	@Test
+	public void smallEditOnlySendsASegment() throws Exception {
+		RecordSet records = records(0);
+		RecordJournal.Result first = mJournal.upload(records, PATH, mState);
+		assertTrue(first.compacted);
+
+		records.put(RecordSet.ENTRY_PREFIX + "7:Web", "edited");
+		RecordJournal.Result second = mJournal.upload(records, PATH, mState);
+		assertFalse(second.compacted);
+		assertFalse(second.compactionDue);
+		assertTrue(second.bytesTransferred < first.bytesTransferred / 10);
+		assertRestores(records);
+	}
+
+	@Test
+	public void compactionIsDueOnceTheJournalOutgrowsTheSnapshot()
+			throws Exception {
+		mJournal.upload(records(0), PATH, mState);
+		// Every upload rewrites about a third of the records
+		RecordJournal.Result result = null;
+		int uploads = 0;
+		RecordSet records = records(0);
+		do {
+			uploads++;
+			for (int i = uploads % 3; i < ENTRIES; i += 3) {
+				records.put(key(i), value(i, uploads));
+			}
+			result = mJournal.upload(records, PATH, mState);
+			assertFalse(result.compacted);
+		} while (!result.compactionDue);
+		// Three thirds hold every entry once, more than the snapshot
+		assertEquals(3, uploads);
+		assertRestores(records);
+
+		RecordJournal.Result compacted = mJournal.compact(records, PATH,
+				mState);
+		assertNotNull(compacted);
+		assertTrue(compacted.compacted);
+		assertFalse(mJournal.restore(PATH, null).compactionDue);
+		assertRestores(records);
+	}
+
+	@Test
+	public void compactionIsDueAfterMaxSegments() throws Exception {
+		RecordSet records = records(0);
+		mJournal.upload(records, PATH, mState);
+		for (int i = 1; i <= RecordJournal.MAX_SEGMENTS + 1; i++) {
+			records.put(key(0), value(0, i));
+			RecordJournal.Result result = mJournal.upload(records, PATH,
+					mState);
+			assertEquals(i > RecordJournal.MAX_SEGMENTS, result.compactionDue);
+		}
+		assertRestores(records);
+	}
+
+	@Test
+	public void compactionLeavesAForeignJournalAlone() throws Exception {
+		RecordSet records = records(0);
+		mJournal.upload(records, PATH, mState);
+		// Another device uploads in between
+		RecordJournal.State other = new RecordJournal.State(new File(mDir,
+				"other.properties"));
+		RecordSet theirs = records(1);
+		mJournal.upload(theirs, PATH, other);
+
+		assertNull(mJournal.compact(records, PATH, mState));
+		assertRestores(theirs);
+	}
+
+	@Test
+	public void compactionKeepsTheOldObjectsForOneGeneration()
+			throws Exception {
+		RecordSet records = records(0);
+		mJournal.upload(records, PATH, mState);
+		records.put(key(0), value(0, 1));
+		mJournal.upload(records, PATH, mState);
+		assertEquals(2, objects().length);
+
+		// A restore that read the old head still finds what it listed
+		mJournal.compact(records, PATH, mState);
+		assertEquals(3, objects().length);
+		assertRestores(records);
+
+		// Gone with the snapshot after
+		records.put(key(0), value(0, 2));
+		mJournal.upload(records, PATH, mState);
+		mJournal.compact(records, PATH, mState);
+		String[] objects = objects();
+		assertEquals(3, objects.length);
+		for (String object : objects) {
+			assertFalse(object, object.endsWith(".snapshot.1"));
+			assertFalse(object, object.endsWith(".journal.2"));
+		}
+		assertRestores(records);
+	}
+
+	@Test
+	public void writeXmlStreamsWhatRestoreGives() throws Exception {
+		RecordSet records = records(0);
+		records.put(RecordSet.CATEGORIES_KEY, "Web\nBank\nEmpty\n");
+		for (int i = 0; i < 10; i++) {
+			records.put(RecordSet.ENTRY_PREFIX + (ENTRIES + i) + ":Bank",
+					value(ENTRIES + i, 0));
+		}
+		mJournal.upload(records, PATH, mState);
+		// Edits, deletes and additions to old and new categories
+		records.put(key(3), value(3, 1));
+		records.remove(key(4));
+		records.put(RecordSet.ENTRY_PREFIX + "500:Web", value(500, 1));
+		records.put(RecordSet.ENTRY_PREFIX + "501:Bank", value(501, 1));
+		records.put(RecordSet.ENTRY_PREFIX + "502:Mail", value(502, 1));
+		records.put(RecordSet.ENTRY_PREFIX + "503:", value(503, 1));
+		mJournal.upload(records, PATH, mState);
+		records.remove(RecordSet.ENTRY_PREFIX + (ENTRIES + 2) + ":Bank");
+		RecordJournal.Result last = mJournal.upload(records, PATH, mState);
+		assertFalse(last.compacted);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		mJournal.restore(PATH, null).records.writeXml(expected);
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		assertEquals(last.head.rev, mJournal.writeXml(PATH, streamed).rev);
+		assertEquals(parse(expected).hashes(), parse(streamed).hashes());
+	}
+
+	/**
+	 * @return names of the snapshots and segments on the server
+	 */
+	private String[] objects() {
+		return new File(mDir, "remote" + RecordJournal.RECORD_DIR)
+				.list(new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return !name.endsWith(RecordJournal.HEAD_SUFFIX);
+					}
+				});
+	}
+
+	private static RecordSet parse(ByteArrayOutputStream xml)
+			throws IOException {
+		return RecordSet.parse(new ByteArrayInputStream(xml.toByteArray()));
+	}
+
+	private void assertRestores(RecordSet expected)
+			throws TransportException, IOException {
+		RecordSet restored = mJournal.restore(PATH, null).records;
+		assertEquals(expected.hashes(), restored.hashes());
+	}
+
+	private static RecordSet records(int version) {
+		RecordSet records = new RecordSet();
+		records.put(RecordSet.HEADER_KEY, "<OISafe version=\"1\">");
+		for (int i = 0; i < ENTRIES; i++) {
+			records.put(key(i), value(i, version));
+		}
+		return records;
+	}
+
+	private static String key(int i) {
+		return RecordSet.ENTRY_PREFIX + i + ":Web";
+	}
+
+	private static String value(int i, int version) {
+		return "<Entry><RowID>" + i + "</RowID><Description>site " + i
+				+ " v" + version + "</Description></Entry>";
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
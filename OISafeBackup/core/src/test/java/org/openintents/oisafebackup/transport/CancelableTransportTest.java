@@ -0,0 +1,109 @@
+/* 
+ * Copyright (C) 2014 OpenIntents.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openintents.oisafebackup.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CancelableTransportTest {
+	private static final int SIZE = 64 * 1024;
+
+	private StandInTransport mShared;
+
+	@Before
+	public void setUp() {
+		mShared = new StandInTransport();
+		// About a second per download
+		mShared.setBandwidth(SIZE);
+		mShared.put("/a.xml", new byte[SIZE]);
+		mShared.put("/b.xml", new byte[SIZE]);
+	}
+
+	@Test
+	public void cancelingOneTaskLeavesTheOtherAlone() throws Exception {
+		CancellationToken tokenA = new CancellationToken();
+		CancellationToken tokenB = new CancellationToken();
+		Download a = new Download(new CancelableTransport(mShared, tokenA),
+				"/a.xml");
+		Download b = new Download(new CancelableTransport(mShared, tokenB),
+				"/b.xml");
+		a.start();
+		b.start();
+		assertTrue(a.mStarted.await(5, TimeUnit.SECONDS));
+		assertTrue(b.mStarted.await(5, TimeUnit.SECONDS));
+
+		tokenA.cancel();
+		a.join(5000);
+		b.join(5000);
+		assertNotNull(a.mError);
+		assertEquals(TransportException.Kind.CANCELED, a.mError.getKind());
+		assertEquals(null, b.mError);
+		assertEquals(SIZE, b.mOut.size());
+	}
+
+	@Test
+	public void abortOnlyStopsTheCallOfThatThread() throws Exception {
+		Download a = new Download(mShared, "/a.xml");
+		Download b = new Download(mShared, "/b.xml");
+		a.start();
+		b.start();
+		assertTrue(a.mStarted.await(5, TimeUnit.SECONDS));
+		assertTrue(b.mStarted.await(5, TimeUnit.SECONDS));
+
+		mShared.abort(a);
+		a.join(5000);
+		b.join(5000);
+		assertEquals(TransportException.Kind.CANCELED, a.mError.getKind());
+		assertEquals(null, b.mError);
+		assertEquals(SIZE, b.mOut.size());
+	}
+
+	private static class Download extends Thread {
+		final BackupTransport mTransport;
+		final String mPath;
+		final CountDownLatch mStarted = new CountDownLatch(1);
+		final ByteArrayOutputStream mOut = new ByteArrayOutputStream() {
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				super.write(b, off, len);
+				mStarted.countDown();
+			}
+		};
+		volatile TransportException mError;
+
+		Download(BackupTransport transport, String path) {
+			mTransport = transport;
+			mPath = path;
+		}
+
+		@Override
+		public void run() {
+			try {
+				mTransport.download(mPath, null, mOut, null);
+			} catch (TransportException e) {
+				mError = e;
+			}
+		}
+	}
+}